@@ -0,0 +1,141 @@
+package org.tensorflow.lite.examples.asr;
+
+import android.util.Log;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Conformer interpreter that is loaded once instead of on every click. Audio is padded with
+ * silence to the shortest of a few durations that fits it, so clips of different lengths mostly
+ * run at the same input shape and the tensors aren't allocated again. Clips longer than the
+ * longest bucket run at their own length. A direct buffer with room for the padding, e.g. from
+ * {@link WavReader}, is handed to the interpreter as it is. The output buffer is kept too.
+ */
+public class AsrEngine implements AutoCloseable {
+
+    private final static String TAG = "AsrEngine";
+    // The previous per-click buffer size, grown if the model reports a longer output.
+    private final static int MIN_OUTPUT_SIZE = 2000;
+
+    private final int[] bucketLengths;
+    private final int sampleRate;
+    private Interpreter interpreter;
+    // Copy of the input that isn't direct or has no room for its padding.
+    private FloatBuffer scratch = allocate(0);
+    private int inputLength;
+    private IntBuffer output = IntBuffer.allocate(MIN_OUTPUT_SIZE);
+    private final Map<Integer, Object> outputs = new HashMap<>();
+
+    public AsrEngine(ByteBuffer model, Interpreter.Options options, int sampleRate,
+                     int... bucketSeconds) {
+        this.sampleRate = sampleRate;
+        this.bucketLengths = new int[bucketSeconds.length];
+        for (int i = 0; i < bucketSeconds.length; i++) {
+            bucketLengths[i] = bucketSeconds[i] * sampleRate;
+        }
+        Arrays.sort(bucketLengths);
+        this.interpreter = new Interpreter(model, options);
+        outputs.put(0, output);
+    }
+
+    /** Runs the shortest bucket once on silence, so the first click isn't a cold run. */
+    public synchronized void warmUp() {
+        long start = System.currentTimeMillis();
+        scratch = ensureCapacity(scratch, bucketLengths[0]);
+        run(scratch, 0);
+        Log.i(TAG, "Warmed up in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /** Returns the number of samples a clip of samples is padded to. */
+    public int paddedLength(int samples) {
+        for (int bucketLength : bucketLengths) {
+            if (bucketLength >= samples) {
+                return bucketLength;
+            }
+        }
+        return samples;
+    }
+
+    /** Returns the text of audio, sampled at the rate of the engine. */
+    public synchronized String transcribe(float[] audio) {
+        scratch = ensureCapacity(scratch, paddedLength(audio.length));
+        scratch.clear();
+        scratch.put(audio);
+        scratch.flip();
+        return transcribe(scratch);
+    }
+
+    /** Same as above for the samples of audio up to its limit, padded after it if there's room. */
+    public synchronized String transcribe(FloatBuffer audio) {
+        long start = System.currentTimeMillis();
+        int samples = audio.limit();
+        FloatBuffer input = audio;
+        if (!audio.isDirect() || audio.capacity() < paddedLength(samples)) {
+            scratch = ensureCapacity(scratch, paddedLength(samples));
+            scratch.clear();
+            scratch.put((FloatBuffer) audio.duplicate().position(0));
+            input = scratch;
+        }
+        int size = run(input, samples);
+        StringBuilder finalResult = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            if (output.get(i) != 0) {
+                finalResult.append((char) output.get(i));
+            }
+        }
+        Log.i(TAG, "Conformer latency: " + (System.currentTimeMillis() - start) + " ms for "
+                + samples / sampleRate + " s at " + inputLength / sampleRate + " s");
+        return finalResult.toString();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (interpreter != null) {
+            interpreter.close();
+            interpreter = null;
+        }
+    }
+
+    private int run(FloatBuffer input, int samples) {
+        if (interpreter == null) {
+            throw new IllegalStateException("The ASR engine is closed.");
+        }
+        int length = paddedLength(samples);
+        if (length != inputLength) {
+            interpreter.resizeInput(0, new int[] {length});
+            interpreter.allocateTensors();
+            inputLength = length;
+            int expected = interpreter.getOutputTensor(0).numElements();
+            if (expected > output.capacity()) {
+                output = IntBuffer.allocate(expected);
+                outputs.put(0, output);
+            }
+        }
+        input.limit(length);
+        for (int i = samples; i < length; i++) {
+            input.put(i, 0);
+        }
+        input.position(0);
+
+        output.rewind();
+        interpreter.runForMultipleInputsOutputs(new Object[] {input}, outputs);
+        input.limit(samples);
+        return Math.min(interpreter.getOutputTensor(0).shape()[0], output.capacity());
+    }
+
+    private static FloatBuffer ensureCapacity(FloatBuffer buffer, int capacity) {
+        return buffer.capacity() >= capacity ? buffer : allocate(capacity);
+    }
+
+    private static FloatBuffer allocate(int floats) {
+        return ByteBuffer.allocateDirect(4 * floats).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+}
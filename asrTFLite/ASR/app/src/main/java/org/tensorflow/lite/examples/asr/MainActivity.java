@@ -15,6 +15,7 @@ import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.Spinner;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.jlibrosa.audio.JLibrosa;
 
@@ -25,16 +26,17 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.IntBuffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.HashMap;
-import java.util.Map;
 
 public class MainActivity extends AppCompatActivity implements AdapterView.OnItemSelectedListener {
 
-    private MappedByteBuffer tfLiteModel;
-    private Interpreter tfLite;
+    // Loaded once in the background, null until it's warmed up.
+    private volatile AsrEngine asrEngine;
+    // Samples of the last clip WavReader read, reused by the next one.
+    private FloatBuffer audioBuffer;
 
     private Spinner audioClipSpinner;
     private Button transcribeButton;
@@ -49,6 +51,8 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
     private final static int DEFAULT_AUDIO_DURATION = -1;
     private final static String[] WAV_FILENAMES = {"audio_clip_1.wav", "audio_clip_2.wav", "audio_clip_3.wav", "audio_clip_4.wav"};
     private final static String TFLITE_FILE = "CONFORMER.tflite";
+    // Durations the input is padded to, so clips of similar lengths share a shape.
+    private final static int[] BUCKET_SECONDS = {6, 12, 18, 24, 32, 48, 64};
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -86,43 +90,50 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
             @Override
             public void onClick(View view) {
                 try {
-                    float audioFeatureValues[] = jLibrosa.loadAndRead(copyWavFileToCache(wavFilename), SAMPLE_RATE, DEFAULT_AUDIO_DURATION);
-
-                    Object[] inputArray = {audioFeatureValues};
-                    IntBuffer outputBuffer = IntBuffer.allocate(2000);
-
-                    Map<Integer, Object> outputMap = new HashMap<>();
-                    outputMap.put(0, outputBuffer);
-
-                    tfLiteModel = loadModelFile(getAssets(), TFLITE_FILE);
-                    Interpreter.Options tfLiteOptions = new Interpreter.Options();
-                    Log.i(TAG, "Before instance");
-                    tfLite = new Interpreter(tfLiteModel, tfLiteOptions);
-                    Log.i(TAG, "After instance");
-
-                    tfLite.resizeInput(0, new int[] {audioFeatureValues.length});
-
-
-                    tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
-
-                    int outputSize = tfLite.getOutputTensor(0).shape()[0];
-                    int[] outputArray = new int[outputSize];
-                    outputBuffer.rewind();
-                    outputBuffer.get(outputArray);
-                    StringBuilder finalResult = new StringBuilder();
-                    for (int i=0; i < outputSize; i++) {
-                        char c = (char) outputArray[i];
-                        if (outputArray[i] != 0) {
-                            finalResult.append((char) outputArray[i]);
-                        }
+                    AsrEngine engine = asrEngine;
+                    if (engine == null) {
+                        Toast.makeText(MainActivity.this, "The model is still loading.",
+                                Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    String finalResult;
+                    ByteBuffer wav = WavReader.map(getAssets(), wavFilename);
+                    int samples = WavReader.sampleCount(wav, SAMPLE_RATE);
+                    if (samples >= 0) {
+                        // Read into the buffer of the previous click, with room for the padding.
+                        audioBuffer = WavReader.read(wav, SAMPLE_RATE, audioBuffer,
+                                engine.paddedLength(samples));
+                        finalResult = engine.transcribe(audioBuffer);
+                    } else {
+                        float audioFeatureValues[] = jLibrosa.loadAndRead(copyWavFileToCache(wavFilename), SAMPLE_RATE, DEFAULT_AUDIO_DURATION);
+                        finalResult = engine.transcribe(audioFeatureValues);
                     }
-                    resultTextview.setText(finalResult.toString());
+                    resultTextview.setText(finalResult);
                 } catch (Exception e) {
                     Log.e(TAG, e.getMessage());
                 }
             }
         });
 
+        new Thread(() -> {
+            try {
+                AsrEngine engine = new AsrEngine(loadModelFile(getAssets(), TFLITE_FILE),
+                        new Interpreter.Options(), SAMPLE_RATE, BUCKET_SECONDS);
+                engine.warmUp();
+                asrEngine = engine;
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage());
+            }
+        }, "AsrEngine").start();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        AsrEngine engine = asrEngine;
+        if (engine != null) {
+            engine.close();
+        }
     }
 
     @Override
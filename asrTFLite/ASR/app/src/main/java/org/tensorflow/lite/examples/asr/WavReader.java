@@ -0,0 +1,120 @@
+package org.tensorflow.lite.examples.asr;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the samples of 16 or 24 bit PCM mono wav files straight from their memory mapped asset
+ * into a direct float buffer the interpreter takes as it is. Samples are scaled like JLibrosa
+ * does, their integer value over 32767 whatever their width. Other formats are left to JLibrosa.
+ */
+public class WavReader {
+
+    private final static int RIFF = 0x46464952; // "RIFF" read little endian.
+    private final static int WAVE = 0x45564157;
+    private final static int FMT = 0x20746d66;
+    private final static int DATA = 0x61746164;
+    private final static int PCM = 1;
+    private final static float SCALE = 1f / 32767;
+
+    private WavReader() {
+    }
+
+    /** Maps an asset stored uncompressed in the apk, which wav files are by default. */
+    public static ByteBuffer map(AssetManager assets, String name) throws IOException {
+        try (AssetFileDescriptor fileDescriptor = assets.openFd(name);
+             FileInputStream stream = new FileInputStream(fileDescriptor.getFileDescriptor())) {
+            FileChannel fileChannel = stream.getChannel();
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY,
+                    fileDescriptor.getStartOffset(), fileDescriptor.getDeclaredLength());
+        }
+    }
+
+    /** Returns the number of samples of a supported wav at sampleRate, or -1. */
+    public static int sampleCount(ByteBuffer wav, int sampleRate) {
+        int[] data = findData(wav, sampleRate);
+        return data == null ? -1 : data[1];
+    }
+
+    /**
+     * Converts the samples of a supported wav into buffer from position 0, up to its limit. Returns
+     * buffer, or a new direct one if it holds fewer than capacity floats.
+     */
+    public static FloatBuffer read(ByteBuffer wav, int sampleRate, FloatBuffer buffer,
+                                   int capacity) {
+        int[] data = findData(wav, sampleRate);
+        if (data == null) {
+            throw new IllegalArgumentException("Not a 16 or 24 bit PCM mono wav.");
+        }
+        int offset = data[0];
+        int count = data[1];
+        capacity = Math.max(capacity, count);
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocateDirect(4 * capacity)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        buffer.clear();
+        ByteBuffer bytes = wav.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (data[2] == 2) {
+            bytes.limit(offset + 2 * count).position(offset);
+            ShortBuffer samples = bytes.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            for (int i = 0; i < count; i++) {
+                buffer.put(i, samples.get(i) * SCALE);
+            }
+        } else {
+            for (int i = 0, at = offset; i < count; i++, at += 3) {
+                // The high byte carries the sign.
+                int sample = (bytes.get(at) & 0xff) | (bytes.get(at + 1) & 0xff) << 8
+                        | bytes.get(at + 2) << 16;
+                buffer.put(i, sample * SCALE);
+            }
+        }
+        buffer.limit(count);
+        return buffer;
+    }
+
+    /** Returns the offset, sample count and bytes per sample of the data, or null. */
+    private static int[] findData(ByteBuffer wav, int sampleRate) {
+        ByteBuffer bytes = wav.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int end = bytes.limit();
+        if (end < 12 || bytes.getInt(0) != RIFF || bytes.getInt(8) != WAVE) {
+            return null;
+        }
+        int width = 0;
+        int position = 12;
+        while (position + 8 <= end) {
+            int id = bytes.getInt(position);
+            long size = bytes.getInt(position + 4) & 0xffffffffL;
+            int body = position + 8;
+            if (id == FMT) {
+                if (size < 16 || body + 16 > end) {
+                    return null;
+                }
+                int bits = bytes.getShort(body + 14);
+                if (bytes.getShort(body) != PCM || bytes.getShort(body + 2) != 1
+                        || bytes.getInt(body + 4) != sampleRate || (bits != 16 && bits != 24)) {
+                    return null;
+                }
+                width = bits / 8;
+            } else if (id == DATA) {
+                if (width == 0) {
+                    return null;
+                }
+                // Streamed files may not have the size of their data filled in.
+                long available = Math.min(size, end - body);
+                return new int[] {body, (int) (available / width), width};
+            }
+            // Chunks are padded to an even size.
+            position = (int) Math.min(end, body + size + (size & 1));
+        }
+        return null;
+    }
+}
@@ -0,0 +1,142 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.Interpreter;
+
+/** Tests of {@link org.tensorflow.lite.examples.emsassist.ml.AsrEngineHolder} */
+@RunWith(AndroidJUnit4.class)
+public final class AsrEngineHolderTest {
+  private static final String MODEL_FILE = "emsConformer.tflite";
+  private static final int SAMPLE_RATE = 16000;
+  // Long enough that a scheduled close never runs during a test unless the timeout is set to 0.
+  private static final long IDLE_TIMEOUT_MINUTES = 10;
+
+  private final AtomicInteger loads = new AtomicInteger();
+  private ByteBuffer model;
+  private ScheduledThreadPoolExecutor executor;
+  private AsrEngineHolder holder;
+  private Supplier<AsrEngine> loader;
+
+  @Before
+  public void setUp() throws IOException {
+    Context context = ApplicationProvider.getApplicationContext();
+    try (AssetFileDescriptor descriptor = context.getAssets().openFd(MODEL_FILE);
+        FileInputStream stream = new FileInputStream(descriptor.getFileDescriptor())) {
+      model =
+          stream
+              .getChannel()
+              .map(
+                  FileChannel.MapMode.READ_ONLY,
+                  descriptor.getStartOffset(),
+                  descriptor.getDeclaredLength());
+    }
+    // Counts the loads, the engine isn't warmed up.
+    loader =
+        () -> {
+          loads.incrementAndGet();
+          return new AsrEngine(model, new Interpreter.Options(), SAMPLE_RATE, 6, 12);
+        };
+    executor = new ScheduledThreadPoolExecutor(1);
+    holder = new AsrEngineHolder(executor);
+    holder.setIdleTimeout(IDLE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void restartKeepsEngineTest() throws Exception {
+    CompletableFuture<AsrEngine> first = holder.acquire(loader);
+    // The activity is recreated, e.g. on a rotation.
+    holder.release();
+    CompletableFuture<AsrEngine> second = holder.acquire(loader);
+    drain();
+    assertThat(second).isSameInstanceAs(first);
+    assertThat(loads.get()).isEqualTo(1);
+    assertThat(first.get().isClosed()).isFalse();
+    // The close scheduled by the release was cancelled.
+    assertThat(executor.getQueue()).isEmpty();
+
+    holder.setIdleTimeout(0, TimeUnit.MILLISECONDS);
+    holder.release();
+    drain();
+    assertThat(first.get().isClosed()).isTrue();
+    holder.acquire(loader).get(1, TimeUnit.MINUTES);
+    assertThat(loads.get()).isEqualTo(2);
+    holder.release();
+  }
+
+  @Test
+  public void trimMemoryTest() throws Exception {
+    AsrEngine engine = holder.acquire(loader).get(1, TimeUnit.MINUTES);
+    // An engine in use is kept.
+    holder.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+    drain();
+    assertThat(engine.isClosed()).isFalse();
+
+    // An idle one is closed at once in the background.
+    holder.release();
+    holder.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+    drain();
+    assertThat(engine.isClosed()).isTrue();
+    assertThat(executor.getQueue()).isEmpty();
+  }
+
+  @Test
+  public void failedLoadIsRetriedTest() throws Exception {
+    CompletableFuture<AsrEngine> failed =
+        holder.acquire(
+            () -> {
+              throw new IllegalStateException("Can't load " + MODEL_FILE);
+            });
+    assertThrows(ExecutionException.class, () -> failed.get(1, TimeUnit.MINUTES));
+
+    // The next acquire loads again instead of handing out the failed engine.
+    holder.acquire(loader).get(1, TimeUnit.MINUTES);
+    assertThat(loads.get()).isEqualTo(1);
+    holder.release();
+    holder.release();
+  }
+
+  /** Waits for the tasks the holder has queued so far, which run in order. */
+  private void drain() throws Exception {
+    executor.submit(() -> {}).get(1, TimeUnit.MINUTES);
+  }
+}
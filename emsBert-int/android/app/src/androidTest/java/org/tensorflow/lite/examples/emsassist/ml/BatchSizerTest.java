@@ -0,0 +1,72 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests of {@link org.tensorflow.lite.examples.emsassist.ml.BatchSizer} */
+@RunWith(AndroidJUnit4.class)
+public final class BatchSizerTest {
+  private static final int SEQ_LEN = 64;
+
+  @Test
+  public void settlesOnCheapestSizeTest() {
+    BatchSizer sizer = new BatchSizer(32);
+    assertThat(sizer.batchSize()).isEqualTo(1);
+    int[] picked = new int[33];
+    for (int i = 0; i < 200; i++) {
+      int batchSize = sizer.batchSize();
+      picked[batchSize]++;
+      sizer.record(batchSize, SEQ_LEN, latency(batchSize, /* cheapest= */ 8));
+    }
+    // Apart from the climb and the probes of its neighbours, every batch is of the cheapest size.
+    assertThat(picked[8]).isGreaterThan(180);
+    assertThat(picked[32]).isEqualTo(0);
+  }
+
+  @Test
+  public void limitTest() {
+    BatchSizer sizer = new BatchSizer(32);
+    assertThat(sizer.maxBatchSize()).isEqualTo(32);
+    for (int i = 0; i < 10; i++) {
+      sizer.record(sizer.batchSize(), SEQ_LEN, latency(sizer.batchSize(), /* cheapest= */ 32));
+    }
+    assertThat(sizer.batchSize()).isEqualTo(32);
+
+    sizer.limit(12);
+    assertThat(sizer.maxBatchSize()).isEqualTo(8);
+    for (int i = 0; i < 50; i++) {
+      sizer.record(sizer.batchSize(), SEQ_LEN, latency(sizer.batchSize(), /* cheapest= */ 32));
+      assertThat(sizer.batchSize()).isAtMost(8);
+    }
+    // Batches the sizer didn't pick don't change its costs.
+    sizer.record(3, SEQ_LEN, 1);
+    sizer.record(16, SEQ_LEN, 1);
+    assertThat(sizer.batchSize()).isEqualTo(8);
+  }
+
+  /** Latency of a batch that has a fixed overhead and gets slower per query past cheapest. */
+  private static long latency(int batchSize, int cheapest) {
+    double perQuery = 100.0 / batchSize + 10;
+    for (int size = cheapest; size < batchSize; size *= 2) {
+      perQuery += 30;
+    }
+    return (long) (perQuery * batchSize * SEQ_LEN);
+  }
+}
@@ -0,0 +1,173 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.support.metadata.MetadataExtractor;
+
+/** Tests of {@link org.tensorflow.lite.examples.emsassist.ml.FeatureConverter} */
+@RunWith(AndroidJUnit4.class)
+public final class FeatureConverterTest {
+  private static final String TAG = "FeatureConverterTest";
+  private static final int MAX_SEQ_LEN = 128;
+
+  private Map<String, Integer> dic;
+  private List<String> narratives;
+
+  @Before
+  public void setUp() throws IOException {
+    Context context = ApplicationProvider.getApplicationContext();
+    ByteBuffer buffer = ModelHelper.loadEMSModelFile(context);
+    dic = ModelHelper.extractDictionary(new MetadataExtractor(buffer));
+    assertThat(dic).isNotNull();
+    assertThat(dic).isNotEmpty();
+
+    narratives = new ArrayList<>();
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(context.getAssets().open("fitted_desc_test_0.txt")))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        // Each line is "<narrative>\t<protocol code>".
+        narratives.add(line.split("\t")[0]);
+      }
+    }
+  }
+
+  @Test
+  public void convertIntoTest() throws Exception {
+    FeatureConverter converter =
+        new FeatureConverter(dic, /* doLowerCase= */ true, MAX_SEQ_LEN, MAX_SEQ_LEN);
+    EMSBertFeature feature = new EMSBertFeature(MAX_SEQ_LEN);
+    // Long and short queries alternate, so the padding left by the previous one must be cleared.
+    for (String narrative : narratives.subList(0, Math.min(200, narratives.size()))) {
+      String longQuery = narrative + " " + narrative + " " + narrative;
+      assertFeatureEquals(converter.convertInto(longQuery, feature), converter.convert(longQuery));
+      assertThat(converter.convertInto("chest pain", feature)).isSameInstanceAs(feature);
+      assertFeatureEquals(feature, converter.convert("chest pain"));
+    }
+    assertFeatureEquals(converter.convertInto("", feature), converter.convert(""));
+  }
+
+  @Test
+  public void sessionMatchesConvertTest() throws Exception {
+    FeatureConverter converter =
+        new FeatureConverter(dic, /* doLowerCase= */ true, MAX_SEQ_LEN, MAX_SEQ_LEN);
+    FeatureSession session = converter.newSession();
+    for (String narrative : narratives.subList(0, Math.min(200, narratives.size()))) {
+      session.reset();
+      // Fed a few chars at a time, so words are often split across appends.
+      for (int start = 0; start < narrative.length(); start += 3) {
+        String transcript = narrative.substring(0, Math.min(narrative.length(), start + 3));
+        session.append(transcript.substring(start));
+        assertFeatureEquals(session.feature(), converter.convert(transcript));
+      }
+    }
+
+    // A word completed by the next append is tokenized again as a whole.
+    session.reset();
+    session.append("unresponsiv");
+    session.append("e");
+    assertFeatureEquals(session.feature(), converter.convert("unresponsive"));
+  }
+
+  @Test
+  public void sessionUpdateMatchesConvertTest() throws Exception {
+    FeatureConverter converter =
+        new FeatureConverter(dic, /* doLowerCase= */ true, MAX_SEQ_LEN, MAX_SEQ_LEN);
+    FeatureSession session = converter.newSession();
+    // Partial transcripts of a stream, each revising the end of the one before.
+    String[] transcripts = {
+      "chest",
+      "chest pain short",
+      "chest pain shortness of breast",
+      "chest pain shortness of breath",
+      "chest pain, shortness of breath and dizzy",
+      "chest pain",
+      "",
+      "unresponsive",
+    };
+    for (String transcript : transcripts) {
+      assertFeatureEquals(session.update(transcript), converter.convert(transcript));
+    }
+
+    // Narratives long enough to fill the sequence, revised from the middle.
+    for (String narrative : narratives.subList(0, Math.min(200, narratives.size()))) {
+      String longQuery = narrative + " " + narrative + " " + narrative;
+      session.update(longQuery);
+      String revised = longQuery.substring(0, longQuery.length() / 2) + " fever with chills";
+      assertFeatureEquals(session.update(revised), converter.convert(revised));
+    }
+  }
+
+  @Test
+  public void sessionThroughputTest() throws Exception {
+    // Large enough that no transcript fills the sequence.
+    FeatureConverter converter =
+        new FeatureConverter(dic, /* doLowerCase= */ true, 1 << 16, 1 << 16);
+    StringBuilder transcript = new StringBuilder();
+    List<String> words = new ArrayList<>();
+    for (String narrative : narratives) {
+      for (String word : narrative.split(" ")) {
+        words.add(word + " ");
+      }
+      if (words.size() > 2000) {
+        break;
+      }
+    }
+
+    long sessionStart = System.nanoTime();
+    FeatureSession session = converter.newSession();
+    for (String word : words) {
+      session.append(word);
+    }
+    long sessionLatency = System.nanoTime() - sessionStart;
+
+    long convertStart = System.nanoTime();
+    for (String word : words) {
+      transcript.append(word);
+      converter.convert(transcript.toString());
+    }
+    long convertLatency = System.nanoTime() - convertStart;
+
+    Log.i(
+        TAG,
+        String.format(
+            "%d words appended: session %d ms, convert of every prefix %d ms",
+            words.size(), sessionLatency / 1000000, convertLatency / 1000000));
+    assertFeatureEquals(session.feature(), converter.convert(transcript.toString()));
+  }
+
+  private static void assertFeatureEquals(EMSBertFeature actual, EMSBertFeature expected) {
+    assertThat(actual.inputIds).isEqualTo(expected.inputIds);
+    assertThat(actual.inputMask).isEqualTo(expected.inputMask);
+    assertThat(actual.segmentIds).isEqualTo(expected.segmentIds);
+  }
+}
@@ -0,0 +1,130 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests of {@link org.tensorflow.lite.examples.emsassist.ml.InterpreterAutotuner} */
+@RunWith(AndroidJUnit4.class)
+public final class InterpreterAutotunerTest {
+  private static final int MAX_SEQ_LEN = 128;
+  private static final int NUM_PRED_CLASSES = 46;
+  private static final int SEQ_LEN = 32;
+
+  private Context context;
+  private ByteBuffer model;
+  private ModelBinding binding;
+
+  @Before
+  public void setUp() throws IOException {
+    context = ApplicationProvider.getApplicationContext();
+    model = ModelHelper.loadEMSModelFile(context);
+    binding = ModelBinding.load(model, MAX_SEQ_LEN, NUM_PRED_CLASSES);
+  }
+
+  @Test
+  public void candidatesTest() {
+    List<InterpreterAutotuner.Config> candidates = InterpreterAutotuner.candidates(4, 8);
+    assertThat(candidates)
+        .containsExactly(
+            new InterpreterAutotuner.Config(4, true, false),
+            new InterpreterAutotuner.Config(4, false, false),
+            new InterpreterAutotuner.Config(8, true, false),
+            new InterpreterAutotuner.Config(8, false, false))
+        .inOrder();
+    assertThat(InterpreterAutotuner.candidates(0, 1)).hasSize(2);
+  }
+
+  @Test
+  public void pickIsPersistedTest() {
+    // A name of its own, so no earlier run left a pick for it.
+    String name = "InterpreterAutotunerTest-" + System.nanoTime();
+    List<InterpreterAutotuner.Config> candidates = InterpreterAutotuner.candidates(2);
+    InterpreterAutotuner.Calibration calibration =
+        options -> {
+          ModelRunner runner = new ModelRunner(model, options, binding, 1, SEQ_LEN);
+          return new InterpreterAutotuner.Session() {
+            @Override
+            public void run() {
+              runner.run();
+            }
+
+            @Override
+            public void close() {
+              runner.close();
+            }
+          };
+        };
+    InterpreterAutotuner.Config picked =
+        new InterpreterAutotuner(context).tune(name, model, candidates, calibration);
+    assertThat(candidates).contains(picked);
+
+    // Another autotuner reads it back without running anything.
+    InterpreterAutotuner.Config reused =
+        new InterpreterAutotuner(context)
+            .tune(
+                name,
+                model,
+                candidates,
+                options -> {
+                  throw new AssertionError("The pick should have been reused.");
+                });
+    assertThat(reused).isEqualTo(picked);
+  }
+
+  @Test
+  public void unrunnableCandidatesAreSkippedTest() {
+    String name = "InterpreterAutotunerTest-" + System.nanoTime();
+    List<InterpreterAutotuner.Config> candidates = InterpreterAutotuner.candidates(4);
+    InterpreterAutotuner autotuner = new InterpreterAutotuner(context);
+    autotuner.setRuns(1);
+    // Only the first candidate can run, the others fail as a delegate that can't be applied does.
+    int[] opened = {0};
+    InterpreterAutotuner.Config picked =
+        autotuner.tune(
+            name,
+            model,
+            candidates,
+            options -> {
+              if (opened[0]++ > 0) {
+                throw new IllegalArgumentException("Unsupported options.");
+              }
+              ModelRunner runner = new ModelRunner(model, options, binding, 1, SEQ_LEN);
+              return new InterpreterAutotuner.Session() {
+                @Override
+                public void run() {
+                  runner.run();
+                }
+
+                @Override
+                public void close() {
+                  runner.close();
+                }
+              };
+            });
+    assertThat(opened[0]).isEqualTo(candidates.size());
+    assertThat(picked).isEqualTo(candidates.get(0));
+  }
+}
@@ -0,0 +1,396 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.support.metadata.MetadataExtractor;
+
+/** Benchmarks of how the EMS Bert interpreter is fed, logged under the tag below. */
+@RunWith(AndroidJUnit4.class)
+public final class InterpreterBenchmarkTest {
+  private static final String TAG = "InterpreterBenchmark";
+  private static final int MAX_SEQ_LEN = 128;
+  private static final int NUM_PRED_CLASSES = 46;
+  private static final int NUM_LITE_THREADS = 4;
+  private static final int[] BATCH_SIZES = {1, 8, 32};
+  private static final int[] SEQ_LEN_BUCKETS = {32, 64, 96, MAX_SEQ_LEN};
+  private static final int TOP_K = 5;
+  private static final int[] POOL_SIZES = {1, 2, 4};
+  private static final int CALLERS = 4;
+  private static final int RUNS = 20;
+
+  private ByteBuffer model;
+  private ModelBinding binding;
+  private FeatureConverter converter;
+  private List<String> queries;
+  private Interpreter tflite;
+
+  @Before
+  public void setUp() throws IOException {
+    Context context = ApplicationProvider.getApplicationContext();
+    model = ModelHelper.loadEMSModelFile(context);
+    binding = ModelBinding.load(model, MAX_SEQ_LEN, NUM_PRED_CLASSES);
+    Map<String, Integer> dic = ModelHelper.extractDictionary(new MetadataExtractor(model));
+    assertThat(dic).isNotNull();
+    converter = new FeatureConverter(dic, /* doLowerCase= */ true, MAX_SEQ_LEN, MAX_SEQ_LEN);
+
+    queries = new ArrayList<>();
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(context.getAssets().open("fitted_desc_test_0.txt")))) {
+      String line;
+      while ((line = reader.readLine()) != null && queries.size() < 256) {
+        // Each line is "<narrative>\t<protocol code>".
+        queries.add(line.split("\t")[0]);
+      }
+    }
+  }
+
+  @After
+  public void tearDown() {
+    if (tflite != null) {
+      tflite.close();
+    }
+  }
+
+  @Test
+  public void directBuffersVsArraysTest() {
+    Interpreter.Options options = new Interpreter.Options();
+    options.setNumThreads(NUM_LITE_THREADS);
+    tflite = new Interpreter(model, options);
+
+    for (int batchSize : BATCH_SIZES) {
+      for (int i = 0; i < tflite.getInputTensorCount(); i++) {
+        tflite.resizeInput(i, new int[] {batchSize, MAX_SEQ_LEN});
+      }
+      try {
+        tflite.allocateTensors();
+      } catch (IllegalArgumentException | IllegalStateException e) {
+        Log.w(TAG, "The model doesn't take a batch of " + batchSize + ": " + e.getMessage());
+        continue;
+      }
+
+      FeatureBuffers buffers = new FeatureBuffers(batchSize, MAX_SEQ_LEN);
+      int[][][] arrays = new int[3][batchSize][];
+      for (int row = 0; row < batchSize; row++) {
+        converter.convertInto(queries.get(row % queries.size()), buffers, row);
+        EMSBertFeature feature = buffers.toFeature(row);
+        arrays[0][row] = feature.inputIds;
+        arrays[1][row] = feature.segmentIds;
+        arrays[2][row] = feature.inputMask;
+      }
+      // The model takes the ids, segment ids and mask in this order.
+      Object[] arrayInputs = {arrays[0], arrays[1], arrays[2]};
+      Object[] bufferInputs = {buffers.inputIds(), buffers.segmentIds(), buffers.inputMask()};
+      float[][] arrayLogits = new float[batchSize][NUM_PRED_CLASSES];
+      ByteBuffer logitsBuffer =
+          ByteBuffer.allocateDirect(4 * batchSize * NUM_PRED_CLASSES)
+              .order(ByteOrder.nativeOrder());
+      Map<Integer, Object> arrayOutputs = new HashMap<>();
+      arrayOutputs.put(0, arrayLogits);
+      Map<Integer, Object> bufferOutputs = new HashMap<>();
+      bufferOutputs.put(0, logitsBuffer);
+
+      // Warm up both paths, then alternate them so they see the same device state.
+      tflite.runForMultipleInputsOutputs(arrayInputs, arrayOutputs);
+      logitsBuffer.rewind();
+      tflite.runForMultipleInputsOutputs(bufferInputs, bufferOutputs);
+      long arrayLatency = 0;
+      long bufferLatency = 0;
+      for (int run = 0; run < RUNS; run++) {
+        long start = System.nanoTime();
+        tflite.runForMultipleInputsOutputs(arrayInputs, arrayOutputs);
+        arrayLatency += System.nanoTime() - start;
+
+        start = System.nanoTime();
+        logitsBuffer.rewind();
+        tflite.runForMultipleInputsOutputs(bufferInputs, bufferOutputs);
+        bufferLatency += System.nanoTime() - start;
+      }
+
+      Log.i(
+          TAG,
+          String.format(
+              "batch %d: arrays %.3f ms/run, direct buffers %.3f ms/run, saved %.3f ms/run",
+              batchSize,
+              arrayLatency / 1e6 / RUNS,
+              bufferLatency / 1e6 / RUNS,
+              (arrayLatency - bufferLatency) / 1e6 / RUNS));
+
+      FloatBuffer logits = logitsBuffer.asFloatBuffer();
+      for (int row = 0; row < batchSize; row++) {
+        for (int c = 0; c < NUM_PRED_CLASSES; c++) {
+          assertThat(logits.get(row * NUM_PRED_CLASSES + c))
+              .isWithin(1e-5f)
+              .of(arrayLogits[row][c]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void lengthBucketsTest() {
+    Interpreter.Options options = new Interpreter.Options();
+    options.setNumThreads(NUM_LITE_THREADS);
+    List<ModelRunner> runners = new ArrayList<>();
+    try {
+      // The padded baseline every query used to run at.
+      ModelRunner padded = new ModelRunner(model, options, binding, 1, MAX_SEQ_LEN);
+      runners.add(padded);
+      List<Integer> lengths = new ArrayList<>();
+      List<ModelRunner> bucketRunners = new ArrayList<>();
+      for (int seqLen : SEQ_LEN_BUCKETS) {
+        try {
+          bucketRunners.add(new ModelRunner(model, options, binding, 1, seqLen));
+          lengths.add(seqLen);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+          Log.w(TAG, "The model doesn't run at a sequence length of " + seqLen, e);
+        }
+      }
+      runners.addAll(bucketRunners);
+      SequenceBuckets buckets =
+          new SequenceBuckets(lengths.stream().mapToInt(i -> i).toArray());
+
+      EMSBertFeature feature = new EMSBertFeature(MAX_SEQ_LEN);
+      float[] paddedLogits = new float[NUM_PRED_CLASSES];
+      float[] bucketLogits = new float[NUM_PRED_CLASSES];
+      int[] queryCounts = new int[buckets.size()];
+      long[] paddedLatencies = new long[buckets.size()];
+      long[] bucketLatencies = new long[buckets.size()];
+      // Warm up every runner once.
+      converter.convertInto(queries.get(0), feature);
+      for (ModelRunner runner : runners) {
+        runner.buffers().put(0, feature);
+        runner.run();
+      }
+
+      for (String query : queries) {
+        converter.convertInto(query, feature);
+        int bucket = buckets.bucketFor(feature.length());
+        ModelRunner runner = bucketRunners.get(bucket);
+
+        long start = System.nanoTime();
+        padded.buffers().put(0, feature);
+        padded.run().get(paddedLogits);
+        paddedLatencies[bucket] += System.nanoTime() - start;
+
+        start = System.nanoTime();
+        runner.buffers().put(0, feature);
+        runner.run().get(bucketLogits);
+        bucketLatencies[bucket] += System.nanoTime() - start;
+        queryCounts[bucket]++;
+
+        assertThat(topK(bucketLogits)).isEqualTo(topK(paddedLogits));
+      }
+
+      for (int bucket = 0; bucket < buckets.size(); bucket++) {
+        int count = Math.max(1, queryCounts[bucket]);
+        Log.i(
+            TAG,
+            String.format(
+                "length %d: %d queries, %.3f ms/query padded to %d, %.3f ms/query bucketed",
+                buckets.length(bucket),
+                queryCounts[bucket],
+                paddedLatencies[bucket] / 1e6 / count,
+                MAX_SEQ_LEN,
+                bucketLatencies[bucket] / 1e6 / count));
+      }
+    } finally {
+      for (ModelRunner runner : runners) {
+        runner.close();
+      }
+    }
+  }
+
+  @Test
+  public void poolThroughputTest() throws Exception {
+    int cores = Runtime.getRuntime().availableProcessors();
+    SequenceBuckets requested = new SequenceBuckets(SEQ_LEN_BUCKETS);
+    float[][] expected = null;
+    ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+    try {
+      for (int poolSize : POOL_SIZES) {
+        int numThreads = Math.max(1, cores / poolSize);
+        try (InterpreterPool pool =
+            new InterpreterPool(model, binding, requested, poolSize, numThreads)) {
+          float[][] logits = new float[queries.size()][];
+          // Warm up every runner of the pool.
+          predictAll(pool, callers, logits);
+
+          long start = System.nanoTime();
+          predictAll(pool, callers, logits);
+          long latency = System.nanoTime() - start;
+          Log.i(
+              TAG,
+              String.format(
+                  "%d interpreters of %d threads, %d callers: %.3f ms/query",
+                  poolSize, numThreads, CALLERS, latency / 1e6 / queries.size()));
+
+          if (expected == null) {
+            expected = logits;
+          }
+          for (int i = 0; i < logits.length; i++) {
+            for (int c = 0; c < NUM_PRED_CLASSES; c++) {
+              assertThat(logits[i][c]).isWithin(1e-4f).of(expected[i][c]);
+            }
+          }
+        }
+      }
+    } finally {
+      callers.shutdown();
+    }
+  }
+
+  @Test
+  public void warmUpTest() throws Exception {
+    int poolSize = 2;
+    int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / poolSize);
+    try (InterpreterPool pool =
+        new InterpreterPool(
+            model, binding, new SequenceBuckets(SEQ_LEN_BUCKETS), poolSize, numThreads)) {
+      WarmUpReport report = pool.warmUp(/* runs= */ 5);
+      Log.i(TAG, report.toString());
+      // Every interpreter is created before the runs are timed.
+      assertThat(pool.interpreterCount()).isEqualTo(poolSize * pool.buckets().size());
+      assertThat(report.size()).isEqualTo(pool.buckets().size());
+      for (int shape = 0; shape < report.size(); shape++) {
+        assertThat(report.seqLen(shape)).isEqualTo(pool.buckets().length(shape));
+        assertThat(report.warmMillis(shape)).isGreaterThan(0.0);
+      }
+
+      // The runners are left as converted queries expect them.
+      float[][] logits = new float[queries.size()][];
+      ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+      try {
+        predictAll(pool, callers, logits);
+      } finally {
+        callers.shutdown();
+      }
+      try (InterpreterPool cold =
+          new InterpreterPool(model, binding, new SequenceBuckets(SEQ_LEN_BUCKETS), 1, 1)) {
+        InterpreterPool.Runner runner = cold.acquire();
+        for (int i = 0; i < queries.size(); i++) {
+          converter.convertInto(queries.get(i), runner.feature());
+          float[] expected = runner.run();
+          for (int c = 0; c < NUM_PRED_CLASSES; c++) {
+            assertThat(logits[i][c]).isWithin(1e-4f).of(expected[c]);
+          }
+        }
+        cold.release(runner);
+      }
+    }
+  }
+
+  @Test
+  public void interpreterCapTest() throws Exception {
+    int poolSize = 2;
+    int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / poolSize);
+    SequenceBuckets requested = new SequenceBuckets(SEQ_LEN_BUCKETS);
+    float[][] expected = new float[queries.size()][];
+    float[][] logits = new float[queries.size()][];
+    ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+    try {
+      try (InterpreterPool uncapped =
+          new InterpreterPool(model, binding, requested, poolSize, numThreads)) {
+        predictAll(uncapped, callers, expected);
+      }
+      // One interpreter of the longest bucket per runner and one more, shared by the buckets.
+      try (InterpreterPool capped =
+          new InterpreterPool(
+              model,
+              binding,
+              requested,
+              poolSize,
+              new Interpreter.Options().setNumThreads(numThreads),
+              poolSize + 1)) {
+        predictAll(capped, callers, logits);
+        assertThat(capped.interpreterCount()).isAtMost(poolSize + 1);
+      }
+    } finally {
+      callers.shutdown();
+    }
+    for (int i = 0; i < logits.length; i++) {
+      for (int c = 0; c < NUM_PRED_CLASSES; c++) {
+        assertThat(logits[i][c]).isWithin(1e-4f).of(expected[i][c]);
+      }
+    }
+  }
+
+  /** Predicts every query from CALLERS threads at once, each taking every CALLERS-th query. */
+  private void predictAll(InterpreterPool pool, ExecutorService callers, float[][] logits)
+      throws Exception {
+    List<Future<?>> done = new ArrayList<>();
+    for (int caller = 0; caller < CALLERS; caller++) {
+      int first = caller;
+      done.add(
+          callers.submit(
+              () -> {
+                for (int i = first; i < queries.size(); i += CALLERS) {
+                  InterpreterPool.Runner runner = pool.acquire();
+                  try {
+                    converter.convertInto(queries.get(i), runner.feature());
+                    logits[i] = runner.run().clone();
+                  } finally {
+                    pool.release(runner);
+                  }
+                }
+                return null;
+              }));
+    }
+    for (Future<?> future : done) {
+      future.get();
+    }
+  }
+
+  /** Returns the indices of the k largest logits, largest first. */
+  private static int[] topK(float[] logits) {
+    int[] top = new int[TOP_K];
+    boolean[] taken = new boolean[logits.length];
+    for (int k = 0; k < TOP_K; k++) {
+      int best = -1;
+      for (int i = 0; i < logits.length; i++) {
+        if (!taken[i] && (best < 0 || logits[i] > logits[best])) {
+          best = i;
+        }
+      }
+      taken[best] = true;
+      top[k] = best;
+    }
+    return top;
+  }
+}
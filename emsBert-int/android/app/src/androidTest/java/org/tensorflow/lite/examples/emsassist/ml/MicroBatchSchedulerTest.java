@@ -0,0 +1,107 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests of {@link org.tensorflow.lite.examples.emsassist.ml.MicroBatchScheduler} */
+@RunWith(AndroidJUnit4.class)
+public final class MicroBatchSchedulerTest {
+  // Batch sizes the predictor was called with.
+  private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+
+  private List<String> predict(List<String> queries) {
+    batchSizes.add(queries.size());
+    List<String> predictions = new ArrayList<>();
+    for (String query : queries) {
+      predictions.add(query.toUpperCase());
+    }
+    return predictions;
+  }
+
+  @Test
+  public void flushesFullBatchTest() throws Exception {
+    try (MicroBatchScheduler<String> scheduler =
+        new MicroBatchScheduler<>(this::predict, 4, /* maxWaitMillis= */ 60_000)) {
+      List<CompletableFuture<String>> futures = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(scheduler.submit("query " + i));
+      }
+      for (int i = 0; i < 8; i++) {
+        assertThat(futures.get(i).get(5, TimeUnit.SECONDS)).isEqualTo("QUERY " + i);
+      }
+      assertThat(batchSizes).containsExactly(4, 4);
+      assertThat(scheduler.meanBatchSize()).isWithin(1e-9).of(4);
+    }
+  }
+
+  @Test
+  public void flushesAtDeadlineTest() throws Exception {
+    try (MicroBatchScheduler<String> scheduler =
+        new MicroBatchScheduler<>(this::predict, 32, /* maxWaitMillis= */ 50)) {
+      long start = System.nanoTime();
+      CompletableFuture<String> first = scheduler.submit("a");
+      CompletableFuture<String> second = scheduler.submit("b");
+      assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo("A");
+      assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo("B");
+      assertThat(System.nanoTime() - start).isAtLeast(TimeUnit.MILLISECONDS.toNanos(50));
+      assertThat(batchSizes).containsExactly(2);
+      assertThat(scheduler.maxQueueingMillis()).isAtLeast(49.0);
+    }
+  }
+
+  @Test
+  public void skipsCancelledAndFailsBatchTest() throws Exception {
+    try (MicroBatchScheduler<String> scheduler =
+        new MicroBatchScheduler<>(
+            queries -> {
+              batchSizes.add(queries.size());
+              throw new IllegalStateException("No model.");
+            },
+            8,
+            /* maxWaitMillis= */ 50)) {
+      CompletableFuture<String> cancelled = scheduler.submit("a");
+      CompletableFuture<String> failed = scheduler.submit("b");
+      cancelled.cancel(false);
+      try {
+        failed.get(5, TimeUnit.SECONDS);
+        throw new AssertionError("The batch should have failed.");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+      }
+      assertThat(batchSizes).containsExactly(1);
+    }
+  }
+
+  @Test
+  public void closeFlushesPendingTest() throws Exception {
+    CompletableFuture<String> future;
+    try (MicroBatchScheduler<String> scheduler =
+        new MicroBatchScheduler<>(this::predict, 32, /* maxWaitMillis= */ 60_000)) {
+      future = scheduler.submit("pending");
+    }
+    assertThat(future.get(5, TimeUnit.SECONDS)).isEqualTo("PENDING");
+  }
+}
@@ -0,0 +1,79 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.base.VerifyException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.Interpreter;
+
+/** Tests of {@link org.tensorflow.lite.examples.emsassist.ml.ModelBinding} */
+@RunWith(AndroidJUnit4.class)
+public final class ModelBindingTest {
+  private static final int MAX_SEQ_LEN = 128;
+  private static final int NUM_PRED_CLASSES = 46;
+
+  private ByteBuffer model;
+
+  @Before
+  public void setUp() throws IOException {
+    model = ModelHelper.loadEMSModelFile(ApplicationProvider.getApplicationContext());
+  }
+
+  @Test
+  public void loadTest() {
+    ModelBinding binding = ModelBinding.load(model, MAX_SEQ_LEN, NUM_PRED_CLASSES);
+    assertThat(binding.seqLen()).isEqualTo(MAX_SEQ_LEN);
+    assertThat(binding.numClasses()).isEqualTo(NUM_PRED_CLASSES);
+
+    FeatureBuffers buffers = new FeatureBuffers(1, MAX_SEQ_LEN);
+    Object[] inputs = binding.inputs(buffers);
+    Interpreter tflite = new Interpreter(model, new Interpreter.Options());
+    try {
+      assertThat(inputs).hasLength(tflite.getInputTensorCount());
+      assertThat(inputs[tflite.getInputIndex(ModelBinding.IDS_TENSOR_NAME)])
+          .isSameInstanceAs(buffers.inputIds());
+      assertThat(inputs[tflite.getInputIndex(ModelBinding.MASK_TENSOR_NAME)])
+          .isSameInstanceAs(buffers.inputMask());
+      assertThat(inputs[tflite.getInputIndex(ModelBinding.SEGMENT_IDS_TENSOR_NAME)])
+          .isSameInstanceAs(buffers.segmentIds());
+    } finally {
+      tflite.close();
+    }
+  }
+
+  @Test
+  public void mismatchedModelFailsTest() {
+    try {
+      ModelBinding.load(model, MAX_SEQ_LEN, NUM_PRED_CLASSES + 1);
+      throw new AssertionError("A model of 46 classes was bound as one of 47.");
+    } catch (VerifyException expected) {
+      assertThat(expected).hasMessageThat().contains("classes");
+    }
+    try {
+      ModelBinding.load(model, 2 * MAX_SEQ_LEN, NUM_PRED_CLASSES);
+      throw new AssertionError("A model of sequences of 128 was bound as one of 256.");
+    } catch (VerifyException expected) {
+      assertThat(expected).hasMessageThat().contains("sequences");
+    }
+  }
+}
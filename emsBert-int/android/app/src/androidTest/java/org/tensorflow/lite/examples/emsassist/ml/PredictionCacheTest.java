@@ -0,0 +1,84 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests of {@link org.tensorflow.lite.examples.emsassist.ml.PredictionCache} */
+@RunWith(AndroidJUnit4.class)
+public final class PredictionCacheTest {
+  private static final int SEQ_LEN = 32;
+
+  @Test
+  public void keyOfTest() {
+    EMSBertFeature feature = feature(101, 2000, 3000, 102);
+    PredictionCache.Key key = PredictionCache.keyOf(feature);
+    assertThat(PredictionCache.keyOf(feature(101, 2000, 3000, 102))).isEqualTo(key);
+    assertThat(PredictionCache.keyOf(feature(101, 3000, 2000, 102))).isNotEqualTo(key);
+    // Padding isn't part of the key, the ids of a longer query are.
+    assertThat(PredictionCache.keyOf(feature(101, 2000, 3000, 102, 0))).isNotEqualTo(key);
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedTest() {
+    PredictionCache<String> cache = new PredictionCache<>(2);
+    PredictionCache.Key a = PredictionCache.keyOf(feature(101, 1, 102));
+    PredictionCache.Key b = PredictionCache.keyOf(feature(101, 2, 102));
+    PredictionCache.Key c = PredictionCache.keyOf(feature(101, 3, 102));
+    cache.put(a, cache.generation(), "a");
+    cache.put(b, cache.generation(), "b");
+    assertThat(cache.get(a)).isEqualTo("a");
+    cache.put(c, cache.generation(), "c");
+
+    assertThat(cache.get(b)).isNull();
+    assertThat(cache.get(a)).isEqualTo("a");
+    assertThat(cache.get(c)).isEqualTo("c");
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.evictionCount()).isEqualTo(1L);
+    assertThat(cache.hitCount()).isEqualTo(3L);
+    assertThat(cache.missCount()).isEqualTo(1L);
+    assertThat(cache.hitRate()).isWithin(1e-9).of(0.75);
+  }
+
+  @Test
+  public void validateTest() {
+    PredictionCache<String> cache = new PredictionCache<>(8);
+    PredictionCache.Key key = PredictionCache.keyOf(feature(101, 1, 102));
+    cache.validate("model/labels");
+    cache.put(key, cache.generation(), "a");
+    cache.validate("model/labels");
+    assertThat(cache.get(key)).isEqualTo("a");
+
+    // A prediction that started before the model changed isn't cached.
+    long generation = cache.generation();
+    cache.validate("other model/labels");
+    assertThat(cache.get(key)).isNull();
+    cache.put(key, generation, "stale");
+    assertThat(cache.get(key)).isNull();
+    cache.put(key, cache.generation(), "b");
+    assertThat(cache.get(key)).isEqualTo("b");
+  }
+
+  private static EMSBertFeature feature(int... ids) {
+    EMSBertFeature feature = new EMSBertFeature(SEQ_LEN);
+    System.arraycopy(ids, 0, feature.inputIds, 0, ids.length);
+    feature.setLength(ids.length);
+    return feature;
+  }
+}
@@ -0,0 +1,114 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests of {@link org.tensorflow.lite.examples.emsassist.ml.ProtocolPrediction} */
+@RunWith(AndroidJUnit4.class)
+public final class ProtocolPredictionTest {
+  private static final int NUM_LABELS = 46;
+  private static final int K = 5;
+
+  @Test
+  public void matchesSortTest() {
+    String[] labels = labels(NUM_LABELS);
+    ProtocolPrediction prediction = new ProtocolPrediction(K);
+    Random random = new Random(42);
+    float[] logits = new float[NUM_LABELS];
+    for (int trial = 0; trial < 1000; trial++) {
+      for (int i = 0; i < NUM_LABELS; i++) {
+        // Few distinct values, so most trials have ties.
+        logits[i] = random.nextInt(8) - 4f;
+      }
+      prediction.select(logits, labels);
+
+      Integer[] order = new Integer[NUM_LABELS];
+      for (int i = 0; i < NUM_LABELS; i++) {
+        order[i] = i;
+      }
+      // Stable, so equal logits stay in label order.
+      Arrays.sort(order, Comparator.comparingDouble(i -> -logits[i]));
+      assertThat(prediction.size()).isEqualTo(K);
+      for (int rank = 0; rank < K; rank++) {
+        assertThat(prediction.labelIndex(rank)).isEqualTo(order[rank]);
+        assertThat(prediction.code(rank)).isEqualTo(labels[order[rank]]);
+        assertThat(prediction.logit(rank)).isEqualTo(logits[order[rank]]);
+      }
+    }
+  }
+
+  @Test
+  public void tiesAreKeptTest() {
+    String[] labels = labels(4);
+    ProtocolPrediction prediction = new ProtocolPrediction(3);
+    prediction.select(new float[] {1f, 3f, 3f, 2f}, labels);
+    assertThat(prediction.labelIndex(0)).isEqualTo(1);
+    assertThat(prediction.labelIndex(1)).isEqualTo(2);
+    assertThat(prediction.labelIndex(2)).isEqualTo(3);
+    assertThat(prediction.probability(0)).isEqualTo(prediction.probability(1));
+    assertThat(prediction.format()).isEqualTo("code1\t\t3.0\ncode2\t\t3.0\ncode3\t\t2.0\n");
+  }
+
+  @Test
+  public void probabilityTest() {
+    String[] labels = labels(3);
+    ProtocolPrediction prediction = new ProtocolPrediction(3);
+    // Large logits would overflow exp if they weren't shifted.
+    prediction.select(new float[] {1000f, 1000f + (float) Math.log(3), 999f}, labels);
+    double sum = 0;
+    for (int rank = 0; rank < prediction.size(); rank++) {
+      sum += prediction.probability(rank);
+    }
+    assertThat(sum).isWithin(1e-6).of(1.0);
+    assertThat((double) prediction.probability(0) / prediction.probability(1))
+        .isWithin(1e-3)
+        .of(3.0);
+  }
+
+  @Test
+  public void copyFromTest() {
+    String[] labels = labels(NUM_LABELS);
+    float[] logits = new float[NUM_LABELS];
+    for (int i = 0; i < NUM_LABELS; i++) {
+      logits[i] = i;
+    }
+    ProtocolPrediction prediction = new ProtocolPrediction(K).select(logits, labels);
+    ProtocolPrediction top = new ProtocolPrediction(2).copyFrom(prediction);
+    assertThat(top.size()).isEqualTo(2);
+    assertThat(top.code(0)).isEqualTo("code45");
+    assertThat(top.code(1)).isEqualTo("code44");
+    assertThat(top.probability(1)).isEqualTo(prediction.probability(1));
+
+    // Fewer labels than k.
+    assertThat(new ProtocolPrediction(K).select(new float[] {0f, 1f}, labels).size())
+        .isEqualTo(2);
+  }
+
+  private static String[] labels(int count) {
+    String[] labels = new String[count];
+    for (int i = 0; i < count; i++) {
+      labels[i] = "code" + i;
+    }
+    return labels;
+  }
+}
@@ -0,0 +1,126 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.fail;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests of {@link QaClient#predictAsync(String, long, TimeUnit)} */
+@RunWith(AndroidJUnit4.class)
+public final class QaClientAsyncTest {
+  private static final String[] QUERIES = {
+    "chest pain shortness of breath",
+    "unresponsive patient not breathing no pulse",
+    "fall from ladder head injury",
+    "chest pain shortness of breath",
+  };
+
+  private QaClient client;
+
+  @Before
+  public void setUp() {
+    client = new QaClient(ApplicationProvider.getApplicationContext());
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+  }
+
+  @Test
+  public void predictionsWaitForModelTest() throws Exception {
+    List<CompletableFuture<String>> futures = new ArrayList<>();
+    for (String query : QUERIES) {
+      futures.add(client.predictAsync(query, 60, TimeUnit.SECONDS));
+    }
+    assertThat(futures.get(0).isDone()).isFalse();
+
+    client.loadModel();
+    for (int i = 0; i < QUERIES.length; i++) {
+      assertThat(futures.get(i).get(60, TimeUnit.SECONDS))
+          .isEqualTo(client.predict(QUERIES[i], ""));
+    }
+  }
+
+  @Test
+  public void timeoutTest() throws Exception {
+    CompletableFuture<String> future = client.predictAsync(QUERIES[0], 50, TimeUnit.MILLISECONDS);
+    try {
+      future.get(10, TimeUnit.SECONDS);
+      fail("The model was never loaded.");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+    }
+  }
+
+  @Test
+  public void cancelTest() throws Exception {
+    CompletableFuture<String> cancelled = client.predictAsync(QUERIES[0]);
+    assertThat(cancelled.cancel(true)).isTrue();
+
+    // The thread that was waiting for the model is free for the next prediction.
+    client.loadModel();
+    assertThat(client.predictAsync(QUERIES[1]).get(60, TimeUnit.SECONDS)).isNotEmpty();
+    assertThat(cancelled.isCancelled()).isTrue();
+  }
+
+  @Test
+  public void failedLoadTest() throws Exception {
+    // A buffer that isn't a model, so it can't be bound.
+    QaClient failing =
+        new QaClient(ApplicationProvider.getApplicationContext()) {
+          @Override
+          ByteBuffer loadModelBuffer() {
+            return ByteBuffer.allocateDirect(1024);
+          }
+        };
+    try {
+      CompletableFuture<String> waiting = failing.predictAsync(QUERIES[0]);
+      RuntimeException failure = assertThrows(RuntimeException.class, failing::loadModel);
+      assertThat(failing.isReady()).isFalse();
+
+      // Both the prediction that was waiting and a later one fail with the cause, at once.
+      CompletableFuture<String> later = failing.predictAsync(QUERIES[1]);
+      for (CompletableFuture<String> future : Arrays.asList(waiting, later)) {
+        try {
+          future.get(10, TimeUnit.SECONDS);
+          fail("The model failed to load.");
+        } catch (ExecutionException e) {
+          assertThat(e.getCause()).isSameInstanceAs(failure);
+        }
+      }
+      assertThrows(
+          IllegalStateException.class, () -> failing.awaitReady(10, TimeUnit.SECONDS));
+    } finally {
+      failing.close();
+    }
+  }
+}
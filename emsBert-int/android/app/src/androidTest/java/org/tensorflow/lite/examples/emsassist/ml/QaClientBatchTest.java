@@ -0,0 +1,75 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.common.base.VerifyException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests of {@link QaClient#predictBatch(List)} */
+@RunWith(AndroidJUnit4.class)
+public final class QaClientBatchTest {
+  private Context context;
+  private QaClient client;
+
+  @Before
+  public void setUp() {
+    context = ApplicationProvider.getApplicationContext();
+    client = new QaClient(context);
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+  }
+
+  @Test
+  public void notLoadedTest() throws Exception {
+    List<String> queries = ModelHelper.loadCalibrationQueries(context, 4);
+    Assert.assertThrows(VerifyException.class, () -> client.predictBatch(queries));
+  }
+
+  @Test
+  public void unloadDuringBatchTest() throws Exception {
+    client.loadModel();
+    PredictionCache<ProtocolPrediction> cache = new PredictionCache<>(4096);
+    client.setPredictionCache(cache);
+    List<String> queries = ModelHelper.loadCalibrationQueries(context, 1000);
+    CompletableFuture<List<String>> batch =
+        CompletableFuture.supplyAsync(() -> client.predictBatch(queries));
+    // The first batch has run once its predictions are cached.
+    while (cache.size() == 0 && !batch.isDone()) {
+      Thread.sleep(1);
+    }
+
+    // Neither waits for the batches left, which go on with the runner they checked out.
+    client.trimMemory();
+    client.unload();
+    assertThat(batch.isDone()).isFalse();
+    assertThat(batch.get(5, TimeUnit.MINUTES)).hasSize(queries.size());
+    Assert.assertThrows(VerifyException.class, () -> client.predictBatch(queries));
+  }
+}
@@ -0,0 +1,147 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests of {@link org.tensorflow.lite.examples.emsassist.ml.QaClientHolder} */
+@RunWith(AndroidJUnit4.class)
+public final class QaClientHolderTest {
+  // Long enough that a scheduled unload never runs during a test unless the timeout is set to 0.
+  private static final long IDLE_TIMEOUT_MINUTES = 10;
+
+  private final AtomicInteger loads = new AtomicInteger();
+  private final AtomicInteger unloads = new AtomicInteger();
+  private final AtomicInteger trims = new AtomicInteger();
+  private Context context;
+  private ScheduledThreadPoolExecutor executor;
+  private QaClientHolder holder;
+
+  @Before
+  public void setUp() {
+    context = ApplicationProvider.getApplicationContext();
+    executor = new ScheduledThreadPoolExecutor(1);
+    // Counts the calls instead of loading the model.
+    QaClient client =
+        new QaClient(context) {
+          @Override
+          public synchronized void loadModel() {
+            loads.incrementAndGet();
+          }
+
+          @Override
+          public synchronized void unload() {
+            unloads.incrementAndGet();
+          }
+
+          @Override
+          public synchronized void trimMemory() {
+            trims.incrementAndGet();
+          }
+        };
+    holder = new QaClientHolder(client, executor);
+    holder.setIdleTimeout(IDLE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void restartKeepsModelTest() throws Exception {
+    holder.acquire();
+    // The activity is recreated, e.g. on a rotation.
+    holder.release();
+    holder.acquire();
+    drain();
+    assertThat(loads.get()).isEqualTo(1);
+    assertThat(unloads.get()).isEqualTo(0);
+    // The unload scheduled by the release was cancelled.
+    assertThat(executor.getQueue()).isEmpty();
+
+    holder.setIdleTimeout(0, TimeUnit.MILLISECONDS);
+    holder.release();
+    drain();
+    assertThat(unloads.get()).isEqualTo(1);
+    holder.acquire();
+    drain();
+    assertThat(loads.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void trimMemoryTest() throws Exception {
+    holder.acquire();
+    // A model in use is kept, only what it can rebuild is dropped.
+    holder.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+    drain();
+    assertThat(trims.get()).isEqualTo(1);
+    assertThat(unloads.get()).isEqualTo(0);
+
+    // An idle one is unloaded at once in the background, and only once.
+    holder.release();
+    holder.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+    drain();
+    assertThat(unloads.get()).isEqualTo(1);
+    assertThat(executor.getQueue()).isEmpty();
+  }
+
+  @Test
+  public void failedLoadIsRetriedTest() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    // loadModel reads the other assets, then fails to map the model.
+    QaClient failing =
+        new QaClient(context) {
+          @Override
+          ByteBuffer loadModelBuffer() throws IOException {
+            attempts.incrementAndGet();
+            throw new IOException("No model.");
+          }
+        };
+    QaClientHolder failingHolder = new QaClientHolder(failing, executor);
+    try {
+      failingHolder.acquire();
+      drain();
+      assertThat(attempts.get()).isEqualTo(1);
+      assertThat(failing.isReady()).isFalse();
+
+      // The holder doesn't take the model as loaded, so the next acquire tries again.
+      failingHolder.acquire();
+      drain();
+      assertThat(attempts.get()).isEqualTo(2);
+    } finally {
+      failing.close();
+    }
+  }
+
+  /** Waits for the tasks the holder has queued so far, which run in order. */
+  private void drain() throws Exception {
+    executor.submit(() -> {}).get(1, TimeUnit.MINUTES);
+  }
+}
@@ -0,0 +1,175 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests of {@link StagedPipeline} */
+@RunWith(AndroidJUnit4.class)
+public final class StagedPipelineTest {
+
+  @Test
+  public void itemsGoThroughEveryStageInOrderTest() throws Exception {
+    List<String> seen = new ArrayList<>();
+    StagedPipeline<Integer, String> pipeline =
+        StagedPipeline.<Integer>builder(2)
+            .then("double", i -> 2 * i)
+            .then("format", i -> "#" + i)
+            .then(
+                "record",
+                s -> {
+                  seen.add(s);
+                  return s;
+                })
+            .build();
+    List<CompletableFuture<String>> futures = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      futures.add(pipeline.submit(i));
+    }
+    for (int i = 0; i < 20; i++) {
+      assertThat(futures.get(i).get(10, TimeUnit.SECONDS)).isEqualTo("#" + 2 * i);
+    }
+    assertThat(seen.get(19)).isEqualTo("#38");
+    assertThat(pipeline.stageCount()).isEqualTo(3);
+    assertThat(pipeline.servedCount(1)).isEqualTo(20L);
+    assertThat(pipeline.stageName(1)).isEqualTo("format");
+    pipeline.close();
+  }
+
+  @Test
+  public void slowStageHoldsBackEarlierOnesTest() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    StagedPipeline<Integer, Integer> pipeline =
+        StagedPipeline.<Integer>builder(1)
+            .then("fast", i -> i)
+            .then(
+                "slow",
+                i -> {
+                  try {
+                    release.await();
+                  } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                  }
+                  return i;
+                })
+            .build();
+    // One item in the slow stage, one in its queue, one in the fast stage blocked on that queue and
+    // one in the queue of the fast stage, the next one doesn't fit.
+    List<CompletableFuture<Integer>> futures = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      futures.add(pipeline.submit(i));
+    }
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (pipeline.queueDepth(0) < 1 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(100);
+    assertThat(pipeline.offer(4)).isNull();
+    assertThat(pipeline.queueDepth(1)).isEqualTo(1);
+
+    release.countDown();
+    for (int i = 0; i < 4; i++) {
+      assertThat(futures.get(i).get(10, TimeUnit.SECONDS)).isEqualTo(i);
+    }
+    assertThat(pipeline.offer(4).get(10, TimeUnit.SECONDS)).isEqualTo(4);
+    assertThat(pipeline.meanServiceMillis(1)).isGreaterThan(0.0);
+    pipeline.close();
+  }
+
+  @Test
+  public void failedItemsStopTest() throws Exception {
+    List<Integer> last = new ArrayList<>();
+    StagedPipeline<Integer, Integer> pipeline =
+        StagedPipeline.<Integer>builder(4)
+            .then(
+                "check",
+                i -> {
+                  if (i < 0) {
+                    throw new IllegalArgumentException("negative");
+                  }
+                  return i;
+                })
+            .then(
+                "last",
+                i -> {
+                  last.add(i);
+                  return i;
+                })
+            .build();
+    CompletableFuture<Integer> failed = pipeline.submit(-1);
+    try {
+      failed.get(10, TimeUnit.SECONDS);
+      fail("The check stage throws.");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(IllegalArgumentException.class);
+    }
+    assertThat(pipeline.submit(1).get(10, TimeUnit.SECONDS)).isEqualTo(1);
+    assertThat(last).containsExactly(1);
+    pipeline.close();
+  }
+
+  @Test
+  public void closeDoesNotBlockTest() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    StagedPipeline<Integer, Integer> pipeline =
+        StagedPipeline.<Integer>builder(1)
+            .then(
+                "slow",
+                i -> {
+                  started.countDown();
+                  try {
+                    release.await();
+                  } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                  }
+                  if (i < 0) {
+                    throw new CancellationException("Dropped.");
+                  }
+                  return i;
+                })
+            .build();
+    CompletableFuture<Integer> running = pipeline.submit(0);
+    started.await(10, TimeUnit.SECONDS);
+    // The queue of the stage is full, there's no room for the end of the items.
+    CompletableFuture<Integer> dropped = pipeline.submit(-1);
+    assertThat(pipeline.offer(1)).isNull();
+    long start = System.nanoTime();
+    pipeline.close();
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(1000L);
+
+    // The items submitted before close still go through, a dropped one is cancelled.
+    release.countDown();
+    assertThat(running.get(10, TimeUnit.SECONDS)).isEqualTo(0);
+    try {
+      dropped.get(10, TimeUnit.SECONDS);
+      fail("The stage drops negative items.");
+    } catch (CancellationException e) {
+      assertThat(dropped.isCancelled()).isTrue();
+    }
+  }
+}
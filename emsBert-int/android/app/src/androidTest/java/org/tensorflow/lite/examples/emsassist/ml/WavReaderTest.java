@@ -0,0 +1,89 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.jlibrosa.audio.JLibrosa;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests of {@link WavReader} */
+@RunWith(AndroidJUnit4.class)
+public final class WavReaderTest {
+  private static final int SAMPLE_RATE = 16000;
+
+  @Test
+  public void matchesJLibrosaTest() throws Exception {
+    for (int bits : new int[] {16, 24}) {
+      ByteBuffer wav = wav(SAMPLE_RATE, 1, bits, 3001);
+      assertThat(WavReader.sampleCount(wav, SAMPLE_RATE)).isEqualTo(3001);
+
+      File file = File.createTempFile("wav", ".wav");
+      try (FileOutputStream out = new FileOutputStream(file)) {
+        out.write(wav.array());
+      }
+      float[] expected = new JLibrosa().loadAndRead(file.getPath(), SAMPLE_RATE, -1);
+      file.delete();
+
+      FloatBuffer samples = WavReader.read(wav, SAMPLE_RATE, null, 4000);
+      assertThat(samples.isDirect()).isTrue();
+      assertThat(samples.capacity()).isAtLeast(4000);
+      assertThat(samples.limit()).isEqualTo(expected.length);
+      for (int i = 0; i < expected.length; i++) {
+        // JLibrosa rounds to 5 decimals.
+        double tolerance = 1e-5 + 1e-6 * Math.abs(expected[i]);
+        assertThat((double) samples.get(i)).isWithin(tolerance).of(expected[i]);
+      }
+      // Big enough, so it's reused.
+      assertThat(WavReader.read(wav, SAMPLE_RATE, samples, 100)).isSameInstanceAs(samples);
+    }
+  }
+
+  @Test
+  public void otherFormatsAreLeftToJLibrosaTest() {
+    assertThat(WavReader.sampleCount(wav(8000, 1, 16, 100), SAMPLE_RATE)).isEqualTo(-1);
+    assertThat(WavReader.sampleCount(wav(SAMPLE_RATE, 2, 16, 100), SAMPLE_RATE)).isEqualTo(-1);
+    assertThat(WavReader.sampleCount(wav(SAMPLE_RATE, 1, 8, 100), SAMPLE_RATE)).isEqualTo(-1);
+    assertThat(WavReader.sampleCount(ByteBuffer.allocate(44), SAMPLE_RATE)).isEqualTo(-1);
+  }
+
+  /** Returns a wav of random samples, with a chunk before fmt that must be skipped. */
+  private static ByteBuffer wav(int sampleRate, int channels, int bits, int frames) {
+    int width = bits / 8;
+    int dataSize = frames * channels * width;
+    ByteBuffer wav = ByteBuffer.allocate(12 + 14 + 24 + 8 + dataSize + (dataSize & 1));
+    wav.order(ByteOrder.LITTLE_ENDIAN);
+    wav.put("RIFF".getBytes()).putInt(wav.capacity() - 8).put("WAVE".getBytes());
+    wav.put("LIST".getBytes()).putInt(5).put(new byte[6]);
+    wav.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) channels);
+    wav.putInt(sampleRate).putInt(sampleRate * channels * width);
+    wav.putShort((short) (channels * width)).putShort((short) bits);
+    wav.put("data".getBytes()).putInt(dataSize);
+    Random random = new Random(42);
+    byte[] data = new byte[dataSize];
+    random.nextBytes(data);
+    wav.put(data);
+    wav.clear();
+    return wav;
+  }
+}
@@ -0,0 +1,120 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.tokenization;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests of {@link org.tensorflow.lite.examples.emsassist.tokenization.CharChecker} */
+@RunWith(AndroidJUnit4.class)
+public final class CharCheckerTest {
+  private static final String TAG = "CharCheckerTest";
+
+  @Test
+  public void matchesCharacterPredicatesForEveryCharTest() throws Exception {
+    for (int i = Character.MIN_VALUE; i <= Character.MAX_VALUE; i++) {
+      char ch = (char) i;
+      String message = String.format("char \\u%04x", i);
+      assertWithMessage(message).that(CharChecker.isInvalid(ch)).isEqualTo(isInvalid(ch));
+      assertWithMessage(message).that(CharChecker.isControl(ch)).isEqualTo(isControl(ch));
+      assertWithMessage(message).that(CharChecker.isWhitespace(ch)).isEqualTo(isWhitespace(ch));
+      assertWithMessage(message).that(CharChecker.isPunctuation(ch)).isEqualTo(isPunctuation(ch));
+    }
+  }
+
+  @Test
+  public void throughputTest() throws Exception {
+    Context context = ApplicationProvider.getApplicationContext();
+    StringBuilder corpus = new StringBuilder();
+    for (int i = 0; i < 3; i++) {
+      try (BufferedReader reader =
+          new BufferedReader(
+              new InputStreamReader(context.getAssets().open("fitted_desc_test_" + i + ".txt")))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          corpus.append(line).append('\n');
+        }
+      }
+    }
+    char[] chars = corpus.toString().toCharArray();
+
+    long characterStart = System.nanoTime();
+    int characterCount = 0;
+    for (char ch : chars) {
+      if (isInvalid(ch) || isControl(ch) || isWhitespace(ch) || isPunctuation(ch)) {
+        characterCount++;
+      }
+    }
+    long characterLatency = System.nanoTime() - characterStart;
+
+    long tableStart = System.nanoTime();
+    int tableCount = 0;
+    for (char ch : chars) {
+      if (CharChecker.flags(ch) != 0) {
+        tableCount++;
+      }
+    }
+    long tableLatency = System.nanoTime() - tableStart;
+
+    Log.i(
+        TAG,
+        String.format(
+            "%d chars: Character %d us, table %d us",
+            chars.length, characterLatency / 1000, tableLatency / 1000));
+    assertThat(tableCount).isEqualTo(characterCount);
+  }
+
+  private static boolean isInvalid(char ch) {
+    return (ch == 0 || ch == 0xfffd);
+  }
+
+  private static boolean isControl(char ch) {
+    if (Character.isWhitespace(ch)) {
+      return false;
+    }
+    int type = Character.getType(ch);
+    return (type == Character.CONTROL || type == Character.FORMAT);
+  }
+
+  private static boolean isWhitespace(char ch) {
+    if (Character.isWhitespace(ch)) {
+      return true;
+    }
+    int type = Character.getType(ch);
+    return (type == Character.SPACE_SEPARATOR
+        || type == Character.LINE_SEPARATOR
+        || type == Character.PARAGRAPH_SEPARATOR);
+  }
+
+  private static boolean isPunctuation(char ch) {
+    int type = Character.getType(ch);
+    return (type == Character.CONNECTOR_PUNCTUATION
+        || type == Character.DASH_PUNCTUATION
+        || type == Character.START_PUNCTUATION
+        || type == Character.END_PUNCTUATION
+        || type == Character.INITIAL_QUOTE_PUNCTUATION
+        || type == Character.FINAL_QUOTE_PUNCTUATION
+        || type == Character.OTHER_PUNCTUATION);
+  }
+}
@@ -0,0 +1,109 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.tokenization;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.examples.emsassist.ml.ModelHelper;
+import org.tensorflow.lite.support.metadata.MetadataExtractor;
+
+/** Tests of {@link org.tensorflow.lite.examples.emsassist.tokenization.CompiledVocab} */
+@RunWith(AndroidJUnit4.class)
+public final class CompiledVocabTest {
+  private static final String TAG = "CompiledVocabTest";
+
+  private Context context;
+  private MetadataExtractor metadataExtractor;
+  private Map<String, Integer> dic;
+
+  @Before
+  public void setUp() throws Exception {
+    context = ApplicationProvider.getApplicationContext();
+    ByteBuffer buffer = ModelHelper.loadEMSModelFile(context);
+    metadataExtractor = new MetadataExtractor(buffer);
+    dic = ModelHelper.extractDictionary(metadataExtractor);
+    assertThat(dic).isNotNull();
+    assertThat(dic).isNotEmpty();
+  }
+
+  @Test
+  public void roundTripTest() throws Exception {
+    String[] tokens = new String[dic.size()];
+    for (Map.Entry<String, Integer> entry : dic.entrySet()) {
+      tokens[entry.getValue()] = entry.getKey();
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompiledVocab.write(Arrays.asList(tokens), out);
+    CompiledVocab vocab = CompiledVocab.load(ByteBuffer.wrap(out.toByteArray()));
+
+    assertThat(vocab).hasSize(dic.size());
+    for (Map.Entry<String, Integer> entry : dic.entrySet()) {
+      assertThat(vocab.getId(entry.getKey())).isEqualTo(entry.getValue());
+      assertThat(vocab.getId(new StringBuilder(entry.getKey()))).isEqualTo(entry.getValue());
+      assertThat(vocab.token(entry.getValue())).isEqualTo(entry.getKey());
+    }
+    assertThat(vocab.getId("not a token")).isEqualTo(-1);
+    assertThat(vocab.get("##not a token")).isNull();
+    assertThat(vocab.token(dic.size())).isNull();
+  }
+
+  @Test
+  public void packagedVocabTest() throws Exception {
+    CompiledVocab vocab = ModelHelper.loadCompiledDictionary(context);
+    assertThat(vocab).isNotNull();
+    assertThat(vocab).containsExactlyEntriesIn(dic);
+  }
+
+  @Test
+  public void loadTest() throws Exception {
+    Runtime runtime = Runtime.getRuntime();
+    List<Object> retained = new ArrayList<>();
+
+    System.gc();
+    long heapStart = runtime.totalMemory() - runtime.freeMemory();
+    long parseStart = System.nanoTime();
+    retained.add(ModelHelper.extractDictionary(metadataExtractor));
+    long parseLatency = System.nanoTime() - parseStart;
+    System.gc();
+    long parseHeap = runtime.totalMemory() - runtime.freeMemory() - heapStart;
+
+    heapStart = runtime.totalMemory() - runtime.freeMemory();
+    long mapStart = System.nanoTime();
+    retained.add(ModelHelper.loadCompiledDictionary(context));
+    long mapLatency = System.nanoTime() - mapStart;
+    System.gc();
+    long mapHeap = runtime.totalMemory() - runtime.freeMemory() - heapStart;
+
+    Log.i(
+        TAG,
+        String.format(
+            "vocab.txt: %d us, %d KB retained. vocab.bin: %d us, %d KB retained.",
+            parseLatency / 1000, parseHeap / 1024, mapLatency / 1000, mapHeap / 1024));
+    assertThat(retained).doesNotContain(null);
+  }
+}
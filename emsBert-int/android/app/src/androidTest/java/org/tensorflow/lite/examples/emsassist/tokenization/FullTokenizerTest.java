@@ -16,13 +16,19 @@ package org.tensorflow.lite.examples.emsassist.tokenization;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import android.content.Context;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -56,6 +62,40 @@ public final class FullTokenizerTest {
     Assert.assertThrows(NullPointerException.class, () -> tokenizer.tokenize(nullString));
   }
 
+  @Test
+  public void matchesBasicAndWordpiecePipelineTest() throws Exception {
+    Context context = ApplicationProvider.getApplicationContext();
+    FullTokenizer tokenizer = new FullTokenizer(dic, /* doLowerCase= */ true);
+    BasicTokenizer basicTokenizer = new BasicTokenizer(/* doLowerCase= */ true);
+    WordpieceTokenizer wordpieceTokenizer = new WordpieceTokenizer(dic);
+
+    List<String> texts =
+        new ArrayList<>(
+            Arrays.asList(
+                "  Hi, This\tis an example.\n",
+                "I'm \"Spider-Man\"",
+                "no\u00a0break\u3000space\u0000 and\ufffd\u200b controls\u0085",
+                new String(new char[250]).replace('\0', 'a')));
+    for (int i = 0; i < 3; i++) {
+      try (BufferedReader reader =
+          new BufferedReader(
+              new InputStreamReader(context.getAssets().open("fitted_desc_test_" + i + ".txt")))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          texts.add(line);
+        }
+      }
+    }
+
+    for (String text : texts) {
+      List<String> expected = new ArrayList<>();
+      for (String token : basicTokenizer.tokenize(text)) {
+        expected.addAll(wordpieceTokenizer.tokenize(token));
+      }
+      assertThat(tokenizer.tokenize(text)).containsExactlyElementsIn(expected).inOrder();
+    }
+  }
+
   @Test
   public void convertTokensToIdsTest() throws Exception {
     FullTokenizer tokenizer = new FullTokenizer(dic, /* doLowerCase= */ true);
@@ -65,4 +105,151 @@ public final class FullTokenizerTest {
         .containsExactly(2204, 2851, 1010, 1045, 1005, 1049, 2115, 3836, 1012)
         .inOrder();
   }
+
+  @Test
+  public void tokenizeToIdsTest() throws Exception {
+    FullTokenizer tokenizer = new FullTokenizer(dic, /* doLowerCase= */ true);
+    String text = "Good morning, I'm your teacher.\n";
+    int[] ids = new int[12];
+    assertThat(tokenizer.tokenizeToIds(text, ids, 1, 11)).isEqualTo(9);
+    assertThat(ids)
+        .asList()
+        .containsExactly(0, 2204, 2851, 1010, 1045, 1005, 1049, 2115, 3836, 1012, 0, 0)
+        .inOrder();
+
+    // Stops at the capacity.
+    assertThat(tokenizer.tokenizeToIds(text, ids, 0, 3)).isEqualTo(3);
+    IntBuffer buffer = IntBuffer.allocate(4);
+    assertThat(tokenizer.tokenizeToIds(text, buffer, 16)).isEqualTo(4);
+    assertThat(buffer.position()).isEqualTo(4);
+    assertThat(buffer.array()).asList().containsExactly(2204, 2851, 1010, 1045).inOrder();
+
+    // Unknown words map to the id of [UNK] instead of null.
+    assertThat(tokenizer.tokenizeToIds("\u0378", ids, 0, 1)).isEqualTo(1);
+    assertThat(ids[0]).isEqualTo(dic.get("[UNK]"));
+  }
+
+  @Test
+  public void segmentationCacheTest() throws Exception {
+    FullTokenizer tokenizer = new FullTokenizer(dic, /* doLowerCase= */ true);
+    // Small enough that the words of the texts keep evicting each other.
+    FullTokenizer cachedTokenizer = new FullTokenizer(dic, /* doLowerCase= */ true, 4);
+    SegmentationCache cache = cachedTokenizer.getSegmentationCache();
+    assertThat(tokenizer.getSegmentationCache()).isNull();
+
+    String[] texts = {
+      "Chest pain, shortness of breath.", "shortness of breath and chest pain", "Chest pain"
+    };
+    for (int i = 0; i < 2; i++) {
+      for (String text : texts) {
+        assertThat(cachedTokenizer.tokenize(text))
+            .containsExactlyElementsIn(tokenizer.tokenize(text))
+            .inOrder();
+      }
+    }
+    assertThat(cache.size()).isEqualTo(4);
+    assertThat(cache.hitCount()).isGreaterThan(0L);
+    assertThat(cache.hitCount() + cache.missCount()).isEqualTo(30L);
+  }
+
+  @Test
+  public void shardedSegmentationCacheTest() throws Exception {
+    FullTokenizer tokenizer = new FullTokenizer(dic, /* doLowerCase= */ true);
+    // Large enough to be split into shards, small enough that they evict.
+    FullTokenizer cachedTokenizer = new FullTokenizer(dic, /* doLowerCase= */ true, 256);
+    SegmentationCache cache = cachedTokenizer.getSegmentationCache();
+    String[] texts = {
+      "Chest pain, shortness of breath.",
+      "Unresponsive patient, not breathing, no pulse; CPR in progress.",
+      "Fall from a ladder with a head injury and altered mental status.",
+      "Diabetic with low blood sugar, given oral glucose.",
+    };
+    List<List<String>> expected = new ArrayList<>();
+    for (String text : texts) {
+      expected.add(tokenizer.tokenize(text));
+    }
+
+    // Threads tokenizing at once go through different shards and never see another word's ids.
+    List<Thread> threads = new ArrayList<>();
+    List<Throwable> failures = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      int first = t;
+      Thread thread =
+          new Thread(
+              () -> {
+                try {
+                  for (int i = 0; i < 500; i++) {
+                    int text = (first + i) % texts.length;
+                    assertThat(cachedTokenizer.tokenize(texts[text] + " " + i))
+                        .containsExactlyElementsIn(tokenizer.tokenize(texts[text] + " " + i))
+                        .inOrder();
+                  }
+                } catch (Throwable e) {
+                  synchronized (failures) {
+                    failures.add(e);
+                  }
+                }
+              });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(failures).isEmpty();
+    assertThat(cache.size()).isAtMost(cache.capacity());
+    assertThat(cache.hitCount()).isGreaterThan(0L);
+    assertThat(cache.toString()).contains("shards=4");
+    for (int i = 0; i < texts.length; i++) {
+      assertThat(cachedTokenizer.tokenize(texts[i]))
+          .containsExactlyElementsIn(expected.get(i))
+          .inOrder();
+    }
+  }
+
+  @Test
+  public void cursorTest() throws Exception {
+    FullTokenizer tokenizer = new FullTokenizer(dic, /* doLowerCase= */ true);
+    String text = "Good morning, I'm your teacher.\n";
+    TokenCursor cursor = tokenizer.cursor(text);
+    List<Integer> ids = new ArrayList<>();
+    while (cursor.hasNext()) {
+      ids.add(cursor.next());
+    }
+    assertThat(ids).containsExactly(2204, 2851, 1010, 1045, 1005, 1049, 2115, 3836, 1012).inOrder();
+    Assert.assertThrows(NoSuchElementException.class, cursor::next);
+
+    // Reads continue where the previous one stopped.
+    int[] out = new int[9];
+    cursor.reset(text);
+    assertThat(cursor.read(out, 0, 4)).isEqualTo(4);
+    assertThat(cursor.read(out, 4, 16)).isEqualTo(5);
+    assertThat(out).asList().containsExactlyElementsIn(ids).inOrder();
+    assertThat(cursor.reset(text, 5, 12).read(out, 0, 9)).isEqualTo(1);
+    assertThat(out[0]).isEqualTo(2851);
+
+    // Only the chars needed for the ids read are scanned.
+    CharSequence endless =
+        new CharSequence() {
+          @Override
+          public int length() {
+            return Integer.MAX_VALUE;
+          }
+
+          @Override
+          public char charAt(int index) {
+            if (index > 1000) {
+              throw new AssertionError("Scanned past the ids read.");
+            }
+            return (index % 5 == 4) ? ' ' : "good".charAt(index % 5);
+          }
+
+          @Override
+          public CharSequence subSequence(int start, int end) {
+            throw new UnsupportedOperationException();
+          }
+        };
+    assertThat(tokenizer.cursor(endless).read(out, 0, 9)).isEqualTo(9);
+    assertThat(out).asList().containsExactly(2204, 2204, 2204, 2204, 2204, 2204, 2204, 2204, 2204);
+  }
 }
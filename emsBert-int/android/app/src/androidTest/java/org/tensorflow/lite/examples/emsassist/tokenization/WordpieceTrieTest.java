@@ -0,0 +1,154 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.tokenization;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.examples.emsassist.ml.ModelHelper;
+import org.tensorflow.lite.support.metadata.MetadataExtractor;
+
+/** Tests of {@link org.tensorflow.lite.examples.emsassist.tokenization.WordpieceTrie} */
+@RunWith(AndroidJUnit4.class)
+public final class WordpieceTrieTest {
+  private static final String TAG = "WordpieceTrieTest";
+  private static final String[] CORPUS_PATHS = {
+    "fitted_desc_test_0.txt", "fitted_desc_test_1.txt", "fitted_desc_test_2.txt"
+  };
+
+  private Map<String, Integer> dic;
+  private List<String> words;
+
+  @Before
+  public void setUp() throws IOException {
+    Context context = ApplicationProvider.getApplicationContext();
+    ByteBuffer buffer = ModelHelper.loadModelFile(context);
+    MetadataExtractor metadataExtractor = new MetadataExtractor(buffer);
+    dic = ModelHelper.extractDictionary(metadataExtractor);
+    assertThat(dic).isNotNull();
+    assertThat(dic).isNotEmpty();
+
+    BasicTokenizer basicTokenizer = new BasicTokenizer(/* doLowerCase= */ true);
+    words = new ArrayList<>();
+    for (String path : CORPUS_PATHS) {
+      try (BufferedReader reader =
+          new BufferedReader(new InputStreamReader(context.getAssets().open(path)))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          // Each line is "<narrative>\t<protocol code>".
+          words.addAll(basicTokenizer.tokenize(line.split("\t")[0]));
+        }
+      }
+    }
+    assertThat(words).isNotEmpty();
+  }
+
+  @Test
+  public void tokenizeWordTest() throws Exception {
+    WordpieceTrie trie = WordpieceTrie.build(dic);
+    char[] chars = "meaningfully".toCharArray();
+    int[] ids = new int[chars.length];
+    assertThat(trie.tokenizeWord(chars, 0, chars.length, ids, 0)).isEqualTo(2);
+    assertThat(trie.token(ids[0])).isEqualTo("meaningful");
+    assertThat(trie.token(ids[1])).isEqualTo("##ly");
+    assertThat(trie.tokenizeWord(chars, 0, 0, ids, 0)).isEqualTo(0);
+  }
+
+  @Test
+  public void matchesGreedyTokenizerOnCorpusTest() throws Exception {
+    WordpieceTokenizer tokenizer = new WordpieceTokenizer(dic);
+    for (String word : words) {
+      assertThat(tokenizer.tokenize(word)).containsExactlyElementsIn(greedyTokenize(word)).inOrder();
+    }
+  }
+
+  @Test
+  public void throughputTest() throws Exception {
+    WordpieceTrie trie = WordpieceTrie.build(dic);
+    List<char[]> wordChars = new ArrayList<>();
+    for (String word : words) {
+      wordChars.add(word.toCharArray());
+    }
+    int[] ids = new int[256];
+
+    long greedyStart = System.nanoTime();
+    long greedyPieces = 0;
+    for (String word : words) {
+      greedyPieces += greedyTokenize(word).size();
+    }
+    long greedyLatency = System.nanoTime() - greedyStart;
+
+    long trieStart = System.nanoTime();
+    long triePieces = 0;
+    for (char[] word : wordChars) {
+      triePieces += Math.max(1, trie.tokenizeWord(word, 0, word.length, ids, 0));
+    }
+    long trieLatency = System.nanoTime() - trieStart;
+
+    Log.i(
+        TAG,
+        String.format(
+            "%d words: greedy %d ms, trie %d ms (%.2fx)",
+            words.size(),
+            greedyLatency / 1000000,
+            trieLatency / 1000000,
+            (double) greedyLatency / trieLatency));
+    assertThat(triePieces).isEqualTo(greedyPieces);
+  }
+
+  /** The greedy longest-match-first tokenizer the trie replaces, kept as the reference. */
+  private List<String> greedyTokenize(String token) {
+    List<String> outputTokens = new ArrayList<>();
+    if (token.length() > 200) {
+      outputTokens.add("[UNK]");
+      return outputTokens;
+    }
+    int start = 0;
+    while (start < token.length()) {
+      String curSubStr = "";
+      int end = token.length();
+      while (start < end) {
+        String subStr =
+            (start == 0) ? token.substring(start, end) : "##" + token.substring(start, end);
+        if (dic.containsKey(subStr)) {
+          curSubStr = subStr;
+          break;
+        }
+        end--;
+      }
+      if ("".equals(curSubStr)) {
+        outputTokens.clear();
+        outputTokens.add("[UNK]");
+        return outputTokens;
+      }
+      outputTokens.add(curSubStr);
+      start = end;
+    }
+    return outputTokens;
+  }
+}
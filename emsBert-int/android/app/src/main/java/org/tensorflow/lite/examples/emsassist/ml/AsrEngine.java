@@ -0,0 +1,184 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * Conformer interpreter that lives as long as its owner instead of being created for every clip.
+ * Audio is padded with silence to the shortest of a few lengths that fits it, so consecutive clips
+ * of different durations mostly run at the same input shape and the interpreter doesn't allocate
+ * its tensors again. Clips longer than the longest bucket run at their own length. A direct buffer
+ * with room for the padding, e.g. from {@link WavReader}, is handed to the interpreter as it is;
+ * other input goes through a buffer of the engine. The output buffer is kept between clips.
+ *
+ * <p>Transcriptions are serialized, a single interpreter can't run concurrently.
+ */
+public final class AsrEngine implements StreamingTranscriber.Recognizer, AutoCloseable {
+  private static final String TAG = "AsrEngine";
+  // The previous per-click buffer size, grown if the model reports a longer output.
+  private static final int MIN_OUTPUT_SIZE = 2000;
+
+  private final SequenceBuckets buckets;
+  private final int sampleRate;
+  private Interpreter interpreter;
+  // Copy of the input that isn't direct or has no room for its padding.
+  private FloatBuffer scratch = allocate(0);
+  // Number of samples the input is resized to.
+  private int inputLength;
+  private IntBuffer output = IntBuffer.allocate(MIN_OUTPUT_SIZE);
+  private final Map<Integer, Object> outputs = new HashMap<>();
+  private long resizeCount;
+
+  /**
+   * Creates an interpreter of model with options, whose input is padded to one of bucketSeconds
+   * durations at sampleRate.
+   */
+  public AsrEngine(
+      ByteBuffer model, Interpreter.Options options, int sampleRate, int... bucketSeconds) {
+    this.sampleRate = sampleRate;
+    this.buckets =
+        new SequenceBuckets(Arrays.stream(bucketSeconds).map(s -> s * sampleRate).toArray());
+    this.interpreter = new Interpreter(model, options);
+    outputs.put(0, output);
+  }
+
+  /** Runs the shortest bucket once on silence, so the first clip doesn't pay for the cold run. */
+  public synchronized long warmUp() {
+    long start = System.nanoTime();
+    scratch = ensureCapacity(scratch, buckets.length(0));
+    run(scratch, 0);
+    long latency = (System.nanoTime() - start) / 1000000;
+    Log.v(TAG, "Warmed up at " + buckets.length(0) / sampleRate + " s in " + latency + " ms.");
+    return latency;
+  }
+
+  /** Returns the number of samples a clip of samples is padded to. */
+  @Override
+  public int paddedLength(int samples) {
+    return samples > buckets.maxLength() ? samples : buckets.length(buckets.bucketFor(samples));
+  }
+
+  /** Returns the text of audio, sampled at the rate of the engine. */
+  public synchronized String transcribe(float[] audio) {
+    scratch = ensureCapacity(scratch, paddedLength(audio.length));
+    scratch.clear();
+    scratch.put(audio);
+    scratch.flip();
+    return transcribe(scratch);
+  }
+
+  /**
+   * Same as above for the samples of audio from 0 to its limit. The padding is written after the
+   * limit if the buffer has room for it.
+   */
+  @Override
+  public synchronized String transcribe(FloatBuffer audio) {
+    long start = System.currentTimeMillis();
+    int samples = audio.limit();
+    FloatBuffer input = audio;
+    if (!audio.isDirect() || audio.capacity() < paddedLength(samples)) {
+      scratch = ensureCapacity(scratch, paddedLength(samples));
+      scratch.clear();
+      scratch.put((FloatBuffer) audio.duplicate().position(0));
+      input = scratch;
+    }
+    int size = run(input, samples);
+    StringBuilder text = new StringBuilder(size);
+    for (int i = 0; i < size; i++) {
+      int c = output.get(i);
+      if (c != 0) {
+        text.append((char) c);
+      }
+    }
+    Log.i(
+        TAG,
+        "******** Conformer Latency : "
+            + (System.currentTimeMillis() - start)
+            + " ms for "
+            + samples / sampleRate
+            + " s at "
+            + inputLength / sampleRate
+            + " s");
+    return text.toString();
+  }
+
+  /** Returns the number of times the input was resized, once per bucket switch. */
+  public synchronized long resizeCount() {
+    return resizeCount;
+  }
+
+  /** Returns whether the engine is closed, transcriptions then throw IllegalStateException. */
+  public synchronized boolean isClosed() {
+    return interpreter == null;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (interpreter != null) {
+      interpreter.close();
+      interpreter = null;
+    }
+  }
+
+  /**
+   * Runs the first samples of input, padded with silence to their bucket, and returns the number
+   * of ints of the output.
+   */
+  private int run(FloatBuffer input, int samples) {
+    if (interpreter == null) {
+      throw new IllegalStateException("The ASR engine is closed.");
+    }
+    int length = paddedLength(samples);
+    if (length != inputLength) {
+      interpreter.resizeInput(0, new int[] {length});
+      interpreter.allocateTensors();
+      inputLength = length;
+      resizeCount++;
+      int expected = interpreter.getOutputTensor(0).numElements();
+      if (expected > output.capacity()) {
+        output = IntBuffer.allocate(expected);
+        outputs.put(0, output);
+      }
+    }
+    input.limit(length);
+    for (int i = samples; i < length; i++) {
+      input.put(i, 0);
+    }
+    input.position(0);
+
+    output.rewind();
+    interpreter.runForMultipleInputsOutputs(new Object[] {input}, outputs);
+    // The clip ends where it did, the padding isn't part of it.
+    input.limit(samples);
+    return Math.min(interpreter.getOutputTensor(0).shape()[0], output.capacity());
+  }
+
+  private static FloatBuffer ensureCapacity(FloatBuffer buffer, int capacity) {
+    return buffer.capacity() >= capacity ? buffer : allocate(capacity);
+  }
+
+  private static FloatBuffer allocate(int floats) {
+    return ByteBuffer.allocateDirect(4 * floats).order(ByteOrder.nativeOrder()).asFloatBuffer();
+  }
+}
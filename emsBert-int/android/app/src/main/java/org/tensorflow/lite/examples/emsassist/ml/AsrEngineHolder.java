@@ -0,0 +1,154 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The {@link AsrEngine} of the process, kept while an activity uses it and for a while after, so
+ * a rotation or coming back to the app doesn't map the Conformer, create its interpreter and warm
+ * it up again. Works like {@link QaClientHolder}: users acquire it when they start and release it
+ * when they stop, the engine is closed once nobody has acquired it for the idle timeout, or at
+ * once if the system asks the process to trim its memory in the background.
+ *
+ * <p>Loads and closes run on a thread of the holder, a close waits there for the clip being
+ * transcribed. It's safe to use from several threads.
+ */
+public final class AsrEngineHolder implements ComponentCallbacks2 {
+  private static final String TAG = "AsrEngineHolder";
+  private static final long DEFAULT_IDLE_TIMEOUT_SECONDS = 60;
+
+  private static AsrEngineHolder instance;
+
+  private final ScheduledThreadPoolExecutor executor;
+  private long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(DEFAULT_IDLE_TIMEOUT_SECONDS);
+  private int refCount;
+  // The engine loaded or loading since the last close, null if there's none.
+  private CompletableFuture<AsrEngine> engine;
+  private ScheduledFuture<?> pendingClose;
+
+  /** Returns the holder of the process, created on the first call. */
+  public static synchronized AsrEngineHolder get(Context context) {
+    if (instance == null) {
+      instance = new AsrEngineHolder();
+      context.getApplicationContext().registerComponentCallbacks(instance);
+    }
+    return instance;
+  }
+
+  AsrEngineHolder() {
+    this(
+        new ScheduledThreadPoolExecutor(
+            1,
+            runnable -> {
+              Thread thread = new Thread(runnable, TAG);
+              thread.setDaemon(true);
+              return thread;
+            }));
+  }
+
+  /** Same as above, loading and closing on executor, which must run its tasks in order. */
+  AsrEngineHolder(ScheduledThreadPoolExecutor executor) {
+    this.executor = executor;
+    executor.setRemoveOnCancelPolicy(true);
+  }
+
+  /** Sets how long the engine is kept once it's released by everyone. */
+  public synchronized void setIdleTimeout(long timeout, TimeUnit unit) {
+    this.idleTimeoutMillis = unit.toMillis(timeout);
+  }
+
+  /**
+   * Returns the engine, loaded by loader on the thread of the holder unless it's loaded or loading
+   * already, or the last load failed.
+   */
+  public synchronized CompletableFuture<AsrEngine> acquire(Supplier<AsrEngine> loader) {
+    refCount++;
+    if (pendingClose != null) {
+      pendingClose.cancel(false);
+      pendingClose = null;
+    }
+    if (engine == null || engine.isCompletedExceptionally()) {
+      engine = CompletableFuture.supplyAsync(loader, executor);
+    }
+    return engine;
+  }
+
+  /** Releases an acquire, the engine is closed after the idle timeout unless acquired again. */
+  public synchronized void release() {
+    if (refCount == 0) {
+      throw new IllegalStateException("Released more often than acquired.");
+    }
+    refCount--;
+    if (refCount == 0 && engine != null) {
+      pendingClose = executor.schedule(this::closeIfIdle, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public synchronized int refCount() {
+    return refCount;
+  }
+
+  /** Closes an idle engine once the process is in the background. */
+  @Override
+  public void onTrimMemory(int level) {
+    if (level < TRIM_MEMORY_BACKGROUND) {
+      return;
+    }
+    synchronized (this) {
+      if (refCount > 0 || engine == null) {
+        return;
+      }
+      Log.v(TAG, "Closing the idle engine, trim level " + level);
+      if (pendingClose != null) {
+        pendingClose.cancel(false);
+      }
+      pendingClose = null;
+      executor.execute(this::closeIfIdle);
+    }
+  }
+
+  @Override
+  public void onLowMemory() {
+    onTrimMemory(TRIM_MEMORY_COMPLETE);
+  }
+
+  @Override
+  public void onConfigurationChanged(Configuration configuration) {}
+
+  private void closeIfIdle() {
+    CompletableFuture<AsrEngine> closed;
+    synchronized (this) {
+      // Acquired again since the close was scheduled, or closed already.
+      if (refCount > 0 || engine == null) {
+        return;
+      }
+      closed = engine;
+      engine = null;
+      pendingClose = null;
+    }
+    Log.v(TAG, "Closing the idle engine.");
+    // Loads run on this thread too, so the engine is loaded or failed by now.
+    closed.thenAccept(AsrEngine::close);
+  }
+}
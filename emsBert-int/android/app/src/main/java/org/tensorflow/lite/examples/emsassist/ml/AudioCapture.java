@@ -0,0 +1,126 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import android.Manifest;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import androidx.annotation.RequiresPermission;
+
+/**
+ * Thread that reads 16 bit PCM frames from a source, the microphone or a synthetic one in tests,
+ * and writes them into a {@link PcmRingBuffer}. The ring is finished once the capture stops or the
+ * source ends, so its reader knows no more samples come.
+ */
+public final class AudioCapture implements AutoCloseable {
+  /** Where samples come from, e.g. AudioRecord::read. */
+  public interface Source {
+    /**
+     * Reads up to length samples into buffer from offset, waiting for them. Returns their number,
+     * or a negative value once there are no more.
+     */
+    int read(short[] buffer, int offset, int length);
+  }
+
+  private final Source source;
+  private final PcmRingBuffer ring;
+  private final short[] frame;
+  private final Runnable begin;
+  private final Runnable end;
+  private final Thread thread;
+  private volatile boolean stopped;
+
+  /** Captures frames of frameSamples samples from source into ring, once started. */
+  public AudioCapture(Source source, PcmRingBuffer ring, int frameSamples) {
+    this(source, ring, frameSamples, () -> {}, () -> {});
+  }
+
+  private AudioCapture(
+      Source source, PcmRingBuffer ring, int frameSamples, Runnable begin, Runnable end) {
+    if (frameSamples < 1 || frameSamples > ring.capacity()) {
+      throw new IllegalArgumentException("Frames of " + frameSamples + " samples don't fit.");
+    }
+    this.source = source;
+    this.ring = ring;
+    this.frame = new short[frameSamples];
+    this.begin = begin;
+    this.end = end;
+    this.thread = new Thread(this::capture, "AudioCapture");
+    thread.setDaemon(true);
+  }
+
+  /** Captures the microphone, tuned for speech, at sampleRate in mono. */
+  @RequiresPermission(Manifest.permission.RECORD_AUDIO)
+  public static AudioCapture microphone(PcmRingBuffer ring, int sampleRate, int frameSamples) {
+    int minBufferBytes =
+        AudioRecord.getMinBufferSize(
+            sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+    if (minBufferBytes <= 0) {
+      throw new IllegalStateException(
+          "16 bit mono capture at " + sampleRate + " Hz isn't supported.");
+    }
+    // Room for a couple of frames, so a late read doesn't lose samples.
+    AudioRecord record =
+        new AudioRecord(
+            MediaRecorder.AudioSource.VOICE_RECOGNITION,
+            sampleRate,
+            AudioFormat.CHANNEL_IN_MONO,
+            AudioFormat.ENCODING_PCM_16BIT,
+            Math.max(minBufferBytes, 2 * 2 * frameSamples));
+    if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+      record.release();
+      throw new IllegalStateException("Can't open the microphone.");
+    }
+    return new AudioCapture(
+        record::read,
+        ring,
+        frameSamples,
+        record::startRecording,
+        () -> {
+          record.stop();
+          record.release();
+        });
+  }
+
+  public void start() {
+    thread.start();
+  }
+
+  /** Stops after the frame being read, the ring is then finished. */
+  @Override
+  public void close() {
+    stopped = true;
+  }
+
+  private void capture() {
+    try {
+      begin.run();
+      while (!stopped) {
+        int count = source.read(frame, 0, frame.length);
+        if (count < 0) {
+          break;
+        }
+        ring.write(frame, 0, count);
+      }
+    } finally {
+      try {
+        end.run();
+      } finally {
+        ring.finish();
+      }
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import java.util.Arrays;
+
+/**
+ * Picks the batch size of offline inference from the latency measured so far. Sizes are powers of
+ * 2 up to a maximum, each with a moving average of its cost per query and position, as batches of
+ * sorted queries come in different sequence lengths. The sizer climbs to the next size while it's
+ * unmeasured or cheaper, settles on the cheapest one, and probes a neighbour now and then so it
+ * follows the device as it heats up or gets busy. Not thread safe.
+ */
+public final class BatchSizer {
+  // Weight of the latest batch in the moving averages.
+  private static final double ALPHA = 0.25;
+  // Batches run at the cheapest size between two probes of a neighbour.
+  private static final int PROBE_INTERVAL = 16;
+
+  private final int[] sizes;
+  // Nanoseconds per query and position at each size, NaN until it's measured.
+  private final double[] costs;
+  // Number of sizes that may be picked.
+  private int limit;
+  private int current;
+  private int sinceProbe;
+  private boolean probeUp = true;
+
+  /** Creates a sizer that starts at a batch of 1 and never goes over maxBatchSize. */
+  public BatchSizer(int maxBatchSize) {
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("The maximum batch size must be positive.");
+    }
+    int count = 32 - Integer.numberOfLeadingZeros(maxBatchSize);
+    this.sizes = new int[count];
+    for (int i = 0; i < count; i++) {
+      sizes[i] = 1 << i;
+    }
+    this.costs = new double[count];
+    this.limit = count;
+    Arrays.fill(costs, Double.NaN);
+  }
+
+  /** Returns the size of the next batch. */
+  public int batchSize() {
+    return sizes[current];
+  }
+
+  /** Returns the largest size the sizer may pick. */
+  public int maxBatchSize() {
+    return sizes[limit - 1];
+  }
+
+  /**
+   * Records that a batch of batchSize queries padded to seqLen took latencyNanos, and picks the
+   * size of the next one. Batches of other sizes than the sizes it picks, e.g. the remainder of a
+   * list, are ignored.
+   */
+  public void record(int batchSize, int seqLen, long latencyNanos) {
+    int index = Integer.numberOfTrailingZeros(batchSize);
+    if (index >= limit || sizes[index] != batchSize) {
+      return;
+    }
+    double cost = (double) latencyNanos / batchSize / seqLen;
+    costs[index] = Double.isNaN(costs[index]) ? cost : costs[index] + ALPHA * (cost - costs[index]);
+
+    int cheapest = cheapest();
+    if (cheapest == current && current + 1 < limit && Double.isNaN(costs[current + 1])) {
+      current++;
+    } else if (++sinceProbe >= PROBE_INTERVAL) {
+      sinceProbe = 0;
+      int probe = probeUp ? cheapest + 1 : cheapest - 1;
+      probeUp = !probeUp;
+      current = probe >= 0 && probe < limit ? probe : cheapest;
+    } else {
+      current = cheapest;
+    }
+  }
+
+  /** Stops picking sizes over maxBatchSize, e.g. when the model can't be resized to them. */
+  public void limit(int maxBatchSize) {
+    limit = Math.min(limit, Math.max(1, 32 - Integer.numberOfLeadingZeros(maxBatchSize)));
+    current = Math.min(current, limit - 1);
+  }
+
+  private int cheapest() {
+    int cheapest = current;
+    for (int i = 0; i < limit; i++) {
+      if (!Double.isNaN(costs[i])
+          && (Double.isNaN(costs[cheapest]) || costs[i] < costs[cheapest])) {
+        cheapest = i;
+      }
+    }
+    return cheapest;
+  }
+
+  @Override
+  public String toString() {
+    return "BatchSizer{batchSize=" + batchSize() + ", costs=" + Arrays.toString(costs) + "}";
+  }
+}
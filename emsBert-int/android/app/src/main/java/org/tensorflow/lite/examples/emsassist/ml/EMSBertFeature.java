@@ -1,20 +1,56 @@
 package org.tensorflow.lite.examples.emsassist.ml;
 
-import com.google.common.primitives.Ints;
-
-import java.util.List;
+import java.util.Arrays;
 
+/**
+ * Feature to be fed into the EMS Bert model. The arrays have a fixed capacity and can be refilled
+ * by {@link FeatureConverter#convertInto(String, EMSBertFeature)}, which only clears the prefix
+ * used by the previous query.
+ */
 public class EMSBertFeature {
     public final int[] inputIds;
     public final int[] inputMask;
     public final int[] segmentIds;
+    // Number of leading positions that may be non zero, the rest is padding.
+    private int length;
+
+    public EMSBertFeature(int[] inputIds, int[] inputMask, int[] segmentIds) {
+        this.inputIds = inputIds;
+        this.inputMask = inputMask;
+        this.segmentIds = segmentIds;
+        this.length = inputIds.length;
+    }
+
+    /** Creates an empty feature of maxSeqLen positions. */
+    public EMSBertFeature(int maxSeqLen) {
+        this(new int[maxSeqLen], new int[maxSeqLen], new int[maxSeqLen]);
+        this.length = 0;
+    }
+
+    /** Returns the number of positions that aren't padding. */
+    public int length() {
+        return length;
+    }
+
+    /** Returns a copy of the same length, e.g. to predict a feature that's updated in place. */
+    public EMSBertFeature copy() {
+        EMSBertFeature copy = new EMSBertFeature(inputIds.length);
+        System.arraycopy(inputIds, 0, copy.inputIds, 0, length);
+        System.arraycopy(segmentIds, 0, copy.segmentIds, 0, length);
+        copy.setLength(length);
+        return copy;
+    }
 
-    public EMSBertFeature(
-            List<Integer> inputIds,
-            List<Integer> inputMask,
-            List<Integer> segmentIds) {
-        this.inputIds = Ints.toArray(inputIds);
-        this.inputMask = Ints.toArray(inputMask);
-        this.segmentIds = Ints.toArray(segmentIds);
+    /**
+     * Unmasks inputIds[0, length), which the caller has just written, and clears what the previous
+     * length used past it. Segment ids are left at 0.
+     */
+    void setLength(int length) {
+        if (length < this.length) {
+            Arrays.fill(inputIds, length, this.length, 0);
+            Arrays.fill(inputMask, length, this.length, 0);
+        }
+        Arrays.fill(inputMask, 0, length, 1);
+        this.length = length;
     }
 }
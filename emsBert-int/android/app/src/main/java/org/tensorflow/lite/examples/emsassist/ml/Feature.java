@@ -38,4 +38,17 @@ public final class Feature {
     this.origTokens = origTokens;
     this.tokenToOrigMap = tokenToOrigMap;
   }
+
+  public Feature(
+      int[] inputIds,
+      int[] inputMask,
+      int[] segmentIds,
+      List<String> origTokens,
+      Map<Integer, Integer> tokenToOrigMap) {
+    this.inputIds = inputIds;
+    this.inputMask = inputMask;
+    this.segmentIds = segmentIds;
+    this.origTokens = origTokens;
+    this.tokenToOrigMap = tokenToOrigMap;
+  }
 }
@@ -0,0 +1,122 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Inputs of the EMS Bert model for a batch of queries, held in direct native order buffers of
+ * [batchSize, seqLen] int32s. They are handed to the interpreter as they are, which copies each one
+ * into its tensor with a single memcpy instead of walking Java arrays. Rows are filled by {@link
+ * FeatureConverter#convertInto(String, FeatureBuffers, int)}, which only clears the positions the
+ * previous query of the row used.
+ */
+public final class FeatureBuffers {
+  private final int batchSize;
+  private final int seqLen;
+  private final ByteBuffer inputIds;
+  private final ByteBuffer inputMask;
+  private final ByteBuffer segmentIds;
+  private final IntBuffer ids;
+  private final IntBuffer mask;
+  // Number of leading positions of each row that may be non zero, the rest is padding.
+  private final int[] lengths;
+
+  public FeatureBuffers(int batchSize, int seqLen) {
+    this.batchSize = batchSize;
+    this.seqLen = seqLen;
+    this.inputIds = allocate(batchSize * seqLen);
+    this.inputMask = allocate(batchSize * seqLen);
+    this.segmentIds = allocate(batchSize * seqLen);
+    this.ids = inputIds.asIntBuffer();
+    this.mask = inputMask.asIntBuffer();
+    this.lengths = new int[batchSize];
+  }
+
+  public int batchSize() {
+    return batchSize;
+  }
+
+  public int seqLen() {
+    return seqLen;
+  }
+
+  public ByteBuffer inputIds() {
+    return inputIds;
+  }
+
+  public ByteBuffer inputMask() {
+    return inputMask;
+  }
+
+  public ByteBuffer segmentIds() {
+    return segmentIds;
+  }
+
+  /** Returns the number of positions of row that aren't padding. */
+  public int length(int row) {
+    return lengths[row];
+  }
+
+  /** Copies a row into a feature of seqLen positions, e.g. to compare it with convert(). */
+  public EMSBertFeature toFeature(int row) {
+    EMSBertFeature feature = new EMSBertFeature(seqLen);
+    for (int i = 0; i < seqLen; i++) {
+      feature.inputIds[i] = ids.get(row * seqLen + i);
+      feature.inputMask[i] = mask.get(row * seqLen + i);
+      feature.segmentIds[i] = segmentIds.getInt(4 * (row * seqLen + i));
+    }
+    return feature;
+  }
+
+  /**
+   * Copies the positions of a feature that aren't padding into a row, e.g. to run a query
+   * converted at the longest sequence length at the shortest one that fits it.
+   */
+  public void put(int row, EMSBertFeature feature) {
+    int length = feature.length();
+    if (length > seqLen) {
+      throw new IllegalArgumentException(
+          "A feature of " + length + " positions doesn't fit in " + seqLen + ".");
+    }
+    ids.position(row * seqLen);
+    ids.put(feature.inputIds, 0, length);
+    setLength(row, length);
+  }
+
+  /** The ids of every row, positioned by the caller. */
+  IntBuffer ids() {
+    return ids;
+  }
+
+  /** Same as {@link EMSBertFeature#setLength(int)} for one row. */
+  void setLength(int row, int length) {
+    int start = row * seqLen;
+    for (int i = length; i < lengths[row]; i++) {
+      ids.put(start + i, 0);
+      mask.put(start + i, 0);
+    }
+    for (int i = 0; i < length; i++) {
+      mask.put(start + i, 1);
+    }
+    lengths[row] = length;
+  }
+
+  private static ByteBuffer allocate(int ints) {
+    return ByteBuffer.allocateDirect(4 * ints).order(ByteOrder.nativeOrder());
+  }
+}
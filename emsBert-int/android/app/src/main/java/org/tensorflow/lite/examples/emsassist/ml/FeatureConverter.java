@@ -14,163 +14,173 @@ limitations under the License.
 ==============================================================================*/
 package org.tensorflow.lite.examples.emsassist.ml;
 
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.tensorflow.lite.examples.emsassist.tokenization.FullTokenizer;
+import org.tensorflow.lite.examples.emsassist.tokenization.SegmentationCache;
+import org.tensorflow.lite.examples.emsassist.tokenization.TokenCursor;
 
 /** Convert String to features that can be fed into BERT model. */
 public final class FeatureConverter {
 
   private static final String TAG = "FeatureConverter";
+  // Context words are split on whitespace, as origTokens is what answers are built from.
+  private static final Pattern CONTEXT_WORD = Pattern.compile("\\S+");
   private final FullTokenizer tokenizer;
+  // Cursors are reset from query to query, one per thread as they hold the scan state.
+  private final ThreadLocal<TokenCursor> cursors;
+  // Features of convertLocal, one per thread as well.
+  private final ThreadLocal<EMSBertFeature> localFeatures;
   private final int maxQueryLen;
   private final int maxSeqLen;
+  private final int clsId;
+  private final int sepId;
 
   public FeatureConverter(
       Map<String, Integer> inputDic, boolean doLowerCase, int maxQueryLen, int maxSeqLen) {
-    this.tokenizer = new FullTokenizer(inputDic, doLowerCase);
+    this(inputDic, doLowerCase, maxQueryLen, maxSeqLen, 0);
+  }
+
+  /** Same as above, caching the word pieces of up to cacheCapacity words (see FullTokenizer). */
+  public FeatureConverter(
+      Map<String, Integer> inputDic,
+      boolean doLowerCase,
+      int maxQueryLen,
+      int maxSeqLen,
+      int cacheCapacity) {
+    this.tokenizer = new FullTokenizer(inputDic, doLowerCase, cacheCapacity);
+    this.cursors = ThreadLocal.withInitial(() -> tokenizer.cursor(""));
+    this.clsId = inputDic.get("[CLS]");
+    this.sepId = inputDic.get("[SEP]");
     this.maxQueryLen = maxQueryLen;
     this.maxSeqLen = maxSeqLen;
+    this.localFeatures = ThreadLocal.withInitial(() -> new EMSBertFeature(maxSeqLen));
   }
 
-  public EMSBertFeature convert(String query) {
-    List<String> queryTokens = tokenizer.tokenize(query);
-//    Log.v(TAG, String.format("tokens length of the query: %s" , queryTokens.size()));
-    if (queryTokens.size() > maxQueryLen - 2) {
-      queryTokens = queryTokens.subList(0, maxQueryLen - 2);
-    }
+  /** Returns the word piece cache of the tokenizer, or null if it's disabled. */
+  public SegmentationCache getSegmentationCache() {
+    return tokenizer.getSegmentationCache();
+  }
 
-//    List<String> origTokens = Arrays.asList(context.trim().split("\\s+"));
-//    List<Integer> tokenToOrigIndex = new ArrayList<>();
-//    List<String> allDocTokens = new ArrayList<>();
-//    for (int i = 0; i < origTokens.size(); i++) {
-//      String token = origTokens.get(i);
-//      List<String> subTokens = tokenizer.tokenize(token);
-//      for (String subToken : subTokens) {
-//        tokenToOrigIndex.add(i);
-//        allDocTokens.add(subToken);
-//      }
-//    }
-
-    // -3 accounts for [CLS], [SEP] and [SEP].
-//    int maxContextLen = maxSeqLen - queryTokens.size() - 3;
-//    if (allDocTokens.size() > maxContextLen) {
-//      allDocTokens = allDocTokens.subList(0, maxContextLen);
-//    }
-
-    List<String> tokens = new ArrayList<>();
-    List<Integer> segmentIds = new ArrayList<>();
+  /** Starts a session that updates the feature of a transcript as text is appended to it. */
+  public FeatureSession newSession() {
+    return new FeatureSession(tokenizer, clsId, sepId, maxQueryLen, maxSeqLen);
+  }
 
-    // Map token index to original index (in feature.origTokens).
-//    Map<Integer, Integer> tokenToOrigMap = new HashMap<>();
+  public EMSBertFeature convert(String query) {
+    return convertInto(query, new EMSBertFeature(maxSeqLen));
+  }
+
+  /**
+   * Same as {@link #convert(String)}, but fills feature in place so it can be reused from query
+   * to query. Only the positions used by the previous query are cleared.
+   */
+  public EMSBertFeature convertInto(String query, EMSBertFeature feature) {
+    if (feature.inputIds.length != maxSeqLen) {
+      throw new IllegalArgumentException(
+          "The feature has " + feature.inputIds.length + " positions, expected " + maxSeqLen + ".");
+    }
+    int[] inputIds = feature.inputIds;
 
     // Start of generating the features.
-    tokens.add("[CLS]");
-    segmentIds.add(0);
+    inputIds[0] = clsId;
 
-    // For query input.
-    for (String queryToken : queryTokens) {
-      tokens.add(queryToken);
-      segmentIds.add(0);
-    }
+    // For query input, -2 accounts for [CLS] and [SEP].
+    int queryLen =
+        cursors.get().reset(query).read(inputIds, 1, Math.min(maxQueryLen, maxSeqLen) - 2);
+//    Log.v(TAG, String.format("tokens length of the query: %s" , queryLen));
 
     // For Separation.
-    tokens.add("[SEP]");
-    segmentIds.add(0);
+    inputIds[queryLen + 1] = sepId;
 
-    // For Text Input.
-//    for (int i = 0; i < allDocTokens.size(); i++) {
-//      String docToken = allDocTokens.get(i);
-//      tokens.add(docToken);
-//      segmentIds.add(1);
-//      tokenToOrigMap.put(tokens.size(), tokenToOrigIndex.get(i));
-//    }
-
-    // For ending mark.
-//    tokens.add("[SEP]");
-//    segmentIds.add(1);
+    // The rest is 0 as padding, and every segment id is 0 for the single query segment.
+    feature.setLength(queryLen + 2);
+    return feature;
+  }
 
-    List<Integer> inputIds = tokenizer.convertTokensToIds(tokens);
-    List<Integer> inputMask = new ArrayList<>(Collections.nCopies(inputIds.size(), 1));
+  /**
+   * Same as {@link #convert(String)} into a feature of the calling thread, which its next call
+   * overwrites, e.g. to look a query up before it's copied anywhere.
+   */
+  public EMSBertFeature convertLocal(String query) {
+    return convertInto(query, localFeatures.get());
+  }
 
-    while (inputIds.size() < maxSeqLen) {
-      inputIds.add(0);
-      inputMask.add(0);
-      segmentIds.add(0);
+  /**
+   * Same as {@link #convertInto(String, EMSBertFeature)}, but fills a row of direct buffers. The
+   * query is cut to fit the seqLen of the buffers.
+   */
+  public void convertInto(String query, FeatureBuffers buffers, int row) {
+    if (row < 0 || row >= buffers.batchSize()) {
+      throw new IndexOutOfBoundsException(
+          "Row " + row + " out of a batch of " + buffers.batchSize() + ".");
     }
+    int seqLen = buffers.seqLen();
+    int start = row * seqLen;
+    IntBuffer ids = buffers.ids();
 
-    return new EMSBertFeature(inputIds, inputMask, segmentIds);
-  }
-
+    // Start of generating the features.
+    ids.put(start, clsId);
 
-  public Feature convert(String query, String context) {
-    List<String> queryTokens = tokenizer.tokenize(query);
-    if (queryTokens.size() > maxQueryLen) {
-      queryTokens = queryTokens.subList(0, maxQueryLen);
-    }
+    // For query input, -2 accounts for [CLS] and [SEP].
+    ids.position(start + 1);
+    int queryLen = cursors.get().reset(query).read(ids, Math.min(maxQueryLen, seqLen) - 2);
 
-    List<String> origTokens = Arrays.asList(context.trim().split("\\s+"));
-    List<Integer> tokenToOrigIndex = new ArrayList<>();
-    List<String> allDocTokens = new ArrayList<>();
-    for (int i = 0; i < origTokens.size(); i++) {
-      String token = origTokens.get(i);
-      List<String> subTokens = tokenizer.tokenize(token);
-      for (String subToken : subTokens) {
-        tokenToOrigIndex.add(i);
-        allDocTokens.add(subToken);
-      }
-    }
+    // For Separation.
+    ids.put(start + queryLen + 1, sepId);
 
-    // -3 accounts for [CLS], [SEP] and [SEP].
-    int maxContextLen = maxSeqLen - queryTokens.size() - 3;
-    if (allDocTokens.size() > maxContextLen) {
-      allDocTokens = allDocTokens.subList(0, maxContextLen);
-    }
+    // The rest is 0 as padding, and every segment id is 0 for the single query segment.
+    buffers.setLength(row, queryLen + 2);
+  }
 
-    List<String> tokens = new ArrayList<>();
-    List<Integer> segmentIds = new ArrayList<>();
 
-    // Map token index to original index (in feature.origTokens).
-    Map<Integer, Integer> tokenToOrigMap = new HashMap<>();
+  public Feature convert(String query, String context) {
+    int[] inputIds = new int[maxSeqLen];
+    int[] inputMask = new int[maxSeqLen];
+    int[] segmentIds = new int[maxSeqLen];
 
     // Start of generating the features.
-    tokens.add("[CLS]");
-    segmentIds.add(0);
+    inputIds[0] = clsId;
 
-    // For query input.
-    for (String queryToken : queryTokens) {
-      tokens.add(queryToken);
-      segmentIds.add(0);
-    }
+    // For query input, -3 accounts for [CLS], [SEP] and [SEP].
+    int queryLen =
+        tokenizer.tokenizeToIds(query, inputIds, 1, Math.min(maxQueryLen, maxSeqLen - 3));
 
     // For Separation.
-    tokens.add("[SEP]");
-    segmentIds.add(0);
-
-    // For Text Input.
-    for (int i = 0; i < allDocTokens.size(); i++) {
-      String docToken = allDocTokens.get(i);
-      tokens.add(docToken);
-      segmentIds.add(1);
-      tokenToOrigMap.put(tokens.size(), tokenToOrigIndex.get(i));
+    inputIds[queryLen + 1] = sepId;
+
+    // For Text Input. Context words are only split and tokenized until the sequence is full.
+    int contextStart = queryLen + 2;
+    int contextEnd = maxSeqLen - 1;
+    String trimmedContext = context.trim();
+    List<String> origTokens = new ArrayList<>();
+    // Map token index to original index (in feature.origTokens).
+    Map<Integer, Integer> tokenToOrigMap = new HashMap<>();
+    TokenCursor cursor = tokenizer.cursor(trimmedContext);
+    Matcher words = CONTEXT_WORD.matcher(trimmedContext);
+    int length = contextStart;
+    while (length < contextEnd && words.find()) {
+      origTokens.add(words.group());
+      int read =
+          cursor
+              .reset(trimmedContext, words.start(), words.end())
+              .read(inputIds, length, contextEnd - length);
+      for (int i = 0; i < read; i++) {
+        length++;
+        tokenToOrigMap.put(length, origTokens.size() - 1);
+      }
     }
 
     // For ending mark.
-    tokens.add("[SEP]");
-    segmentIds.add(1);
-
-    List<Integer> inputIds = tokenizer.convertTokensToIds(tokens);
-    List<Integer> inputMask = new ArrayList<>(Collections.nCopies(inputIds.size(), 1));
-
-    while (inputIds.size() < maxSeqLen) {
-      inputIds.add(0);
-      inputMask.add(0);
-      segmentIds.add(0);
-    }
+    inputIds[length] = sepId;
+    Arrays.fill(segmentIds, contextStart, length + 1, 1);
+    Arrays.fill(inputMask, 0, length + 1, 1);
 
     return new Feature(inputIds, inputMask, segmentIds, origTokens, tokenToOrigMap);
   }
@@ -0,0 +1,115 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import org.tensorflow.lite.examples.emsassist.tokenization.FullTokenizer;
+import org.tensorflow.lite.examples.emsassist.tokenization.TokenCursor;
+
+/**
+ * Feature of a transcript that grows, e.g. as partial ASR results come in. Appended text is only
+ * tokenized from the start of the last word, which it may extend, and the ids before it are kept,
+ * so feeding a transcript word by word costs linear time in its length. The feature always equals
+ * {@link FeatureConverter#convert(String)} of the whole transcript and is updated in place.
+ *
+ * <p>Created by {@link FeatureConverter#newSession()}, not thread safe.
+ */
+public final class FeatureSession {
+  private final int capacity;
+  private final int sepId;
+  private final EMSBertFeature feature;
+  private final StringBuilder transcript = new StringBuilder();
+  private final TokenCursor cursor;
+  // Offset in the transcript of the word each query id comes from.
+  private final int[] wordStarts;
+  private int queryLen;
+
+  FeatureSession(FullTokenizer tokenizer, int clsId, int sepId, int maxQueryLen, int maxSeqLen) {
+    // -2 accounts for [CLS] and [SEP].
+    this.capacity = Math.min(maxQueryLen, maxSeqLen) - 2;
+    this.sepId = sepId;
+    this.feature = new EMSBertFeature(maxSeqLen);
+    this.cursor = tokenizer.cursor(transcript);
+    this.wordStarts = new int[capacity];
+    feature.inputIds[0] = clsId;
+    setQueryLen(0);
+  }
+
+  /** Appends text to the transcript and returns the updated feature. */
+  public EMSBertFeature append(CharSequence text) {
+    int restart = transcript.length();
+    transcript.append(text);
+
+    // Drop the ids of the last word, the appended text may go on with it.
+    int length = queryLen;
+    if (length > 0) {
+      restart = wordStarts[length - 1];
+      while (length > 0 && wordStarts[length - 1] == restart) {
+        length--;
+      }
+    }
+
+    cursor.reset(transcript, restart, transcript.length());
+    int[] inputIds = feature.inputIds;
+    while (length < capacity && cursor.hasNext()) {
+      wordStarts[length] = cursor.wordStart();
+      inputIds[1 + length++] = cursor.next();
+    }
+    setQueryLen(length);
+    return feature;
+  }
+
+  /**
+   * Replaces the transcript with text, which may revise its end, e.g. when the last ASR segment is
+   * transcribed again with more audio, and returns the updated feature. Only the text from the
+   * start of the first word that changed is tokenized again.
+   */
+  public EMSBertFeature update(CharSequence text) {
+    int common = 0;
+    int shortest = Math.min(transcript.length(), text.length());
+    while (common < shortest && transcript.charAt(common) == text.charAt(common)) {
+      common++;
+    }
+    // Drops the ids of the words from the first changed char on, append() then tokenizes the word
+    // it may have cut again.
+    while (queryLen > 0 && wordStarts[queryLen - 1] >= common) {
+      queryLen--;
+    }
+    transcript.setLength(common);
+    return append(text.subSequence(common, text.length()));
+  }
+
+  /** Clears the transcript, the feature is then the one of an empty query. */
+  public void reset() {
+    transcript.setLength(0);
+    setQueryLen(0);
+  }
+
+  /** Returns the feature of the transcript so far. */
+  public EMSBertFeature feature() {
+    return feature;
+  }
+
+  /** Returns the number of word piece ids of the transcript in the feature. */
+  public int queryLen() {
+    return queryLen;
+  }
+
+  private void setQueryLen(int length) {
+    // [CLS], the query ids and [SEP] are unmasked, the rest is 0 as padding.
+    feature.inputIds[length + 1] = sepId;
+    feature.setLength(length + 2);
+    queryLen = length;
+  }
+}
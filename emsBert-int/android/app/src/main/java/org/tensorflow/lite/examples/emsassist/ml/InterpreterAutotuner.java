@@ -0,0 +1,219 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * Picks the interpreter options a model runs fastest with on this device by timing a calibration
+ * set with each candidate. The pick is kept in shared preferences under the model's name, a key
+ * of its content and the number of cores, so it's only measured again when one of them changes.
+ */
+public final class InterpreterAutotuner {
+  private static final String TAG = "InterpreterAutotuner";
+  private static final String PREFS_NAME = "interpreter_autotuner";
+  // Timed passes of the calibration set per candidate, after an untimed one.
+  private static final int DEFAULT_RUNS = 3;
+
+  /** Options an interpreter can be created with. */
+  public static final class Config {
+    public final int numThreads;
+    public final boolean useXnnpack;
+    public final boolean allowFp16;
+
+    public Config(int numThreads, boolean useXnnpack, boolean allowFp16) {
+      this.numThreads = numThreads;
+      this.useXnnpack = useXnnpack;
+      this.allowFp16 = allowFp16;
+    }
+
+    public Interpreter.Options toOptions() {
+      return new Interpreter.Options()
+          .setNumThreads(numThreads)
+          .setUseXNNPACK(useXnnpack)
+          .setAllowFp16PrecisionForFp32(allowFp16);
+    }
+
+    /** Parses the value a config is persisted as, returns null if it isn't one. */
+    static Config parse(String value) {
+      String[] fields = value == null ? new String[0] : value.split(",");
+      if (fields.length != 3) {
+        return null;
+      }
+      try {
+        return new Config(
+            Integer.parseInt(fields[0]),
+            Boolean.parseBoolean(fields[1]),
+            Boolean.parseBoolean(fields[2]));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    String format() {
+      return numThreads + "," + useXnnpack + "," + allowFp16;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Config)) {
+        return false;
+      }
+      Config config = (Config) other;
+      return numThreads == config.numThreads
+          && useXnnpack == config.useXnnpack
+          && allowFp16 == config.allowFp16;
+    }
+
+    @Override
+    public int hashCode() {
+      return numThreads * 4 + (useXnnpack ? 2 : 0) + (allowFp16 ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d threads, XNNPACK %s, fp16 %s",
+          numThreads, useXnnpack ? "on" : "off", allowFp16 ? "on" : "off");
+    }
+  }
+
+  /** Creates the interpreters a calibration set runs on. */
+  public interface Calibration {
+    /**
+     * Creates interpreters with options. Throws IllegalArgumentException or IllegalStateException
+     * if the model can't run with them, the candidate is then skipped.
+     */
+    Session open(Interpreter.Options options);
+  }
+
+  /** Interpreters created for one candidate. */
+  public interface Session extends AutoCloseable {
+    /** Runs the whole calibration set once. */
+    void run();
+
+    @Override
+    void close();
+  }
+
+  private final SharedPreferences preferences;
+  private final int numCores;
+  private int runs = DEFAULT_RUNS;
+
+  public InterpreterAutotuner(Context context) {
+    this.preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    this.numCores = Runtime.getRuntime().availableProcessors();
+  }
+
+  /** Sets the number of timed passes of the calibration set per candidate. */
+  public void setRuns(int runs) {
+    if (runs < 1) {
+      throw new IllegalArgumentException("At least one run is needed to time a candidate.");
+    }
+    this.runs = runs;
+  }
+
+  /** Same as below from 1 thread. */
+  public static List<Config> candidates(int maxThreads) {
+    return candidates(1, maxThreads);
+  }
+
+  /**
+   * Returns minThreads, twice as many... up to maxThreads, and maxThreads itself, each with
+   * XNNPACK on and off. fp16 relaxation is left off, the CPU kernels run in fp32 either way.
+   */
+  public static List<Config> candidates(int minThreads, int maxThreads) {
+    List<Integer> threads = new ArrayList<>();
+    for (int n = Math.max(1, minThreads); n < maxThreads; n *= 2) {
+      threads.add(n);
+    }
+    threads.add(Math.max(1, maxThreads));
+    List<Config> candidates = new ArrayList<>();
+    for (int numThreads : threads) {
+      for (boolean useXnnpack : new boolean[] {true, false}) {
+        candidates.add(new Config(numThreads, useXnnpack, /* allowFp16= */ false));
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * Same as below keyed by the SHA-256 of model, which reads all of it. A model from the assets
+   * can use {@link ModelHelper#assetModelKey} instead.
+   */
+  public Config tune(
+      String name, ByteBuffer model, List<Config> candidates, Calibration calibration) {
+    return tune(name, ModelHelper.sha256(model), candidates, calibration);
+  }
+
+  /**
+   * Returns the candidate the model runs the calibration set fastest with. The one picked for the
+   * same model key and cores by an earlier call is returned without measuring if it's among
+   * candidates. Otherwise each candidate runs the set once untimed and is scored by the fastest of
+   * the timed passes after it. Throws IllegalStateException if no candidate can run the model.
+   */
+  public Config tune(
+      String name, String modelKey, List<Config> candidates, Calibration calibration) {
+    String key = name + "/" + modelKey + "/" + numCores;
+    Config cached = Config.parse(preferences.getString(key, null));
+    if (cached != null && candidates.contains(cached)) {
+      Log.v(TAG, String.format("Reusing %s for %s.", cached, name));
+      return cached;
+    }
+
+    Config best = null;
+    long bestNanos = Long.MAX_VALUE;
+    for (Config candidate : candidates) {
+      long nanos;
+      try {
+        nanos = measure(candidate, calibration);
+      } catch (IllegalArgumentException | IllegalStateException e) {
+        Log.w(TAG, String.format("Can't run %s with %s.", name, candidate), e);
+        continue;
+      }
+      Log.v(TAG, String.format("%s with %s: %.3f ms", name, candidate, nanos / 1e6));
+      if (nanos < bestNanos) {
+        best = candidate;
+        bestNanos = nanos;
+      }
+    }
+    if (best == null) {
+      throw new IllegalStateException("None of the candidates can run " + name);
+    }
+    Log.v(TAG, String.format("Picked %s for %s.", best, name));
+    preferences.edit().putString(key, best.format()).apply();
+    return best;
+  }
+
+  private long measure(Config candidate, Calibration calibration) {
+    try (Session session = calibration.open(candidate.toOptions())) {
+      // Tensor allocation and weight packing are paid once per interpreter, not per query.
+      session.run();
+      long fastest = Long.MAX_VALUE;
+      for (int run = 0; run < runs; run++) {
+        long start = System.nanoTime();
+        session.run();
+        fastest = Math.min(fastest, System.nanoTime() - start);
+      }
+      return fastest;
+    }
+  }
+}
@@ -0,0 +1,378 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * A fixed number of runners of the EMS Bert model over one model buffer, checked out per request
+ * so concurrent callers run in parallel instead of queueing behind one interpreter. A {@link
+ * Runner} holds an interpreter per sequence length bucket, created on first use, and its own
+ * scratch buffers.
+ *
+ * <p>The model buffer is mapped once, but each interpreter allocates its own tensors and, with
+ * XNNPACK, packs its own copy of the weights, so the pool caps the number of interpreters. Room
+ * is kept for one of the longest bucket in every runner, which fits any query; a runner that
+ * can't create the interpreter of a shorter bucket runs at the shortest longer one it has.
+ */
+public final class InterpreterPool implements AutoCloseable {
+  private static final String TAG = "InterpreterPool";
+
+  private final ByteBuffer model;
+  private final Interpreter.Options options;
+  private final ModelBinding binding;
+  private final int maxSeqLen;
+  private final SequenceBuckets buckets;
+  private final int maxInterpreters;
+  private final List<Runner> runners = new ArrayList<>();
+  private final Deque<Runner> idle = new ArrayDeque<>();
+  // Interpreters created by the runners, and how many of them are of the longest bucket.
+  private int interpreterCount;
+  private int longestCount;
+  private boolean closed;
+
+  /** Same as below with interpreters of numThreads threads and default options otherwise. */
+  public InterpreterPool(
+      ByteBuffer model,
+      ModelBinding binding,
+      SequenceBuckets requested,
+      int size,
+      int numThreads) {
+    this(model, binding, requested, size, new Interpreter.Options().setNumThreads(numThreads));
+  }
+
+  /** Same as below with room for an interpreter of every bucket in every runner. */
+  public InterpreterPool(
+      ByteBuffer model,
+      ModelBinding binding,
+      SequenceBuckets requested,
+      int size,
+      Interpreter.Options options) {
+    this(model, binding, requested, size, options, size * requested.size());
+  }
+
+  /**
+   * Creates size runners whose interpreters are created with options, up to maxInterpreters of
+   * them, which must be at least size. Buckets the model can't be resized to are dropped; throws
+   * IllegalStateException if none is left.
+   */
+  public InterpreterPool(
+      ByteBuffer model,
+      ModelBinding binding,
+      SequenceBuckets requested,
+      int size,
+      Interpreter.Options options,
+      int maxInterpreters) {
+    if (size < 1) {
+      throw new IllegalArgumentException("The pool size must be positive.");
+    }
+    if (maxInterpreters < size) {
+      throw new IllegalArgumentException(
+          "Each of the " + size + " runners needs an interpreter, " + maxInterpreters + " given.");
+    }
+    this.model = model;
+    this.options = options;
+    this.binding = binding;
+    this.maxInterpreters = maxInterpreters;
+
+    // A single interpreter is resized through the buckets, so probing doesn't hold one per bucket.
+    List<Integer> lengths = new ArrayList<>();
+    ModelRunner probe = null;
+    for (int bucket = 0; bucket < requested.size(); bucket++) {
+      int seqLen = requested.length(bucket);
+      try {
+        if (probe == null) {
+          probe = new ModelRunner(model, options, binding, 1, seqLen);
+        } else {
+          probe.resize(1, seqLen);
+        }
+        lengths.add(seqLen);
+      } catch (IllegalArgumentException | IllegalStateException e) {
+        Log.w(TAG, "Can't run the model at a sequence length of " + seqLen, e);
+        // It can't be used once a resize failed.
+        if (probe != null) {
+          probe.close();
+          probe = null;
+        }
+      }
+    }
+    if (lengths.isEmpty()) {
+      throw new IllegalStateException("The model can't be run at any of " + requested);
+    }
+    this.buckets = new SequenceBuckets(lengths.stream().mapToInt(i -> i).toArray());
+    this.maxSeqLen = buckets.maxLength();
+
+    for (int i = 0; i < size; i++) {
+      Runner runner = new Runner();
+      runners.add(runner);
+      idle.push(runner);
+    }
+    // Left at the longest bucket unless that one failed, the first runner keeps it.
+    if (probe != null && probe.seqLen() == maxSeqLen) {
+      runners.get(0).runners[buckets.size() - 1] = probe;
+      interpreterCount = 1;
+      longestCount = 1;
+    } else if (probe != null) {
+      probe.close();
+    }
+  }
+
+  /**
+   * Creates every interpreter the pool has room for, so their tensors are allocated and their
+   * weights packed before the first query, then runs each of them runs times on a synthetic
+   * feature. Shorter buckets are spread over the runners first, so {@link #acquire(int)} finds one
+   * that fits most queries. Must be called before the runners are checked out.
+   *
+   * <p>Creating the interpreters isn't timed, so the cold latency of a shape is that of its first
+   * run, averaged over the runners that have it, like the warm one. Shapes no runner has room for
+   * aren't run, their queries run at a longer bucket.
+   */
+  public WarmUpReport warmUp(int runs) {
+    int longest = buckets.size() - 1;
+    for (Runner runner : runners) {
+      runner.create(longest);
+    }
+    for (int round = 0; round < runners.size(); round++) {
+      for (int bucket = 0; bucket < longest; bucket++) {
+        runners.get((bucket + round) % runners.size()).create(bucket);
+      }
+    }
+
+    WarmUpReport report = new WarmUpReport();
+    for (int bucket = 0; bucket < buckets.size(); bucket++) {
+      int seqLen = buckets.length(bucket);
+      long cold = 0;
+      long warm = 0;
+      int warmed = 0;
+      for (Runner runner : runners) {
+        if (runner.runners[bucket] == null) {
+          continue;
+        }
+        // Every position is unmasked, the ids left at 0 cost as much as real ones.
+        runner.feature.setLength(seqLen);
+        for (int run = 0; run < runs; run++) {
+          long start = System.nanoTime();
+          runner.run();
+          long latency = System.nanoTime() - start;
+          if (run == 0) {
+            cold += latency;
+          } else {
+            warm += latency;
+          }
+        }
+        runner.feature.setLength(0);
+        warmed++;
+      }
+      if (warmed > 0) {
+        report.add(
+            1,
+            seqLen,
+            runs > 0 ? cold / warmed : 0,
+            runs > 1 ? warm / warmed / (runs - 1) : 0);
+      }
+    }
+    return report;
+  }
+
+  /** The sequence lengths the model runs at. */
+  public SequenceBuckets buckets() {
+    return buckets;
+  }
+
+  public int size() {
+    return runners.size();
+  }
+
+  /**
+   * Checks out a runner, waiting for one to be released if they're all in use. Throws
+   * IllegalStateException once the pool is closed.
+   */
+  public synchronized Runner acquire() throws InterruptedException {
+    while (!closed && idle.isEmpty()) {
+      wait();
+    }
+    if (closed) {
+      throw new IllegalStateException("The interpreter pool is closed.");
+    }
+    return idle.pop();
+  }
+
+  /**
+   * Same as above, preferring an idle runner with the interpreter of the shortest bucket that fits
+   * a feature of length positions, so the query isn't padded further than needed.
+   */
+  public synchronized Runner acquire(int length) throws InterruptedException {
+    while (!closed && idle.isEmpty()) {
+      wait();
+    }
+    if (closed) {
+      throw new IllegalStateException("The interpreter pool is closed.");
+    }
+    int bucket = buckets.bucketFor(length);
+    Runner best = null;
+    int bestFit = Integer.MAX_VALUE;
+    for (Runner runner : idle) {
+      int fit = runner.createdBucketFor(bucket);
+      if (fit < bestFit) {
+        best = runner;
+        bestFit = fit;
+      }
+      if (fit == bucket) {
+        break;
+      }
+    }
+    idle.remove(best);
+    return best;
+  }
+
+  /** Returns the number of interpreters the runners have created so far. */
+  public synchronized int interpreterCount() {
+    return interpreterCount;
+  }
+
+  /** Returns a runner checked out by {@link #acquire()}. */
+  public synchronized void release(Runner runner) {
+    if (closed) {
+      // close() left it to the caller, which was still running it.
+      runner.close();
+      return;
+    }
+    idle.push(runner);
+    notify();
+  }
+
+  /** Closes the idle runners now and the checked out ones as they're released. */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (Runner runner : idle) {
+      runner.close();
+    }
+    idle.clear();
+    notifyAll();
+  }
+
+  /**
+   * Counts an interpreter a runner is about to create at bucket, or returns false if that would
+   * leave no room for the longest bucket of the runners that don't have one yet.
+   */
+  private synchronized boolean reserve(int bucket) {
+    boolean longest = bucket == buckets.size() - 1;
+    if (!longest && interpreterCount + runners.size() - longestCount >= maxInterpreters) {
+      return false;
+    }
+    interpreterCount++;
+    if (longest) {
+      longestCount++;
+    }
+    return true;
+  }
+
+  /** Undoes a reserve whose interpreter couldn't be created. */
+  private synchronized void unreserve(int bucket) {
+    interpreterCount--;
+    if (bucket == buckets.size() - 1) {
+      longestCount--;
+    }
+  }
+
+  /** The interpreters and buffers of one caller at a time. */
+  public final class Runner {
+    private final ModelRunner[] runners = new ModelRunner[buckets.size()];
+    private final EMSBertFeature feature = new EMSBertFeature(maxSeqLen);
+    private final float[] logits = new float[binding.numClasses()];
+    private int seqLen;
+
+    private Runner() {}
+
+    /** A feature of the longest bucket to convert queries into. */
+    public EMSBertFeature feature() {
+      return feature;
+    }
+
+    /** Returns the sequence length of the last run, 0 before the first. */
+    public int seqLen() {
+      return seqLen;
+    }
+
+    /**
+     * Runs the model on feature, at the shortest bucket that fits it, and returns the logits. They
+     * are overwritten by the next run.
+     */
+    public float[] run() {
+      return run(feature);
+    }
+
+    /** Same as above for a feature converted elsewhere, of at most the longest bucket. */
+    public float[] run(EMSBertFeature feature) {
+      ModelRunner runner = runnerFor(buckets.bucketFor(feature.length()));
+      runner.buffers().put(0, feature);
+      runner.run().get(logits);
+      seqLen = runner.seqLen();
+      return logits;
+    }
+
+    /** Returns the shortest bucket from bucket on this runner has an interpreter of. */
+    private int createdBucketFor(int bucket) {
+      while (bucket < runners.length - 1 && runners[bucket] == null) {
+        bucket++;
+      }
+      return bucket;
+    }
+
+    /**
+     * Returns the interpreter of bucket, created if the pool has room for it, or else the one of
+     * the shortest longer bucket.
+     */
+    private ModelRunner runnerFor(int bucket) {
+      return create(bucket) ? runners[bucket] : runnerFor(createdBucketFor(bucket + 1));
+    }
+
+    /** Creates the interpreter of bucket unless it exists, returns false if there's no room. */
+    private boolean create(int bucket) {
+      if (runners[bucket] != null) {
+        return true;
+      }
+      if (!reserve(bucket)) {
+        return false;
+      }
+      try {
+        runners[bucket] = new ModelRunner(model, options, binding, 1, buckets.length(bucket));
+      } catch (RuntimeException e) {
+        unreserve(bucket);
+        throw e;
+      }
+      return true;
+    }
+
+    private void close() {
+      for (int i = 0; i < runners.length; i++) {
+        if (runners[i] != null) {
+          runners[i].close();
+          runners[i] = null;
+        }
+      }
+    }
+  }
+}
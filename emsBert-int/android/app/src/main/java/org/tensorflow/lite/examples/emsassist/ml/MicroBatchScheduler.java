@@ -0,0 +1,246 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import android.util.Log;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Queues queries that come in close together and predicts them as one batch. A batch is flushed
+ * when it has maxBatchSize queries or when its oldest query has waited maxWaitMillis, whichever
+ * comes first, trading a few milliseconds of latency for the throughput of batched inference.
+ * Results go back through the future of each query; queries whose future is cancelled before
+ * their batch is flushed are dropped from it.
+ *
+ * @param <R> the prediction of a query.
+ */
+public final class MicroBatchScheduler<R> implements AutoCloseable {
+  private static final String TAG = "MicroBatchScheduler";
+
+  private final Function<List<String>, List<R>> predictor;
+  private final int maxBatchSize;
+  private final long maxWaitNanos;
+  private final Thread dispatcher;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  // Guarded by lock.
+  private final Deque<Request<R>> pending = new ArrayDeque<>();
+  private boolean closed;
+  private long batchCount;
+  private long requestCount;
+  private long totalQueueingNanos;
+  private long maxQueueingNanos;
+
+  /**
+   * Starts a dispatcher thread that calls predictor with batches of up to maxBatchSize queries. It
+   * must return a prediction per query, in the same order.
+   */
+  public MicroBatchScheduler(
+      Function<List<String>, List<R>> predictor, int maxBatchSize, long maxWaitMillis) {
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("The maximum batch size must be positive.");
+    }
+    if (maxWaitMillis < 0) {
+      throw new IllegalArgumentException("The maximum wait can't be negative.");
+    }
+    this.predictor = predictor;
+    this.maxBatchSize = maxBatchSize;
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    this.dispatcher = new Thread(this::dispatch, TAG);
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+  }
+
+  /** Queues a query, the future completes with its prediction or the error of its batch. */
+  public CompletableFuture<R> submit(String query) {
+    Request<R> request = new Request<>(query, System.nanoTime());
+    lock.lock();
+    try {
+      if (closed) {
+        throw new IllegalStateException("The scheduler is closed.");
+      }
+      pending.add(request);
+      changed.signal();
+    } finally {
+      lock.unlock();
+    }
+    return request.future;
+  }
+
+  /** Predicts the queries still queued, then stops the dispatcher. */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      changed.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long batchCount() {
+    lock.lock();
+    try {
+      return batchCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long requestCount() {
+    lock.lock();
+    try {
+      return requestCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the mean number of queries predicted per batch. */
+  public double meanBatchSize() {
+    lock.lock();
+    try {
+      return batchCount == 0 ? 0 : (double) requestCount / batchCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the mean time queries waited for their batch to be flushed. */
+  public double meanQueueingMillis() {
+    lock.lock();
+    try {
+      return requestCount == 0 ? 0 : totalQueueingNanos / 1e6 / requestCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public double maxQueueingMillis() {
+    lock.lock();
+    try {
+      return maxQueueingNanos / 1e6;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "MicroBatchScheduler{batches=%d, requests=%d, meanBatchSize=%.2f, meanQueueingMs=%.3f,"
+            + " maxQueueingMs=%.3f}",
+        batchCount(), requestCount(), meanBatchSize(), meanQueueingMillis(), maxQueueingMillis());
+  }
+
+  private void dispatch() {
+    List<Request<R>> batch = new ArrayList<>(maxBatchSize);
+    List<String> queries = new ArrayList<>(maxBatchSize);
+    while (nextBatch(batch)) {
+      queries.clear();
+      for (Request<R> request : batch) {
+        queries.add(request.query);
+      }
+      try {
+        List<R> predictions = predictor.apply(queries);
+        if (predictions.size() != batch.size()) {
+          throw new IllegalStateException(
+              predictions.size() + " predictions for a batch of " + batch.size() + ".");
+        }
+        for (int i = 0; i < batch.size(); i++) {
+          batch.get(i).future.complete(predictions.get(i));
+        }
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Can't predict a batch of " + batch.size(), e);
+        for (Request<R> request : batch) {
+          request.future.completeExceptionally(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits until the queue holds a full batch or its oldest query is due, and moves that batch
+   * into batch. Returns false once the scheduler is closed and the queue is empty.
+   */
+  private boolean nextBatch(List<Request<R>> batch) {
+    batch.clear();
+    lock.lock();
+    try {
+      while (batch.isEmpty()) {
+        dropCancelled();
+        while (pending.isEmpty()) {
+          if (closed) {
+            return false;
+          }
+          changed.awaitUninterruptibly();
+          dropCancelled();
+        }
+        long deadline = pending.peekFirst().enqueuedNanos + maxWaitNanos;
+        long remaining = deadline - System.nanoTime();
+        while (!closed && pending.size() < maxBatchSize && remaining > 0) {
+          remaining = changed.awaitNanos(remaining);
+        }
+
+        long now = System.nanoTime();
+        while (batch.size() < maxBatchSize && !pending.isEmpty()) {
+          Request<R> request = pending.pollFirst();
+          if (request.future.isDone()) {
+            continue;
+          }
+          long queueing = now - request.enqueuedNanos;
+          totalQueueingNanos += queueing;
+          maxQueueingNanos = Math.max(maxQueueingNanos, queueing);
+          batch.add(request);
+        }
+      }
+      batchCount++;
+      requestCount += batch.size();
+      return true;
+    } catch (InterruptedException e) {
+      // Only this thread waits on the condition and nothing interrupts it.
+      throw new IllegalStateException(e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Drops the queries at the head of the queue whose future was cancelled. */
+  private void dropCancelled() {
+    while (!pending.isEmpty() && pending.peekFirst().future.isDone()) {
+      pending.pollFirst();
+    }
+  }
+
+  private static final class Request<R> {
+    final String query;
+    final long enqueuedNanos;
+    final CompletableFuture<R> future = new CompletableFuture<>();
+
+    Request(String query, long enqueuedNanos) {
+      this.query = query;
+      this.enqueuedNanos = enqueuedNanos;
+    }
+  }
+}
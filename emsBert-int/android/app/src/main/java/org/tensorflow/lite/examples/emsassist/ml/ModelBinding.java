@@ -0,0 +1,147 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import static com.google.common.base.Verify.verify;
+
+import com.google.common.base.VerifyException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+/**
+ * Where the EMS Bert model takes its inputs and puts its logits, read from the model signature
+ * once when it's loaded. Runners lay out their input array and allocate their logits buffer from
+ * it, so a run only fills, invokes and reads. A model that doesn't match what the app expects
+ * fails at load rather than in the middle of a request.
+ */
+public final class ModelBinding {
+  static final String IDS_TENSOR_NAME = "serving_default_input_word_ids:0";
+  static final String MASK_TENSOR_NAME = "serving_default_input_mask:0";
+  static final String SEGMENT_IDS_TENSOR_NAME = "serving_default_input_type_ids:0";
+
+  private final int inputCount;
+  private final int idsIndex;
+  private final int maskIndex;
+  private final int segmentIdsIndex;
+  private final int logitsIndex;
+  private final int seqLen;
+  private final int numClasses;
+
+  private ModelBinding(Interpreter tflite, int expectedSeqLen, int expectedNumClasses) {
+    inputCount = tflite.getInputTensorCount();
+    verify(inputCount == 3, "The model takes %s inputs, expected 3.", inputCount);
+    idsIndex = inputIndex(tflite, IDS_TENSOR_NAME);
+    maskIndex = inputIndex(tflite, MASK_TENSOR_NAME);
+    segmentIdsIndex = inputIndex(tflite, SEGMENT_IDS_TENSOR_NAME);
+    verify(
+        idsIndex != maskIndex && idsIndex != segmentIdsIndex && maskIndex != segmentIdsIndex,
+        "The model inputs aren't distinct.");
+
+    int[] shape = tflite.getInputTensor(idsIndex).shape();
+    for (int index : new int[] {idsIndex, maskIndex, segmentIdsIndex}) {
+      Tensor input = tflite.getInputTensor(index);
+      verify(
+          input.dataType() == DataType.INT32,
+          "Input %s is %s, expected INT32.",
+          input.name(),
+          input.dataType());
+      verify(
+          Arrays.equals(input.shape(), shape) && shape.length == 2,
+          "Input %s is %s, expected the [batch, seqLen] of the others.",
+          input.name(),
+          Arrays.toString(input.shape()));
+    }
+    seqLen = shape[1];
+    verify(
+        seqLen == expectedSeqLen,
+        "The model takes sequences of %s, expected %s.",
+        seqLen,
+        expectedSeqLen);
+
+    verify(
+        tflite.getOutputTensorCount() == 1,
+        "The model has %s outputs, expected the logits only.",
+        tflite.getOutputTensorCount());
+    logitsIndex = 0;
+    Tensor logits = tflite.getOutputTensor(logitsIndex);
+    int[] logitsShape = logits.shape();
+    verify(
+        logits.dataType() == DataType.FLOAT32 && logitsShape.length == 2,
+        "Output %s is %s of %s, expected FLOAT32 [batch, classes].",
+        logits.name(),
+        logits.dataType(),
+        Arrays.toString(logitsShape));
+    numClasses = logitsShape[1];
+    verify(
+        numClasses == expectedNumClasses,
+        "The model predicts %s classes, expected %s.",
+        numClasses,
+        expectedNumClasses);
+  }
+
+  /**
+   * Reads the binding of a model, checking it takes sequences of expectedSeqLen and predicts
+   * expectedNumClasses. Throws VerifyException if it doesn't.
+   */
+  public static ModelBinding load(ByteBuffer model, int expectedSeqLen, int expectedNumClasses) {
+    // Tensors aren't allocated and no delegate packs the weights, the signature is all that's read.
+    Interpreter tflite = new Interpreter(model, new Interpreter.Options().setUseXNNPACK(false));
+    try {
+      return new ModelBinding(tflite, expectedSeqLen, expectedNumClasses);
+    } finally {
+      tflite.close();
+    }
+  }
+
+  /** Returns the input array of a run on buffers, in the order of the model inputs. */
+  Object[] inputs(FeatureBuffers buffers) {
+    Object[] inputs = new Object[inputCount];
+    inputs[idsIndex] = buffers.inputIds();
+    inputs[maskIndex] = buffers.inputMask();
+    inputs[segmentIdsIndex] = buffers.segmentIds();
+    return inputs;
+  }
+
+  int logitsIndex() {
+    return logitsIndex;
+  }
+
+  /** The sequence length the model was converted with. */
+  public int seqLen() {
+    return seqLen;
+  }
+
+  public int numClasses() {
+    return numClasses;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "ModelBinding{ids=%d, mask=%d, segmentIds=%d, logits=%d, seqLen=%d, numClasses=%d}",
+        idsIndex, maskIndex, segmentIdsIndex, logitsIndex, seqLen, numClasses);
+  }
+
+  private static int inputIndex(Interpreter tflite, String name) {
+    try {
+      return tflite.getInputIndex(name);
+    } catch (IllegalArgumentException e) {
+      throw new VerifyException("The model has no input " + name + ".", e);
+    }
+  }
+}
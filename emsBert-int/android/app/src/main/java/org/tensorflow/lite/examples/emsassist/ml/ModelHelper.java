@@ -17,6 +17,7 @@ package org.tensorflow.lite.examples.emsassist.ml;
 import static com.google.common.base.Verify.verify;
 
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.util.Log;
@@ -25,12 +26,16 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import org.tensorflow.lite.examples.emsassist.tokenization.CompiledVocab;
 import org.tensorflow.lite.support.metadata.MetadataExtractor;
 
 /** Helper to load TfLite model and dictionary. */
@@ -41,10 +46,12 @@ public class ModelHelper {
 //  public static final String EMS_MODEL_PATH = "model.tflite";
   public static final String EMS_MODEL_PATH = "FineTune_MobileEnUncase1_Fitted_Desc_batch1.tflite";
   public static final String DIC_PATH = "vocab.txt";
+  public static final String COMPILED_DIC_PATH = "vocab.bin";
   public static final String TEST_FILE_PATH = "test_0.txt";
   public static final String LABEL_FILE_PATH = "no-fitted_label_names.txt";
 
   public static final String FITTED_LABEL_FILE_PATH = "fitted_label_names.txt";
+  public static final String CALIBRATION_FILE_PATH = "fitted_desc_test_0.txt";
 
   public static String TFLITE_TEST_RESULT_FILE;
 
@@ -159,6 +166,60 @@ public class ModelHelper {
     return label_map;
   }
 
+  /** Loads the narratives of the first limit lines of "<narrative>\t<protocol code>". */
+  public static List<String> loadCalibrationQueries(Context context, int limit)
+      throws IOException {
+    List<String> queries = new ArrayList<>();
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(context.getAssets().open(CALIBRATION_FILE_PATH)))) {
+      String line;
+      while (queries.size() < limit && (line = reader.readLine()) != null) {
+        queries.add(line.split("\t")[0]);
+      }
+    }
+    return queries;
+  }
+
+  /** Returns the hex SHA-256 of parts up to their limits, e.g. to tell models apart. */
+  public static String sha256(ByteBuffer... parts) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    for (ByteBuffer part : parts) {
+      ByteBuffer bytes = part.duplicate();
+      bytes.position(0);
+      digest.update(bytes);
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Returns a key of a model mapped from the assets, made of its length and the time the app was
+   * last installed or updated, the only way assets change. Unlike {@link #sha256} it doesn't read
+   * the model, so it costs the same for a model of any size.
+   */
+  public static String assetModelKey(Context context, ByteBuffer model) {
+    long lastUpdateTime;
+    try {
+      lastUpdateTime =
+          context
+              .getPackageManager()
+              .getPackageInfo(context.getPackageName(), 0)
+              .lastUpdateTime;
+    } catch (PackageManager.NameNotFoundException e) {
+      throw new IllegalStateException(e);
+    }
+    return model.capacity() + "@" + lastUpdateTime;
+  }
+
   /** Load tflite model from context. */
   public static MappedByteBuffer loadModelFile(Context context) throws IOException {
     return loadModelFile(context.getAssets());
@@ -191,6 +252,29 @@ public class ModelHelper {
     }
   }
 
+  /** Maps the dictionary compiled by the compileVocab task, returns null if it's not packaged. */
+  public static CompiledVocab loadCompiledDictionary(Context context) {
+    long start = System.nanoTime();
+    try (AssetFileDescriptor fileDescriptor = context.getAssets().openFd(COMPILED_DIC_PATH);
+        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor())) {
+      FileChannel fileChannel = inputStream.getChannel();
+      long startOffset = fileDescriptor.getStartOffset();
+      long declaredLength = fileDescriptor.getDeclaredLength();
+      CompiledVocab dic =
+          CompiledVocab.load(
+              fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength));
+      Log.v(
+          TAG,
+          String.format(
+              "Compiled dictionary of %d tokens mapped in %d us.",
+              dic.size(), (System.nanoTime() - start) / 1000));
+      return dic;
+    } catch (IOException ex) {
+      Log.w(TAG, "No compiled dictionary: " + ex.getMessage());
+      return null;
+    }
+  }
+
   /** Extract dictionary from metadata. */
   public static Map<String, Integer> extractDictionary(MetadataExtractor metadataExtractor) {
     Map<String, Integer> dic = null;
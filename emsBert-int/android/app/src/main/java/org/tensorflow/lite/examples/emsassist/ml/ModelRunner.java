@@ -0,0 +1,114 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * An interpreter of the EMS Bert model whose tensors are allocated for inputs of [batchSize,
+ * seqLen], with the direct buffers it reads the features from and writes the logits to. Tensors
+ * and buffers are only reallocated when the runner is resized. Runners of different shapes can
+ * share the mapped model buffer, but each interpreter has its own tensors and, with XNNPACK, its
+ * own packed copy of the weights. Not thread safe.
+ */
+final class ModelRunner implements AutoCloseable {
+  private final Interpreter tflite;
+  private final ModelBinding binding;
+  private final Map<Integer, Object> outputs = new HashMap<>();
+  private FeatureBuffers buffers;
+  private Object[] inputs;
+  private ByteBuffer logitsBuffer;
+  private FloatBuffer logits;
+
+  /**
+   * Throws IllegalArgumentException or IllegalStateException if the model can't be resized to
+   * [batchSize, seqLen].
+   */
+  ModelRunner(
+      ByteBuffer model,
+      Interpreter.Options options,
+      ModelBinding binding,
+      int batchSize,
+      int seqLen) {
+    this.tflite = new Interpreter(model, options);
+    this.binding = binding;
+    try {
+      resize(batchSize, seqLen);
+    } catch (RuntimeException e) {
+      tflite.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reallocates the tensors and buffers for inputs of [batchSize, seqLen], unless they already
+   * have that shape. Throws IllegalArgumentException or IllegalStateException if the model can't
+   * be resized, the runner can't be used after that.
+   */
+  void resize(int batchSize, int seqLen) {
+    if (buffers != null && buffers.batchSize() == batchSize && buffers.seqLen() == seqLen) {
+      return;
+    }
+    buffers = null;
+    int[] shape = {batchSize, seqLen};
+    for (int i = 0; i < tflite.getInputTensorCount(); i++) {
+      if (!Arrays.equals(tflite.getInputTensor(i).shape(), shape)) {
+        tflite.resizeInput(i, shape);
+      }
+    }
+    tflite.allocateTensors();
+
+    buffers = new FeatureBuffers(batchSize, seqLen);
+    inputs = binding.inputs(buffers);
+    logitsBuffer =
+        ByteBuffer.allocateDirect(4 * batchSize * binding.numClasses())
+            .order(ByteOrder.nativeOrder());
+    logits = logitsBuffer.asFloatBuffer();
+    outputs.put(binding.logitsIndex(), logitsBuffer);
+  }
+
+  /** The features the next run reads, rows are filled by the caller. */
+  FeatureBuffers buffers() {
+    return buffers;
+  }
+
+  int batchSize() {
+    return buffers.batchSize();
+  }
+
+  int seqLen() {
+    return buffers.seqLen();
+  }
+
+  /** Runs the model on the buffers and returns the [batchSize, numClasses] logits, rewound. */
+  FloatBuffer run() {
+    // The interpreter puts the logits at the position of the buffer.
+    logitsBuffer.rewind();
+    tflite.runForMultipleInputsOutputs(inputs, outputs);
+    logits.rewind();
+    return logits;
+  }
+
+  @Override
+  public void close() {
+    tflite.close();
+  }
+}
@@ -0,0 +1,161 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ring of 16 bit PCM samples in a direct buffer, between a single writer, e.g. the thread that
+ * reads the microphone, and a single reader. Neither side takes a lock: each one only moves its own
+ * counter, which the other reads. The writer never waits, samples that don't fit are dropped and
+ * counted, so a slow reader can't stall the capture.
+ */
+public final class PcmRingBuffer {
+  // Same scale as WavReader and JLibrosa.
+  private static final float SCALE = 1f / 32767;
+
+  private final int capacity;
+  private final int mask;
+  // Each side positions its own view.
+  private final ShortBuffer writerView;
+  private final ShortBuffer readerView;
+  // Samples written and read since the start, the difference is what the ring holds.
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong read = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile boolean finished;
+  // The reader waiting for samples, unparked by the writer.
+  private volatile Thread waiter;
+
+  /** Holds at least capacity samples, rounded up to a power of 2. */
+  public PcmRingBuffer(int capacity) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Bad capacity " + capacity);
+    }
+    this.capacity = roundUp(capacity);
+    this.mask = this.capacity - 1;
+    ShortBuffer samples =
+        ByteBuffer.allocateDirect(2 * this.capacity).order(ByteOrder.nativeOrder()).asShortBuffer();
+    this.writerView = samples.duplicate();
+    this.readerView = samples.duplicate();
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  /**
+   * Copies up to length samples into the ring, called by the writer only. Returns the number
+   * copied, the rest didn't fit and is dropped.
+   */
+  public int write(short[] samples, int offset, int length) {
+    long end = written.get();
+    int count = Math.min(length, capacity - (int) (end - read.get()));
+    int start = (int) end & mask;
+    int first = Math.min(count, capacity - start);
+    writerView.position(start);
+    writerView.put(samples, offset, first);
+    writerView.position(0);
+    writerView.put(samples, offset + first, count - first);
+    // Published after the samples, the reader never sees a count ahead of them. A volatile store,
+    // so it can't be reordered after the read of waiter: either the writer sees the waiter and
+    // unparks it, or the waiter sees the count and doesn't park.
+    written.set(end + count);
+    if (count < length) {
+      dropped.addAndGet(length - count);
+    }
+    wakeReader();
+    return count;
+  }
+
+  /** Marks the end of the stream, called by the writer once it's done writing. */
+  public void finish() {
+    finished = true;
+    wakeReader();
+  }
+
+  /**
+   * Converts up to length samples into floats of buffer from index offset on, called by the reader
+   * only. Returns the number read.
+   */
+  public int read(FloatBuffer buffer, int offset, int length) {
+    long start = read.get();
+    int count = Math.min(length, (int) (written.get() - start));
+    for (int i = 0; i < count; i++) {
+      buffer.put(offset + i, readerView.get((int) (start + i) & mask) * SCALE);
+    }
+    // The writer never waits for room, so it needn't see this store at once.
+    read.lazySet(start + count);
+    return count;
+  }
+
+  /** Returns the number of samples the reader can read. */
+  public int available() {
+    return (int) (written.get() - read.get());
+  }
+
+  /** Returns true once the writer finished and every sample was read. */
+  public boolean isDrained() {
+    return finished && available() == 0;
+  }
+
+  /** Returns the number of samples dropped because the ring was full. */
+  public long droppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Waits until samples can be read or the writer finished, at most timeout. Returns true if they
+   * can.
+   */
+  public boolean awaitAvailable(int samples, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    waiter = Thread.currentThread();
+    try {
+      while (available() < samples && !finished) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        LockSupport.parkNanos(this, remaining);
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+      return available() >= samples;
+    } finally {
+      waiter = null;
+    }
+  }
+
+  private void wakeReader() {
+    Thread thread = waiter;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  private static int roundUp(int capacity) {
+    int rounded = Integer.highestOneBit(capacity);
+    return rounded == capacity ? capacity : rounded << 1;
+  }
+}
@@ -0,0 +1,182 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bounded cache of predictions by the word piece ids fed to the model, so a query that tokenizes
+ * like an earlier one, e.g. a clip transcribed again, skips the interpreter. Keys are the SHA-256
+ * of the ids and a full cache evicts the least recently used prediction.
+ *
+ * <p>Predictions depend on the model and the labels, so the cache holds the fingerprint of those
+ * it was filled with and is cleared by {@link #validate(String)} when they change. Each clear
+ * starts a new generation, and a prediction put with the generation of an earlier one is dropped,
+ * so a query that was running while the model was reloaded doesn't cache a stale result. It's safe
+ * to use from several threads.
+ */
+public final class PredictionCache<V> {
+  private final int capacity;
+  private final LinkedHashMap<Key, V> entries;
+  private String fingerprint;
+  private long generation;
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+
+  public PredictionCache(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The cache capacity must be positive.");
+    }
+    this.capacity = capacity;
+    this.entries =
+        new LinkedHashMap<Key, V>(16, 0.75f, /* accessOrder= */ true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Key, V> eldest) {
+            if (size() <= PredictionCache.this.capacity) {
+              return false;
+            }
+            evictionCount++;
+            return true;
+          }
+        };
+  }
+
+  /** SHA-256 of the ids a query was converted to, the positions that aren't padding. */
+  public static final class Key {
+    private final long h0;
+    private final long h1;
+    private final long h2;
+    private final long h3;
+
+    private Key(ByteBuffer digest) {
+      h0 = digest.getLong();
+      h1 = digest.getLong();
+      h2 = digest.getLong();
+      h3 = digest.getLong();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return h0 == key.h0 && h1 == key.h1 && h2 == key.h2 && h3 == key.h3;
+    }
+
+    @Override
+    public int hashCode() {
+      // The bits of a digest are already spread.
+      return (int) h0;
+    }
+  }
+
+  /** Returns the key of the ids of feature. */
+  public static Key keyOf(EMSBertFeature feature) {
+    int length = feature.length();
+    ByteBuffer ids = ByteBuffer.allocate(4 * length).order(ByteOrder.LITTLE_ENDIAN);
+    ids.asIntBuffer().put(feature.inputIds, 0, length);
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    return new Key(ByteBuffer.wrap(digest.digest(ids.array())));
+  }
+
+  /** Returns the prediction cached for key, or null. */
+  public synchronized V get(Key key) {
+    V value = entries.get(key);
+    if (value == null) {
+      missCount++;
+    } else {
+      hitCount++;
+    }
+    return value;
+  }
+
+  /**
+   * Caches the prediction of key, made while {@link #generation()} returned generation. It's
+   * dropped if the cache was cleared since.
+   */
+  public synchronized void put(Key key, long generation, V value) {
+    if (generation == this.generation) {
+      entries.put(key, Objects.requireNonNull(value));
+    }
+  }
+
+  /** Returns the generation to pass to put for a prediction starting now. */
+  public synchronized long generation() {
+    return generation;
+  }
+
+  /**
+   * Clears the cache unless it was filled by the model and labels of fingerprint, e.g. the digest
+   * of both. The counters are kept.
+   */
+  public synchronized void validate(String fingerprint) {
+    if (!fingerprint.equals(this.fingerprint)) {
+      clear();
+      this.fingerprint = fingerprint;
+    }
+  }
+
+  /** Drops every cached prediction and those still running, the counters are kept. */
+  public synchronized void clear() {
+    entries.clear();
+    generation++;
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long hitCount() {
+    return hitCount;
+  }
+
+  public synchronized long missCount() {
+    return missCount;
+  }
+
+  public synchronized long evictionCount() {
+    return evictionCount;
+  }
+
+  /** Returns the share of lookups that were hits, 0 before the first one. */
+  public synchronized double hitRate() {
+    long lookups = hitCount + missCount;
+    return (lookups == 0) ? 0.0 : (double) hitCount / lookups;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "PredictionCache{size=%d/%d, hits=%d, misses=%d, evictions=%d, hitRate=%.3f}",
+        entries.size(), capacity, hitCount, missCount, evictionCount, hitRate());
+  }
+}
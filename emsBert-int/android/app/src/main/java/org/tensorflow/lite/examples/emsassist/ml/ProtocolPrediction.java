@@ -0,0 +1,145 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+/**
+ * The protocols with the largest logits of a prediction, best first, with their label index, code
+ * and softmax probability over every label. A prediction is selected into by {@link
+ * #select(float[], String[])} without allocating, so one object can be reused across queries. Of
+ * labels with equal logits, the one with the lower index ranks first.
+ *
+ * <p>Not thread safe.
+ */
+public final class ProtocolPrediction {
+  private final int[] labelIndices;
+  private final String[] codes;
+  private final float[] logits;
+  private final float[] probabilities;
+  private int size;
+
+  /** Creates a prediction of up to k protocols. */
+  public ProtocolPrediction(int k) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("k must be positive.");
+    }
+    labelIndices = new int[k];
+    codes = new String[k];
+    logits = new float[k];
+    probabilities = new float[k];
+  }
+
+  /**
+   * Keeps the k largest of allLogits, labels[i] being the code of allLogits[i], and replaces what
+   * was selected before.
+   */
+  public ProtocolPrediction select(float[] allLogits, String[] labels) {
+    int k = labelIndices.length;
+    size = 0;
+    float max = Float.NEGATIVE_INFINITY;
+    for (int label = 0; label < allLogits.length; label++) {
+      float logit = allLogits[label];
+      max = Math.max(max, logit);
+      if (size == k && logit <= logits[k - 1]) {
+        continue;
+      }
+      // Insertion into the sorted selection, after the equal logits of lower labels.
+      int slot = (size < k) ? size++ : k - 1;
+      while (slot > 0 && logits[slot - 1] < logit) {
+        logits[slot] = logits[slot - 1];
+        labelIndices[slot] = labelIndices[slot - 1];
+        slot--;
+      }
+      logits[slot] = logit;
+      labelIndices[slot] = label;
+    }
+
+    // Shifted by the largest logit so exp doesn't overflow.
+    double sum = 0;
+    for (float logit : allLogits) {
+      sum += Math.exp(logit - max);
+    }
+    for (int i = 0; i < size; i++) {
+      codes[i] = labels[labelIndices[i]];
+      probabilities[i] = (float) (Math.exp(logits[i] - max) / sum);
+    }
+    return this;
+  }
+
+  /** Copies the best protocols of other, as many as this holds. */
+  public ProtocolPrediction copyFrom(ProtocolPrediction other) {
+    size = Math.min(other.size, labelIndices.length);
+    System.arraycopy(other.labelIndices, 0, labelIndices, 0, size);
+    System.arraycopy(other.codes, 0, codes, 0, size);
+    System.arraycopy(other.logits, 0, logits, 0, size);
+    System.arraycopy(other.probabilities, 0, probabilities, 0, size);
+    return this;
+  }
+
+  /** Returns k, the number of protocols this holds. */
+  public int capacity() {
+    return labelIndices.length;
+  }
+
+  /** Returns the number of protocols selected, k unless there were fewer labels. */
+  public int size() {
+    return size;
+  }
+
+  /** Returns the index in the labels of the rank-th protocol, 0 being the best. */
+  public int labelIndex(int rank) {
+    return labelIndices[checkRank(rank)];
+  }
+
+  /** Returns the code of the rank-th protocol from the fitted label names. */
+  public String code(int rank) {
+    return codes[checkRank(rank)];
+  }
+
+  public float logit(int rank) {
+    return logits[checkRank(rank)];
+  }
+
+  /** Returns the softmax probability of the rank-th protocol over every label. */
+  public float probability(int rank) {
+    return probabilities[checkRank(rank)];
+  }
+
+  /** Formats the protocols as the app shows them, one "code\t\tlogit" line each. */
+  public String format() {
+    StringBuilder out = new StringBuilder();
+    for (int i = 0; i < size; i++) {
+      out.append(codes[i]).append("\t\t").append(logits[i]).append("\n");
+    }
+    return out.toString();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder out = new StringBuilder("ProtocolPrediction{");
+    for (int i = 0; i < size; i++) {
+      out.append(i == 0 ? "" : ", ")
+          .append(codes[i])
+          .append(String.format(": %.4f (p=%.3f)", logits[i], probabilities[i]));
+    }
+    return out.append('}').toString();
+  }
+
+  private int checkRank(int rank) {
+    if (rank < 0 || rank >= size) {
+      throw new IndexOutOfBoundsException("Rank " + rank + " of " + size);
+    }
+    return rank;
+  }
+}
@@ -21,7 +21,6 @@ import static com.google.common.base.Verify.verify;
 
 import android.content.Context;
 import android.util.Log;
-import android.util.Pair;
 
 import androidx.annotation.WorkerThread;
 import com.google.common.base.Joiner;
@@ -29,13 +28,27 @@ import com.google.common.base.Joiner;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import org.tensorflow.lite.Interpreter;
 import org.tensorflow.lite.support.metadata.MetadataExtractor;
@@ -55,6 +68,24 @@ public class QaClient<myMap> implements AutoCloseable {
   private static final boolean DO_LOWER_CASE = true;
   private static final int PREDICT_ANS_NUM = 5;
   private static final int NUM_LITE_THREADS = 4;
+  private static final int NUM_CORES = Runtime.getRuntime().availableProcessors();
+  // Interpreters that predict concurrently, NUM_CORES are shared between their threads.
+  private static final int POOL_SIZE = Math.max(1, NUM_CORES / NUM_LITE_THREADS);
+  // Most protocol queries are 20 to 40 word pieces, so they run at a fraction of MAX_SEQ_LEN.
+  private static final int[] SEQ_LEN_BUCKETS = {32, 64, 96, MAX_SEQ_LEN};
+  // Runs of each shape before the model is ready, the first one is the cold run.
+  private static final int WARM_UP_RUNS = 3;
+  // Queries of the calibration set the interpreter options are tuned on.
+  private static final int CALIBRATION_QUERIES = 16;
+  // Predictions kept by the ids of their query, at most a few hundred bytes each.
+  private static final int PREDICTION_CACHE_SIZE = 512;
+  // Longest a prediction without a timeout waits for the model, so a load that never comes doesn't
+  // hold a thread of predictAsync for good.
+  private static final long READY_TIMEOUT_SECONDS = 120;
+  // Idle threads of predictAsync stop after this, so an unloaded client holds none.
+  private static final long EXECUTOR_KEEP_ALIVE_SECONDS = 30;
+  // Distinct words whose word pieces are cached, narratives keep reusing the same terms.
+  private static final int TOKENIZER_CACHE_WORDS = 4096;
 
   private static final String IDS_TENSOR_NAME = "input_ids_1:0";
   private static final String MASK_TENSOR_NAME = "input_mask_1:0";
@@ -66,16 +97,143 @@ public class QaClient<myMap> implements AutoCloseable {
   private static final int OUTPUT_OFFSET = 1;
 
   private final Context context;
-  private final Map<String, Integer> dic = new HashMap<>();
-  private final FeatureConverter featureConverter;
-  private Interpreter tflite;
+  private Map<String, Integer> dic;
+  private final SequenceBuckets seqLenBuckets;
+  private final int poolSize;
+  private final int maxInterpreters;
+  // Set by loadModel and read by concurrent predictions without locking. Each prediction checks
+  // out a runner of the pool, which has interpreters of the buckets of emsBuckets, up to
+  // maxInterpreters in all, and the buffers the feature is converted into.
+  private volatile FeatureConverter featureConverter;
+  // Codes of the fitted labels by index, which ranked predictions refer to.
+  private volatile String[] emsLabels;
+  private volatile InterpreterPool emsPool;
+  private SequenceBuckets emsBuckets;
+  // What predictBatch runs with, checked out by one batch at a time so the batch doesn't hold the
+  // monitor of the client. Null while the model isn't loaded.
+  private BatchContext batchContext;
+  private int warmUpRuns = WARM_UP_RUNS;
+  private boolean warmUpBatches;
+  private volatile WarmUpReport warmUpReport;
+  // Completed once the model is loaded and warmed up, or failed with what stopped loadModel.
+  // Replaced by a new one when the model is unloaded, or loaded again after a failure.
+  private volatile CompletableFuture<Void> ready = new CompletableFuture<>();
+  private InterpreterAutotuner autotuner;
+  // Kept across unload and load, it's only cleared when the model or the labels change.
+  private volatile PredictionCache<ProtocolPrediction> predictionCache =
+      new PredictionCache<>(PREDICTION_CACHE_SIZE);
+  // Key of the model and digest of the labels of the last load.
+  private String fingerprint;
+  // Runs predictAsync, a thread per interpreter of the pool, so queued predictions only wait for
+  // an interpreter.
+  private final ThreadPoolExecutor predictExecutor;
+  // Fails the predictions of predictAsync that time out.
+  private final ScheduledThreadPoolExecutor timeoutExecutor;
   private MetadataExtractor metadataExtractor = null;
 
   private static final Joiner SPACE_JOINER = Joiner.on(" ");
 
   public QaClient(Context context) {
+    this(context, POOL_SIZE, SEQ_LEN_BUCKETS);
+  }
+
+  /**
+   * Same as above, running up to poolSize predictions at once, each at the shortest of
+   * seqLenBuckets that fits its query. Queries are cut to the longest one the model can be
+   * resized to.
+   *
+   * <p>Each interpreter holds its own packed weights with XNNPACK, so the pool creates as many as
+   * there are buckets, as a single interpreter per bucket would, or two per runner if that's more.
+   * Queries whose bucket has no interpreter left run at a longer one.
+   */
+  public QaClient(Context context, int poolSize, int[] seqLenBuckets) {
     this.context = context;
-    this.featureConverter = new FeatureConverter(dic, DO_LOWER_CASE, MAX_QUERY_LEN, MAX_SEQ_LEN);
+    this.poolSize = poolSize;
+    this.maxInterpreters = Math.max(seqLenBuckets.length, 2 * poolSize);
+    this.seqLenBuckets = new SequenceBuckets(seqLenBuckets);
+    this.predictExecutor =
+        new ThreadPoolExecutor(
+            poolSize,
+            poolSize,
+            EXECUTOR_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            daemonThreads("QaClient-predict"));
+    predictExecutor.allowCoreThreadTimeOut(true);
+    this.timeoutExecutor = new ScheduledThreadPoolExecutor(1, daemonThreads("QaClient-timeout"));
+    timeoutExecutor.setKeepAliveTime(EXECUTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+    timeoutExecutor.allowCoreThreadTimeOut(true);
+    timeoutExecutor.setRemoveOnCancelPolicy(true);
+  }
+
+  private static ThreadFactory daemonThreads(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * Sets how many times loadModel runs each input shape before the model is ready, 0 to skip the
+   * warm-up. Predictions run at batch 1 on every sequence length bucket the pool has interpreters
+   * of. If batches is set, the runner of predictBatch is also warmed up at BATCH_SIZE and the
+   * longest bucket, which sizes its tensors for every batch after that. It's off by default: that
+   * runner is an interpreter of its own, with its own packed weights and tensors for BATCH_SIZE
+   * queries, that only offline scoring uses.
+   */
+  public synchronized void setWarmUp(int runs, boolean batches) {
+    this.warmUpRuns = runs;
+    this.warmUpBatches = batches;
+  }
+
+  /**
+   * Sets the autotuner loadModel picks the interpreter options with, or null to run the pool with
+   * NUM_CORES / poolSize threads and the default options.
+   */
+  public synchronized void setAutotuner(InterpreterAutotuner autotuner) {
+    this.autotuner = autotuner;
+  }
+
+  /** Replaces the cache of single query and batch predictions, or disables it if null. */
+  public synchronized void setPredictionCache(PredictionCache<ProtocolPrediction> cache) {
+    if (cache != null && fingerprint != null) {
+      cache.validate(fingerprint);
+    }
+    this.predictionCache = cache;
+  }
+
+  /** Returns the cache of predictions, e.g. for its hit rate, or null if it's disabled. */
+  public PredictionCache<ProtocolPrediction> getPredictionCache() {
+    return predictionCache;
+  }
+
+  /** Returns whether the model is loaded and warmed up. */
+  public boolean isReady() {
+    CompletableFuture<Void> ready = this.ready;
+    return ready.isDone() && !ready.isCompletedExceptionally();
+  }
+
+  /**
+   * Waits until the model is loaded and warmed up, so a live query doesn't pay for the cold runs.
+   * Returns false if it isn't ready within the timeout, throws IllegalStateException if the last
+   * load failed.
+   */
+  public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+    try {
+      ready.get(timeout, unit);
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("The model failed to load.", e.getCause());
+    }
+  }
+
+  /** Returns the cold and warm latencies of the last warm-up, or null before the first one. */
+  public WarmUpReport getWarmUpReport() {
+    return warmUpReport;
   }
 
   private List<String> testData;
@@ -86,155 +244,313 @@ public class QaClient<myMap> implements AutoCloseable {
   private String PROB_TEXT_PATH = Environment.getExternalStorageDirectory().getPath() +
           "/distressnet/MStorm/EMSFiles/";
 
+  /**
+   * Loads and warms up the model. Throws IllegalStateException if an asset can't be read, or
+   * VerifyException if the model doesn't match the client; predictions waiting for the model and
+   * the ones made until the next load then fail with it.
+   */
   @WorkerThread
   public synchronized void loadModel() {
+    if (ready.isCompletedExceptionally()) {
+      ready = new CompletableFuture<>();
+    }
     try {
 //      ByteBuffer buffer = ModelHelper.loadModelFile(context);
       testData = ModelHelper.loadTestData(context);
       label_map = ModelHelper.loadLabels(context);
       //fitted_label_map = ModelHelper.loadFittedLabels(context);
       fitted_label_map_rev = ModelHelper.loadFittedLabelsRev(context);
+      Log.i(TAG, "Fitted label map : \n" + fitted_label_map_rev.toString());
 
-      ByteBuffer buffer = ModelHelper.loadEMSModelFile(context);
+      ByteBuffer buffer = loadModelBuffer();
       metadataExtractor = new MetadataExtractor(buffer);
-      Map<String, Integer> loadedDic = ModelHelper.extractDictionary(metadataExtractor);
-      verify(loadedDic != null, "dic can't be null.");
-      dic.putAll(loadedDic);
-
-      Interpreter.Options opt = new Interpreter.Options();
-      opt.setNumThreads(NUM_LITE_THREADS);
-      tflite = new Interpreter(buffer, opt);
-
-      Log.v(TAG, "TFLite model loaded.");
+      // The vocab compiled at build time is mapped as is, vocab.txt in the model metadata is only
+      // parsed when it's missing.
+      dic = ModelHelper.loadCompiledDictionary(context);
+      if (dic == null) {
+        dic = ModelHelper.extractDictionary(metadataExtractor);
+      }
+      verify(dic != null, "dic can't be null.");
+
+      // Checked before any interpreter is allocated, a model of another shape fails here.
+      ModelBinding binding = ModelBinding.load(buffer, MAX_SEQ_LEN, NUM_PRED_CLASSES);
+      // The model isn't hashed, it's only replaced along with the app.
+      String modelKey = ModelHelper.assetModelKey(context, buffer);
+      // Cached predictions of another model or label file are dropped before any prediction can
+      // run on this one.
+      fingerprint =
+          modelKey
+              + "/"
+              + ModelHelper.sha256(
+                  ByteBuffer.wrap(
+                      fitted_label_map_rev.toString().getBytes(StandardCharsets.UTF_8)));
+      if (predictionCache != null) {
+        predictionCache.validate(fingerprint);
+      }
+      // The interpreters of the pool share the cores, so they don't slow each other down.
+      int maxThreads = Math.max(1, NUM_CORES / poolSize);
+      InterpreterAutotuner.Config tuned =
+          autotuner == null ? null : tuneOptions(buffer, modelKey, binding, maxThreads);
+      Interpreter.Options poolOptions =
+          tuned == null ? new Interpreter.Options().setNumThreads(maxThreads) : tuned.toOptions();
+      InterpreterPool pool =
+          new InterpreterPool(
+              buffer, binding, seqLenBuckets, poolSize, poolOptions, maxInterpreters);
+      String[] labels = new String[binding.numClasses()];
+      for (int i = 0; i < labels.length; i++) {
+        labels[i] = fitted_label_map_rev.get(i);
+      }
+      emsLabels = labels;
+      emsBuckets = pool.buckets();
+
+      // The wordpiece trie is built from the vocab, so the converter is created once it's loaded.
+      featureConverter =
+          new FeatureConverter(
+              dic, DO_LOWER_CASE, MAX_QUERY_LEN, emsBuckets.maxLength(), TOKENIZER_CACHE_WORDS);
+      if (batchContext != null) {
+        batchContext.trim();
+      }
+      // The batch runner has the cores to itself, only the delegate options are carried over.
+      batchContext =
+          new BatchContext(
+              buffer,
+              binding,
+              tuned == null
+                  ? new Interpreter.Options().setNumThreads(NUM_LITE_THREADS)
+                  : new InterpreterAutotuner.Config(
+                          NUM_LITE_THREADS, tuned.useXnnpack, tuned.allowFp16)
+                      .toOptions(),
+              featureConverter,
+              labels,
+              emsBuckets);
+
+      Log.v(
+          TAG,
+          String.format(
+              "TFLite model loaded, %s, %d runners of up to %d interpreters of %s, %s.",
+              binding,
+              poolSize,
+              maxInterpreters,
+              tuned == null ? maxThreads + " threads" : tuned,
+              emsBuckets));
+
+      // The pool is only published once it's warmed up, so no prediction checks out its runners
+      // in the meantime.
+      WarmUpReport report = pool.warmUp(warmUpRuns);
+      if (warmUpBatches && warmUpRuns > 0) {
+        warmUpBatchRunner(batchContext, report);
+      }
+      warmUpReport = report;
+      Log.v(TAG, report.toString());
+      emsPool = pool;
+      ready.complete(null);
     } catch (IOException ex) {
       Log.e(TAG, ex.getMessage());
+      IllegalStateException failure = new IllegalStateException("Can't load the model.", ex);
+      ready.completeExceptionally(failure);
+      throw failure;
+    } catch (RuntimeException ex) {
+      // E.g. a VerifyException of a model that doesn't bind.
+      ready.completeExceptionally(ex);
+      throw ex;
     }
   }
 
+  /** Maps the EMS model, overridden by tests that load another buffer. */
+  ByteBuffer loadModelBuffer() throws IOException {
+    return ModelHelper.loadEMSModelFile(context);
+  }
+
+  /**
+   * Times the first queries of the calibration set on a single interpreter at the longest bucket,
+   * which every runner of the pool has, with every candidate of up to maxThreads threads, or
+   * returns the options picked for this model and cores before.
+   */
+  private InterpreterAutotuner.Config tuneOptions(
+      ByteBuffer model, String modelKey, ModelBinding binding, int maxThreads)
+      throws IOException {
+    List<String> queries = ModelHelper.loadCalibrationQueries(context, CALIBRATION_QUERIES);
+    int seqLen = seqLenBuckets.maxLength();
+    FeatureConverter converter = new FeatureConverter(dic, DO_LOWER_CASE, MAX_QUERY_LEN, seqLen);
+    return autotuner.tune(
+        ModelHelper.EMS_MODEL_PATH,
+        modelKey,
+        InterpreterAutotuner.candidates(maxThreads),
+        options -> {
+          ModelRunner runner = new ModelRunner(model, options, binding, 1, seqLen);
+          return new InterpreterAutotuner.Session() {
+            @Override
+            public void run() {
+              for (String query : queries) {
+                converter.convertInto(query, runner.buffers(), 0);
+                runner.run();
+              }
+            }
+
+            @Override
+            public void close() {
+              runner.close();
+            }
+          };
+        });
+  }
+
   @WorkerThread
   public synchronized void unload() {
     close();
   }
 
+  /**
+   * Frees what's rebuilt on demand while the model stays loaded: the runner of predictBatch and
+   * the cached predictions and word pieces.
+   */
+  public synchronized void trimMemory() {
+    if (batchContext != null) {
+      batchContext.trim();
+    }
+    PredictionCache<ProtocolPrediction> cache = predictionCache;
+    if (cache != null) {
+      cache.clear();
+    }
+    FeatureConverter converter = featureConverter;
+    if (converter != null && converter.getSegmentationCache() != null) {
+      converter.getSegmentationCache().clear();
+    }
+  }
+
+  /** Closes the interpreters, predictions still running close theirs when they're done. */
   @Override
-  public void close() {
-    if (tflite != null) {
-      tflite.close();
-      tflite = null;
+  public synchronized void close() {
+    // Predictions waiting for a load that's still to come keep waiting for it.
+    if (ready.isDone()) {
+      ready = new CompletableFuture<>();
+    }
+    if (emsPool != null) {
+      emsPool.close();
+      emsPool = null;
+    }
+    if (batchContext != null) {
+      Log.v(TAG, batchContext.sizer.toString());
+      // A batch still running closes the runner once it's done.
+      batchContext.trim();
+      batchContext = null;
+      notifyAll();
+    }
+    if (predictionCache != null) {
+      Log.v(TAG, predictionCache.toString());
+    }
+    emsBuckets = null;
+    dic = null;
+    if (featureConverter != null) {
+      Log.v(TAG, "Tokenizer " + featureConverter.getSegmentationCache());
+      featureConverter = null;
     }
-    dic.clear();
+    emsLabels = null;
   }
 
 
   @SuppressLint("DefaultLocale")
-  public synchronized String run_pp_test_for_fitted_am(String que_ry){
+  public String run_pp_test_for_fitted_am(String que_ry){
 //    que_ry = "mental status changes mental status changes septicemia pulmonary edema septicemia";
     Log.i(TAG, "Called the run_pp_test with query : " + que_ry);
-
-    long infer_prepros_start = System.currentTimeMillis();
-
-    float[][] emsPredLogits = new float[1][NUM_PRED_CLASSES];
-//    int[] inputIds = new int[MAX_SEQ_LEN];
-//    int[] inputMask = new int[MAX_SEQ_LEN];
-//    int[] segmentIds = new int[MAX_SEQ_LEN];
-    int[][] inputs = new int[3][MAX_SEQ_LEN];
-
-    String output_str_to_save = "";
-    Map<Integer, Object> output = new HashMap<>();
-    long total_latency = 0;
-
-    String query = que_ry;
-
-//    tflite.run
-
-    int input_idx = tflite.getInputIndex("serving_default_input_word_ids:0");
-    int mask_idx = tflite.getInputIndex("serving_default_input_mask:0");
-    int segment_idx = tflite.getInputIndex("serving_default_input_type_ids:0");
-
-    Log.i(TAG, "Called the EMSBertFeature");
-    EMSBertFeature emsBertFeature = featureConverter.convert(query);
-    int[] inputIds = emsBertFeature.inputIds;
-    int[] inputMask = emsBertFeature.inputMask;
-    int[] segmentIds = emsBertFeature.segmentIds;
-
-    inputs[0] = inputIds;
-    inputs[2] = inputMask;
-    inputs[1] = segmentIds;
-
-    Log.i(TAG, "inputIds " + input_idx + " " + inputIds.length +  ":" + inputIds);
-    Log.i(TAG, "inputMask " + mask_idx + " " + inputMask.length +  ":" +  inputMask);
-    Log.i(TAG, "segmentIds " + segment_idx + " " + segmentIds.length +  ":" +  segmentIds);
-
-    output.put(0, emsPredLogits);
-    long infer_prepros_latency = System.currentTimeMillis() - infer_prepros_start;
-    Log.i(TAG, "******** emsBert preprocessing Latency : " + infer_prepros_latency);
-
-    long infer_start = System.currentTimeMillis();
-    Log.i(TAG, "Called the tflite model for inference...");
-    tflite.runForMultipleInputsOutputs(inputs, output);
-    long infer_latency = System.currentTimeMillis() - infer_start;
-    Log.i(TAG, "******** emsBert inference Latency : " + infer_latency);
-    //    total_latency += infer_latency;
-    Log.i(TAG, "After inference");
-
-//    StringBuilder outputStr = new StringBuilder();
-//    float [] predFloat = new float[emsPredLogits[0].length];
-//    for (int out_idx = 0; out_idx < emsPredLogits[0].length; out_idx++) {
-//
-//      outputStr.append(String.format("%.7f", emsPredLogits[0][out_idx])).append(", ");
-//      predFloat[out_idx] = emsPredLogits[0][out_idx];
-//      if ((out_idx + 1) % 5 == 0) {
-//        outputStr.append("\n");
-//      }
-//    }
-//    Log.v(TAG, String.format("Output Predication: \n%s", outputStr.toString()));
+    ProtocolPrediction prediction = predictProtocols(que_ry, new ProtocolPrediction(K));
 
     long infer_postpros_start = System.currentTimeMillis();
+    String output = prediction.format();
+    long infer_postpros_latency = System.currentTimeMillis() - infer_postpros_start;
+    Log.i(TAG, "******** emsBert postprocessing Latency : " + infer_postpros_latency);
+    Log.i(TAG, output);
+    return output;
+  }
 
-    Log.i(TAG, "Fitted label map : \n" + fitted_label_map_rev.toString());
-
-    /** Create an unsorted Map with Index **/
-    Map unsortedMap = getMapFromArrayRev(emsPredLogits[0]);
-    Log.i(TAG, "Unsorted Map" + unsortedMap);
-
+  /**
+   * Predicts the protocols of query into prediction, as many as it holds, and returns it. Nothing
+   * is boxed or formatted on the way, so a caller that reuses its prediction doesn't allocate for
+   * the results; {@link ProtocolPrediction#format()} gives the text of {@link
+   * #run_pp_test_for_fitted_am}. Safe to call from several threads, each with its own prediction.
+   */
+  @WorkerThread
+  public ProtocolPrediction predictProtocols(String query, ProtocolPrediction prediction) {
+    return predictProtocols(query, null, prediction);
+  }
 
-    /** Sort the prediction array **/
-    Arrays.sort(emsPredLogits[0]);
+  /**
+   * Converts query into a new feature for the method below, e.g. on another thread than the one
+   * that runs the model.
+   */
+  public EMSBertFeature convert(String query) {
+    FeatureConverter converter = featureConverter;
+    verify(converter != null, "The model isn't loaded.");
+    return converter.convert(query);
+  }
 
-    /** Reverse the sorted prediction array **/
-    for(int i = 0; i < emsPredLogits[0].length / 2; i++)
-    {
-      float temp = emsPredLogits[0][i];
-      emsPredLogits[0][i] = emsPredLogits[0][emsPredLogits[0].length - i - 1];
-      emsPredLogits[0][emsPredLogits[0].length - i - 1] = temp;
-    }
+  /**
+   * Starts a session that keeps the feature of a growing transcript, e.g. partial ASR results, for
+   * {@link #predictAsync(EMSBertFeature, long, TimeUnit)}.
+   */
+  public FeatureSession newSession() {
+    FeatureConverter converter = featureConverter;
+    verify(converter != null, "The model isn't loaded.");
+    return converter.newSession();
+  }
 
-    /** Create a sorted Map with Index **/
-    Map sortedMap = getMapFromArray(emsPredLogits[0]);
-    Log.i(TAG,"Sorted Map: " + sortedMap);
+  /** Same as above for a query already converted by {@link #convert(String)}. */
+  @WorkerThread
+  public ProtocolPrediction predictProtocols(
+      EMSBertFeature feature, ProtocolPrediction prediction) {
+    return predictProtocols(null, feature, prediction);
+  }
 
-    /** Create a top five prediction table **/
+  private ProtocolPrediction predictProtocols(
+      String query, EMSBertFeature converted, ProtocolPrediction prediction) {
+    long infer_prepros_start = System.currentTimeMillis();
 
-    //Map returnMap = new HashMap<Float,String>();
+    // Read before the pool, a prediction of a model that's being replaced isn't cached.
+    PredictionCache<ProtocolPrediction> cache = predictionCache;
+    long generation = (cache == null) ? 0 : cache.generation();
+    PredictionCache.Key key = null;
+    InterpreterPool pool = emsPool;
+    FeatureConverter converter = featureConverter;
+    String[] labels = emsLabels;
+    verify(pool != null && converter != null && labels != null, "The model isn't loaded.");
+    EMSBertFeature feature = (converted != null) ? converted : converter.convertLocal(query);
+
+    // Looked up before a runner is checked out, so a cached query doesn't wait for one. The hit
+    // rate is in the toString of the cache, logged when the client closes.
+    if (cache != null) {
+      key = PredictionCache.keyOf(feature);
+      ProtocolPrediction cached = cache.get(key);
+      if (cached != null && cached.size() >= Math.min(prediction.capacity(), labels.length)) {
+        return prediction.copyFrom(cached);
+      }
+    }
 
-    int i_map = 0;
-    StringBuilder outputStr2 = new StringBuilder();
-    for(int i = 0; i<5; i++) {
-      i_map =  (int) unsortedMap.get(sortedMap.get(i));
-      Log.i(TAG, "i_map value : " + i_map);
-      //returnMap.put(sortedMap.get(i), fitted_label_map_rev.get(i_map));
-      outputStr2.append(fitted_label_map_rev.get(i_map));
-      outputStr2.append("\t\t");
-      outputStr2.append(sortedMap.get(i));
-      outputStr2.append("\n");
+    InterpreterPool.Runner runner;
+    try {
+      runner = pool.acquire(feature.length());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for an interpreter.", e);
+    }
+    // The runner is released as soon as its logits are ranked, so other predictions can use it.
+    try {
+      long infer_prepros_latency = System.currentTimeMillis() - infer_prepros_start;
+      Log.i(TAG, "******** emsBert preprocessing Latency : " + infer_prepros_latency);
+
+      long infer_start = System.currentTimeMillis();
+      prediction.select(runner.run(feature), labels);
+      long infer_latency = System.currentTimeMillis() - infer_start;
+      Log.i(
+          TAG, "******** emsBert inference Latency at " + runner.seqLen() + " : " + infer_latency);
+    } finally {
+      pool.release(runner);
     }
 
-    long infer_postpros_latency = System.currentTimeMillis() - infer_postpros_start;
-    Log.i(TAG, "******** emsBert postprocessing Latency : " + infer_postpros_latency);
-    //Log.i(TAG, "return map: " + returnMap);
-    Log.i(TAG, outputStr2.toString());
-    //return predFloat;
-    return outputStr2.toString();
+    if (cache != null) {
+      ProtocolPrediction copy = new ProtocolPrediction(prediction.capacity()).copyFrom(prediction);
+      cache.put(key, generation, copy);
+    }
+    return prediction;
   }
 
 
@@ -245,57 +561,319 @@ public class QaClient<myMap> implements AutoCloseable {
    * @return
    */
   @WorkerThread
-  public synchronized String predict(String query, String Content) {
+  public String predict(String query, String Content) {
     Log.i(TAG, "Just called the predict function");
 
     return run_pp_test_for_fitted_am(query);
   }
 
-  private synchronized int argMax(float[] arr){
-    int maxIdx = 0;
-    for(int i = 0; i < arr.length; i++){
-      if(arr[maxIdx] < arr[i]){
-        maxIdx = i;
+  /** Same as below without a timeout. */
+  public CompletableFuture<String> predictAsync(String query) {
+    return predictAsync(query, 0, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Predicts the top protocols of query like {@link #predict} on a thread of the client, and
+   * returns at once. Predictions made before the model is ready wait for it, and fail with the
+   * cause if loadModel fails. Several of them run at once, up to the size of the pool, and the
+   * others queue.
+   *
+   * <p>The future fails with a TimeoutException if the prediction isn't done within timeout. If
+   * timeout is 0 it only times out when the model isn't ready within READY_TIMEOUT_SECONDS. Once
+   * it's cancelled or timed out, a prediction still queued is dropped and one waiting for the
+   * model or an interpreter stops waiting; the interpreter isn't stopped during an invocation.
+   */
+  public CompletableFuture<String> predictAsync(String query, long timeout, TimeUnit unit) {
+    return predictAsync(() -> run_pp_test_for_fitted_am(query), timeout, unit);
+  }
+
+  /**
+   * Same as above for a feature converted by the caller, e.g. by a {@link FeatureSession}. The
+   * feature is read by the prediction, so the caller hands over a copy it doesn't update.
+   */
+  public CompletableFuture<String> predictAsync(
+      EMSBertFeature feature, long timeout, TimeUnit unit) {
+    return predictAsync(
+        () -> predictProtocols(feature, new ProtocolPrediction(K)).format(), timeout, unit);
+  }
+
+  private CompletableFuture<String> predictAsync(
+      Supplier<String> prediction, long timeout, TimeUnit unit) {
+    CompletableFuture<String> result = new CompletableFuture<>();
+    Future<?> task =
+        predictExecutor.submit(
+            () -> {
+              try {
+                if (timeout > 0) {
+                  ready.get(timeout, unit);
+                } else {
+                  ready.get(READY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+                result.complete(prediction.get());
+              } catch (InterruptedException e) {
+                // Only interrupted once the result is done.
+                result.completeExceptionally(new CancellationException("Interrupted."));
+              } catch (ExecutionException e) {
+                // The model failed to load.
+                result.completeExceptionally(e.getCause());
+              } catch (TimeoutException e) {
+                result.completeExceptionally(new TimeoutException("The model isn't ready."));
+              } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+              }
+            });
+    if (timeout > 0) {
+      ScheduledFuture<?> timer =
+          timeoutExecutor.schedule(
+              () ->
+                  result.completeExceptionally(
+                      new TimeoutException("No prediction after " + timeout + " " + unit)),
+              timeout,
+              unit);
+      result.whenComplete((answers, e) -> timer.cancel(false));
+    }
+    result.whenComplete(
+        (answers, e) -> {
+          if (e != null) {
+            task.cancel(/* mayInterruptIfRunning= */ true);
+          }
+        });
+    return result;
+  }
+
+  /**
+   * Predicts the top protocols of each query, formatted like {@link #run_pp_test_for_fitted_am}.
+   * Queries are sorted by length and run in batches padded to the bucket of their longest query,
+   * so each batch is a single invocation of the model. The batch size is picked from the latency
+   * of the previous batches, up to BATCH_SIZE. Meant for offline scoring where throughput matters
+   * more than the latency of a single query. Cached queries don't take a row.
+   */
+  @WorkerThread
+  public List<String> predictBatch(List<String> queries) {
+    BatchContext context;
+    // Only the check out holds the monitor, so unload or trimMemory don't wait for the batch.
+    synchronized (this) {
+      while (batchContext != null && batchContext.busy) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while waiting for the batch runner.", e);
+        }
+      }
+      context = batchContext;
+      verify(context != null, "The model isn't loaded.");
+      context.busy = true;
+    }
+    try {
+      return predictBatch(context, queries);
+    } finally {
+      synchronized (this) {
+        context.busy = false;
+        // Unloaded or trimmed while the batch ran.
+        if (context != batchContext || context.trimmed) {
+          context.trim();
+        }
+        notifyAll();
       }
     }
-    return maxIdx;
   }
 
-  private Map<Integer,Float> getMapFromArray(float[] arr){
-    HashMap<Integer,Float> map = new HashMap<>();
-    for (int i = 0; i < arr.length; i++) {
-      map.put(i, arr[i]);
+  private List<String> predictBatch(BatchContext context, List<String> queries) {
+    BatchSizer sizer = context.sizer;
+    int count = queries.size();
+    PredictionCache<ProtocolPrediction> cache = predictionCache;
+    ProtocolPrediction prediction = new ProtocolPrediction(K);
+    long generation = (cache == null) ? 0 : cache.generation();
+    PredictionCache.Key[] keys = new PredictionCache.Key[count];
+    String[] results = new String[count];
+    // Queries are tokenized once to be sorted, then again into the batch they run in, as keeping
+    // every feature would take 1.5 KB a query.
+    long[] order = new long[count];
+    int misses = 0;
+    for (int i = 0; i < count; i++) {
+      context.converter.convertInto(queries.get(i), context.feature);
+      if (cache != null) {
+        keys[i] = PredictionCache.keyOf(context.feature);
+        ProtocolPrediction cached = cache.get(keys[i]);
+        if (cached != null && cached.size() >= Math.min(K, context.labels.length)) {
+          results[i] = prediction.copyFrom(cached).format();
+          continue;
+        }
+      }
+      order[misses++] = ((long) context.feature.length() << 32) | i;
+    }
+    Arrays.sort(order, 0, misses);
+
+    float[] logits = new float[context.binding.numClasses()];
+    long start = System.nanoTime();
+    int batches = 0;
+    for (int done = 0; done < misses; ) {
+      int batchSize = Math.min(sizer.batchSize(), misses - done);
+      // Sorted by length, so the last query of the batch is the longest.
+      int longest = (int) (order[done + batchSize - 1] >>> 32);
+      int seqLen = context.buckets.length(context.buckets.bucketFor(longest));
+      ModelRunner runner;
+      try {
+        runner = context.runner(batchSize, seqLen);
+      } catch (IllegalArgumentException | IllegalStateException e) {
+        Log.w(TAG, "Can't run the model on a batch of " + batchSize + " at " + seqLen, e);
+        verify(batchSize > 1, "The model can't be run on a batch of 1 at %s", seqLen);
+        sizer.limit(batchSize - 1);
+        continue;
+      }
+
+      FeatureBuffers buffers = runner.buffers();
+      for (int row = 0; row < batchSize; row++) {
+        context.converter.convertInto(queries.get((int) order[done + row]), buffers, row);
+      }
+      long batchStart = System.nanoTime();
+      FloatBuffer batchLogits = runner.run();
+      sizer.record(batchSize, seqLen, System.nanoTime() - batchStart);
+      for (int row = 0; row < batchSize; row++) {
+        batchLogits.get(logits);
+        int query = (int) order[done + row];
+        prediction.select(logits, context.labels);
+        results[query] = prediction.format();
+        if (cache != null) {
+          cache.put(keys[query], generation, new ProtocolPrediction(K).copyFrom(prediction));
+        }
+      }
+      done += batchSize;
+      batches++;
     }
-    return map;
+    Log.v(
+        TAG,
+        String.format(
+            "%d queries, %d cached, in %d batches, %.3f ms/query, %s",
+            count,
+            count - misses,
+            batches,
+            (System.nanoTime() - start) / 1e6 / Math.max(1, count),
+            sizer));
+    return Arrays.asList(results);
+  }
+
+  /**
+   * Returns a scheduler that coalesces predictions coming in close together into calls of {@link
+   * #predictBatch}, flushed at maxBatchSize queries or after maxWaitMillis. The caller closes it.
+   */
+  public MicroBatchScheduler<String> newBatchScheduler(int maxBatchSize, long maxWaitMillis) {
+    return new MicroBatchScheduler<>(this::predictBatch, maxBatchSize, maxWaitMillis);
   }
 
-  private Map<Float,Integer> getMapFromArrayRev(float[] arr){
-    HashMap<Float,Integer> map = new HashMap<>();
-    for (int i = 0; i < arr.length; i++) {
-      map.put(arr[i],i);
+  /** Runs the batch runner at its largest shape, see setWarmUp. */
+  private void warmUpBatchRunner(BatchContext context, WarmUpReport report) {
+    int batchSize = context.sizer.maxBatchSize();
+    int seqLen = context.buckets.maxLength();
+    ModelRunner runner;
+    try {
+      runner = context.runner(batchSize, seqLen);
+    } catch (IllegalArgumentException | IllegalStateException e) {
+      Log.w(TAG, "Can't warm up batches of " + batchSize, e);
+      return;
+    }
+    FeatureBuffers buffers = runner.buffers();
+    for (int row = 0; row < batchSize; row++) {
+      buffers.setLength(row, seqLen);
+    }
+    long cold = 0;
+    long warm = 0;
+    for (int run = 0; run < warmUpRuns; run++) {
+      long start = System.nanoTime();
+      runner.run();
+      long latency = System.nanoTime() - start;
+      if (run == 0) {
+        cold = latency;
+      } else {
+        warm += latency;
+      }
+    }
+    for (int row = 0; row < batchSize; row++) {
+      buffers.setLength(row, 0);
     }
-    return map;
+    report.add(batchSize, seqLen, cold, warmUpRuns > 1 ? warm / (warmUpRuns - 1) : 0);
   }
 
-  private List<Pair<Float, Integer>> getTopK(float[] arr, int k){
+  /**
+   * The loaded state predictBatch runs with and its runner, created on the first batch and resized
+   * to the size picked by the sizer and the bucket of each batch. Guarded by the client, except by
+   * the batch that checked it out.
+   */
+  private static final class BatchContext {
+    final ByteBuffer model;
+    final ModelBinding binding;
+    final Interpreter.Options options;
+    final FeatureConverter converter;
+    final String[] labels;
+    final SequenceBuckets buckets;
+    final BatchSizer sizer = new BatchSizer(BATCH_SIZE);
+    final EMSBertFeature feature;
+    // Whether a batch checked it out, it then closes the runner itself if trimmed meanwhile.
+    boolean busy;
+    boolean trimmed;
+    private ModelRunner runner;
+
+    BatchContext(
+        ByteBuffer model,
+        ModelBinding binding,
+        Interpreter.Options options,
+        FeatureConverter converter,
+        String[] labels,
+        SequenceBuckets buckets) {
+      this.model = model;
+      this.binding = binding;
+      this.options = options;
+      this.converter = converter;
+      this.labels = labels;
+      this.buckets = buckets;
+      this.feature = new EMSBertFeature(buckets.maxLength());
+    }
+
+    /** Returns the runner resized to [batchSize, seqLen], creating it if needed. */
+    ModelRunner runner(int batchSize, int seqLen) {
+      if (runner == null) {
+        runner = new ModelRunner(model, options, binding, batchSize, seqLen);
+        return runner;
+      }
+      try {
+        runner.resize(batchSize, seqLen);
+      } catch (IllegalArgumentException | IllegalStateException e) {
+        // The interpreter may be half resized, the next batch starts from a new one.
+        runner.close();
+        runner = null;
+        throw e;
+      }
+      return runner;
+    }
+
+    /** Closes the runner now, or once the batch that checked it out is done. */
+    void trim() {
+      if (busy) {
+        trimmed = true;
+        return;
+      }
+      trimmed = false;
+      if (runner != null) {
+        runner.close();
+        runner = null;
+      }
+    }
+  }
 
-    PriorityQueue<Pair<Float, Integer>> pq =
-            new PriorityQueue<Pair<Float, Integer>>(k, (p1, p2) -> (int) (p2.first - p1.first));
+  private int argMax(float[] arr){
+    int maxIdx = 0;
     for(int i = 0; i < arr.length; i++){
-      Pair<Float, Integer> p = new Pair<>(arr[i], i);
-      pq.add(p);
-      if(pq.size() > k){
-        pq.poll();
+      if(arr[maxIdx] < arr[i]){
+        maxIdx = i;
       }
     }
-    List<Pair<Float, Integer>> topKList = new ArrayList<>(pq);
-    Collections.reverse(topKList);
-    return topKList;
+    return maxIdx;
   }
 
 
   /** Find the Best N answers & logits from the logits array and input feature. */
-  private synchronized List<QaAnswer> getBestAnswers(
+  private List<QaAnswer> getBestAnswers(
       float[] startLogits, float[] endLogits, Feature feature) {
     // Model uses the closed interval [start, end] for indices.
     int[] startIndexes = getBestIndex(startLogits);
@@ -343,7 +921,7 @@ public class QaClient<myMap> implements AutoCloseable {
 
   /** Get the n-best logits from a list of all the logits. */
   @WorkerThread
-  private synchronized int[] getBestIndex(float[] logits) {
+  private int[] getBestIndex(float[] logits) {
     List<QaAnswer.Pos> tmpList = new ArrayList<>();
     for (int i = 0; i < MAX_SEQ_LEN; i++) {
       tmpList.add(new QaAnswer.Pos(i, i, logits[i]));
@@ -0,0 +1,184 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link QaClient} of the process, kept loaded while an activity uses it and for a while
+ * after, so coming back to the app or rotating the screen doesn't load and warm up the model
+ * again. Users acquire it when they start and release it when they stop. The model is loaded by
+ * the first acquire and unloaded once nobody has acquired it for the idle timeout, or at once if
+ * the system asks the process to trim its memory in the background.
+ *
+ * <p>Loads and unloads run in order on a thread of the holder. It's safe to use from several
+ * threads.
+ */
+public final class QaClientHolder implements ComponentCallbacks2 {
+  private static final String TAG = "QaClientHolder";
+  private static final long DEFAULT_IDLE_TIMEOUT_SECONDS = 60;
+
+  private static QaClientHolder instance;
+
+  private final QaClient client;
+  private final ScheduledThreadPoolExecutor executor;
+  private long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(DEFAULT_IDLE_TIMEOUT_SECONDS);
+  private int refCount;
+  // Whether a load was queued since the last unload.
+  private boolean loaded;
+  private ScheduledFuture<?> pendingUnload;
+
+  /** Returns the holder of the process, created on the first call. */
+  public static synchronized QaClientHolder get(Context context) {
+    if (instance == null) {
+      Context application = context.getApplicationContext();
+      QaClient client = new QaClient(application);
+      client.setAutotuner(new InterpreterAutotuner(application));
+      instance = new QaClientHolder(client);
+      application.registerComponentCallbacks(instance);
+    }
+    return instance;
+  }
+
+  QaClientHolder(QaClient client) {
+    this(
+        client,
+        new ScheduledThreadPoolExecutor(
+            1,
+            runnable -> {
+              Thread thread = new Thread(runnable, TAG);
+              thread.setDaemon(true);
+              return thread;
+            }));
+  }
+
+  /** Same as above, loading and unloading on executor, which must run its tasks in order. */
+  QaClientHolder(QaClient client, ScheduledThreadPoolExecutor executor) {
+    this.client = client;
+    this.executor = executor;
+    executor.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Returns the client without acquiring it, e.g. to set up listeners before the model is needed.
+   * Predictions fail while it isn't acquired.
+   */
+  public QaClient client() {
+    return client;
+  }
+
+  /** Sets how long the model stays loaded once it's released by everyone. */
+  public synchronized void setIdleTimeout(long timeout, TimeUnit unit) {
+    this.idleTimeoutMillis = unit.toMillis(timeout);
+  }
+
+  /**
+   * Returns the client, loading the model in the background unless it's loaded already. Use
+   * {@link QaClient#isReady()} or predictAsync, which waits, to tell when it is.
+   */
+  public synchronized QaClient acquire() {
+    refCount++;
+    if (pendingUnload != null) {
+      pendingUnload.cancel(false);
+      pendingUnload = null;
+    }
+    if (!loaded) {
+      loaded = true;
+      executor.execute(this::load);
+    }
+    return client;
+  }
+
+  /** Releases an acquire, the model is unloaded after the idle timeout unless acquired again. */
+  public synchronized void release() {
+    if (refCount == 0) {
+      throw new IllegalStateException("Released more often than acquired.");
+    }
+    refCount--;
+    if (refCount == 0 && loaded) {
+      pendingUnload =
+          executor.schedule(this::unloadIfIdle, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public synchronized int refCount() {
+    return refCount;
+  }
+
+  /**
+   * Unloads an idle model once the process is in the background, and drops the caches and the
+   * batch runner when the device runs low on memory while it's used.
+   */
+  @Override
+  public void onTrimMemory(int level) {
+    if (level >= TRIM_MEMORY_BACKGROUND) {
+      synchronized (this) {
+        if (refCount == 0 && loaded) {
+          Log.v(TAG, "Unloading the idle model, trim level " + level);
+          if (pendingUnload != null) {
+            pendingUnload.cancel(false);
+          }
+          pendingUnload = null;
+          executor.execute(this::unloadIfIdle);
+          return;
+        }
+      }
+    }
+    if (level == TRIM_MEMORY_RUNNING_LOW
+        || level == TRIM_MEMORY_RUNNING_CRITICAL
+        || level >= TRIM_MEMORY_BACKGROUND) {
+      executor.execute(client::trimMemory);
+    }
+  }
+
+  @Override
+  public void onLowMemory() {
+    onTrimMemory(TRIM_MEMORY_COMPLETE);
+  }
+
+  @Override
+  public void onConfigurationChanged(Configuration configuration) {}
+
+  private void load() {
+    try {
+      client.loadModel();
+    } catch (RuntimeException e) {
+      Log.e(TAG, "Can't load the model.", e);
+      synchronized (this) {
+        // The next acquire tries again.
+        loaded = false;
+      }
+    }
+  }
+
+  private void unloadIfIdle() {
+    synchronized (this) {
+      // Acquired again since the unload was scheduled, or unloaded already.
+      if (refCount > 0 || !loaded) {
+        return;
+      }
+      loaded = false;
+      pendingUnload = null;
+    }
+    Log.v(TAG, "Unloading the idle model.");
+    client.unload();
+  }
+}
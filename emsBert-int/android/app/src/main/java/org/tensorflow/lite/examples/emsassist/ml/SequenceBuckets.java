@@ -0,0 +1,67 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import java.util.Arrays;
+
+/**
+ * Sequence lengths the EMS Bert model is run at. A query takes the shortest one that fits its
+ * [CLS], word piece ids and [SEP], so short queries don't pay for the padding of the longest one.
+ */
+public final class SequenceBuckets {
+  private final int[] lengths;
+
+  /** Lengths may come in any order, duplicates are dropped. */
+  public SequenceBuckets(int... lengths) {
+    int[] sorted = Arrays.stream(lengths).sorted().distinct().toArray();
+    if (sorted.length == 0) {
+      throw new IllegalArgumentException("At least one sequence length is needed.");
+    }
+    // [CLS] and [SEP] take 2 positions.
+    if (sorted[0] < 2) {
+      throw new IllegalArgumentException("Sequence lengths must be at least 2, got " + sorted[0]);
+    }
+    this.lengths = sorted;
+  }
+
+  /** Returns the number of buckets, ordered by increasing length. */
+  public int size() {
+    return lengths.length;
+  }
+
+  public int length(int bucket) {
+    return lengths[bucket];
+  }
+
+  public int maxLength() {
+    return lengths[lengths.length - 1];
+  }
+
+  /** Returns the shortest bucket of at least length positions. */
+  public int bucketFor(int length) {
+    for (int bucket = 0; bucket < lengths.length; bucket++) {
+      if (lengths[bucket] >= length) {
+        return bucket;
+      }
+    }
+    throw new IllegalArgumentException(
+        "A sequence of " + length + " doesn't fit in " + maxLength() + " positions.");
+  }
+
+  @Override
+  public String toString() {
+    return "SequenceBuckets" + Arrays.toString(lengths);
+  }
+}
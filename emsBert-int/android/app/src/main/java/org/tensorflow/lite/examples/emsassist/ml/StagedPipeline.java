@@ -0,0 +1,246 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Chain of stages that each run on a thread of their own, e.g. audio decoding, ASR, tokenization
+ * and the EMS Bert model, so a clip is decoded while the previous one is transcribed and the one
+ * before it predicted. Stages take their items from a bounded queue and block putting them into
+ * the queue of the next stage when it's full, so a slow stage holds back the ones before it
+ * instead of letting items pile up in memory.
+ *
+ * <p>Items go through every stage in the order they're submitted. An item whose future is done,
+ * e.g. cancelled, is dropped by the next stage that takes it, one that throws fails its future and
+ * goes no further. A stage that throws CancellationException drops its item quietly and cancels
+ * its future. Queue depths and service times of every stage are kept as metrics.
+ */
+public final class StagedPipeline<I, O> implements AutoCloseable {
+  private static final String TAG = "StagedPipeline";
+  // Put behind the submitted items by close(), each stage hands it on and stops.
+  private static final Item END = new Item(null);
+
+  private final List<Stage> stages;
+  // Set by close() before it offers END.
+  private volatile boolean closed;
+
+  private StagedPipeline(List<Stage> stages) {
+    this.stages = stages;
+    for (int i = 0; i < stages.size(); i++) {
+      stages.get(i).start(this, i + 1 < stages.size() ? stages.get(i + 1) : null);
+    }
+  }
+
+  /** Starts a pipeline whose stages each queue up to capacity items. */
+  public static <I> Builder<I, I> builder(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("The queue capacity must be positive.");
+    }
+    return new Builder<>(capacity, new ArrayList<>());
+  }
+
+  /** Adds stages in order, each one takes the output of the previous one. */
+  public static final class Builder<I, T> {
+    private final int capacity;
+    private final List<Stage> stages;
+
+    private Builder(int capacity, List<Stage> stages) {
+      this.capacity = capacity;
+      this.stages = stages;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <R> Builder<I, R> then(String name, Function<? super T, ? extends R> function) {
+      stages.add(new Stage(name, capacity, (Function<Object, Object>) function));
+      return new Builder<>(capacity, stages);
+    }
+
+    /** Starts the thread of every stage. */
+    public StagedPipeline<I, T> build() {
+      if (stages.isEmpty()) {
+        throw new IllegalStateException("A pipeline needs a stage.");
+      }
+      return new StagedPipeline<>(new ArrayList<>(stages));
+    }
+  }
+
+  /**
+   * Queues input into the first stage, waiting for room if it's full. The future completes with
+   * the output of the last stage or the error of the stage that failed.
+   */
+  public CompletableFuture<O> submit(I input) throws InterruptedException {
+    Item item = new Item(input);
+    stages.get(0).queue.put(item);
+    return cast(item.result);
+  }
+
+  /** Same as above but returns null at once if the first stage is full. */
+  public CompletableFuture<O> offer(I input) {
+    Item item = new Item(input);
+    return stages.get(0).queue.offer(item) ? cast(item.result) : null;
+  }
+
+  /**
+   * Lets the stages finish the items already submitted, then stops their threads. Returns at
+   * once, e.g. on the main thread, even if the first stage is full.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    stages.get(0).queue.offer(END);
+  }
+
+  public int stageCount() {
+    return stages.size();
+  }
+
+  public String stageName(int stage) {
+    return stages.get(stage).name;
+  }
+
+  /** Returns the number of items waiting in the queue of a stage. */
+  public int queueDepth(int stage) {
+    return stages.get(stage).queue.size();
+  }
+
+  /** Returns the number of items a stage ran on, failed ones included. */
+  public long servedCount(int stage) {
+    Stage s = stages.get(stage);
+    synchronized (s) {
+      return s.served;
+    }
+  }
+
+  public double meanServiceMillis(int stage) {
+    Stage s = stages.get(stage);
+    synchronized (s) {
+      return s.served == 0 ? 0 : s.totalServiceNanos / 1e6 / s.served;
+    }
+  }
+
+  public double maxServiceMillis(int stage) {
+    Stage s = stages.get(stage);
+    synchronized (s) {
+      return s.maxServiceNanos / 1e6;
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("Pipeline");
+    for (int i = 0; i < stages.size(); i++) {
+      builder.append(
+          String.format(
+              "%s %s: %d queued, %d served, %.1f ms mean, %.1f ms max",
+              i == 0 ? "" : ";",
+              stageName(i),
+              queueDepth(i),
+              servedCount(i),
+              meanServiceMillis(i),
+              maxServiceMillis(i)));
+    }
+    return builder.toString();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <O> CompletableFuture<O> cast(CompletableFuture<Object> result) {
+    return (CompletableFuture<O>) result;
+  }
+
+  private static final class Item {
+    private final CompletableFuture<Object> result = new CompletableFuture<>();
+    // The output of the last stage it went through.
+    private Object value;
+
+    private Item(Object value) {
+      this.value = value;
+    }
+  }
+
+  private static final class Stage {
+    private final String name;
+    private final BlockingQueue<Item> queue;
+    private final Function<Object, Object> function;
+    // Guarded by the stage.
+    private long served;
+    private long totalServiceNanos;
+    private long maxServiceNanos;
+
+    private Stage(String name, int capacity, Function<Object, Object> function) {
+      this.name = name;
+      this.queue = new ArrayBlockingQueue<>(capacity);
+      this.function = function;
+    }
+
+    private void start(StagedPipeline<?, ?> pipeline, Stage next) {
+      boolean first = pipeline.stages.get(0) == this;
+      Thread thread = new Thread(() -> loop(pipeline, first, next), TAG + "-" + name);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void loop(StagedPipeline<?, ?> pipeline, boolean first, Stage next) {
+      try {
+        while (true) {
+          // END may not have fit in the queue, the first stage then stops once it's empty.
+          Item item = first && pipeline.closed && queue.isEmpty() ? END : queue.take();
+          if (item == END) {
+            if (next != null) {
+              next.queue.put(END);
+            }
+            return;
+          }
+          if (item.result.isDone()) {
+            continue;
+          }
+          long start = System.nanoTime();
+          try {
+            item.value = function.apply(item.value);
+          } catch (CancellationException e) {
+            item.result.cancel(false);
+            continue;
+          } catch (RuntimeException e) {
+            Log.w(TAG, "Stage " + name + " failed.", e);
+            item.result.completeExceptionally(e);
+            continue;
+          } finally {
+            record(System.nanoTime() - start);
+          }
+          if (next == null) {
+            item.result.complete(item.value);
+          } else {
+            next.queue.put(item);
+          }
+        }
+      } catch (InterruptedException e) {
+        Log.w(TAG, "Stage " + name + " interrupted.");
+      }
+    }
+
+    private synchronized void record(long serviceNanos) {
+      served++;
+      totalServiceNanos += serviceNanos;
+      maxServiceNanos = Math.max(maxServiceNanos, serviceNanos);
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reader of a {@link PcmRingBuffer} that transcribes the audio as it comes in, so a transcript is
+ * there while the medic is still talking. Audio is cut into segments of at most segmentSamples.
+ * Whenever chunkSamples more samples of the current segment arrived, the whole segment is
+ * transcribed again and the transcript so far, the committed segments and the current one, goes
+ * to the listener. A full segment is committed and the next one starts empty, so each
+ * transcription is bounded by the segment length. If transcribing takes longer than a chunk takes
+ * to arrive, the samples that arrived meanwhile are taken at once, so the reader doesn't fall
+ * behind.
+ */
+public final class StreamingTranscriber implements AutoCloseable {
+  // Only bounds how long the reader sleeps if the writer never finishes the ring.
+  private static final long WAIT_SECONDS = 1;
+
+  /** Speech recognizer of the samples of a buffer from 0 to its limit, e.g. {@link AsrEngine}. */
+  public interface Recognizer {
+    String transcribe(FloatBuffer audio);
+
+    /** Returns the number of samples the recognizer may pad a clip to in its buffer. */
+    default int paddedLength(int samples) {
+      return samples;
+    }
+  }
+
+  /** Gets the transcript so far, last is true for the one of the whole stream. */
+  public interface Listener {
+    void onTranscript(String transcript, boolean last);
+  }
+
+  private final PcmRingBuffer ring;
+  private final Recognizer recognizer;
+  private final int chunkSamples;
+  private final int segmentSamples;
+  private final Listener listener;
+  private final FloatBuffer segment;
+  private final CompletableFuture<String> result = new CompletableFuture<>();
+  private final Thread thread;
+  private volatile long transcriptionCount;
+
+  public StreamingTranscriber(
+      PcmRingBuffer ring,
+      Recognizer recognizer,
+      int chunkSamples,
+      int segmentSamples,
+      Listener listener) {
+    if (chunkSamples < 1 || segmentSamples < chunkSamples) {
+      throw new IllegalArgumentException(
+          "Chunks of " + chunkSamples + " samples don't fit segments of " + segmentSamples);
+    }
+    this.ring = ring;
+    this.recognizer = recognizer;
+    this.chunkSamples = chunkSamples;
+    this.segmentSamples = segmentSamples;
+    this.listener = listener;
+    // With room for the padding, so the recognizer can take the segment as it is.
+    int capacity = Math.max(segmentSamples, recognizer.paddedLength(segmentSamples));
+    this.segment =
+        ByteBuffer.allocateDirect(4 * capacity).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    this.thread = new Thread(this::transcribe, "StreamingTranscriber");
+    thread.setDaemon(true);
+  }
+
+  public void start() {
+    thread.start();
+  }
+
+  /**
+   * Completes with the transcript of the whole stream once the ring is drained, or the error of
+   * the recognizer.
+   */
+  public CompletableFuture<String> result() {
+    return result;
+  }
+
+  /** Returns the number of times the recognizer ran. */
+  public long transcriptionCount() {
+    return transcriptionCount;
+  }
+
+  /**
+   * Stops reading without a last transcript, the result is cancelled. The listener isn't called
+   * after that, unless it's being called already.
+   */
+  @Override
+  public void close() {
+    result.cancel(false);
+    thread.interrupt();
+  }
+
+  private void transcribe() {
+    StringBuilder committed = new StringBuilder();
+    String current = "";
+    // Samples of the current segment read from the ring, and those its transcript covers.
+    int length = 0;
+    int transcribed = 0;
+    try {
+      while (!result.isDone()) {
+        ring.awaitAvailable(
+            Math.min(chunkSamples - (length - transcribed), segmentSamples - length),
+            WAIT_SECONDS,
+            TimeUnit.SECONDS);
+        segment.clear();
+        length += ring.read(segment, length, segmentSamples - length);
+        boolean full = length == segmentSamples;
+        boolean last = ring.isDrained();
+        boolean changed = false;
+        if (length > transcribed && (length - transcribed >= chunkSamples || full || last)) {
+          segment.position(0);
+          segment.limit(length);
+          current = recognizer.transcribe(segment).trim();
+          transcriptionCount++;
+          transcribed = length;
+          changed = true;
+        }
+        String transcript = join(committed, current);
+        if (full) {
+          committed.setLength(0);
+          committed.append(transcript);
+          current = "";
+          length = 0;
+          transcribed = 0;
+        }
+        // Closed while the recognizer ran, the listener doesn't expect any more transcripts.
+        if (result.isDone()) {
+          return;
+        }
+        if (changed || last) {
+          listener.onTranscript(transcript, last);
+        }
+        if (last) {
+          result.complete(transcript);
+        }
+      }
+    } catch (InterruptedException e) {
+      result.cancel(false);
+    } catch (RuntimeException e) {
+      result.completeExceptionally(e);
+    }
+  }
+
+  private static String join(CharSequence committed, String current) {
+    if (committed.length() == 0) {
+      return current;
+    }
+    return current.isEmpty() ? committed.toString() : committed + " " + current;
+  }
+}
@@ -0,0 +1,70 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Latency of the first run of each input shape the model was warmed up with, which pays for
+ * allocating tensors, packing weights and cold caches, next to the mean of the runs after it.
+ */
+public final class WarmUpReport {
+  // {batchSize, seqLen} of each shape.
+  private final List<int[]> shapes = new ArrayList<>();
+  // {cold, warm} nanoseconds of each shape.
+  private final List<long[]> latencies = new ArrayList<>();
+
+  void add(int batchSize, int seqLen, long coldNanos, long warmNanos) {
+    shapes.add(new int[] {batchSize, seqLen});
+    latencies.add(new long[] {coldNanos, warmNanos});
+  }
+
+  /** Returns the number of shapes warmed up. */
+  public int size() {
+    return shapes.size();
+  }
+
+  public int batchSize(int shape) {
+    return shapes.get(shape)[0];
+  }
+
+  public int seqLen(int shape) {
+    return shapes.get(shape)[1];
+  }
+
+  /** Returns the latency of the first run of a shape. */
+  public double coldMillis(int shape) {
+    return latencies.get(shape)[0] / 1e6;
+  }
+
+  /** Returns the mean latency of the runs after the first, or 0 if there was a single run. */
+  public double warmMillis(int shape) {
+    return latencies.get(shape)[1] / 1e6;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder out = new StringBuilder("WarmUpReport{");
+    for (int i = 0; i < size(); i++) {
+      out.append(i == 0 ? "" : ", ")
+          .append(batchSize(i))
+          .append('x')
+          .append(seqLen(i))
+          .append(String.format(": cold %.3f ms, warm %.3f ms", coldMillis(i), warmMillis(i)));
+    }
+    return out.append('}').toString();
+  }
+}
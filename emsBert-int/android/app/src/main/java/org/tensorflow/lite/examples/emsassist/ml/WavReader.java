@@ -0,0 +1,159 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the samples of 16 or 24 bit PCM mono wav files straight from their memory mapped bytes,
+ * e.g. an asset, into a direct float buffer the ASR interpreter takes as it is. Samples are scaled
+ * like JLibrosa does, their integer value over 32767 whatever their width, so the Conformer gets
+ * the input it always got. Other formats are left to JLibrosa, {@link #sampleCount} tells them
+ * apart.
+ */
+public final class WavReader {
+  private static final int RIFF = 0x46464952; // "RIFF" read little endian.
+  private static final int WAVE = 0x45564157;
+  private static final int FMT = 0x20746d66;
+  private static final int DATA = 0x61746164;
+  private static final int PCM = 1;
+  private static final float SCALE = 1f / 32767;
+
+  private WavReader() {}
+
+  /**
+   * Maps an asset stored uncompressed in the apk, which wav files are by default. A compressed one
+   * throws an IOException.
+   */
+  public static ByteBuffer map(AssetManager assets, String name) throws IOException {
+    try (AssetFileDescriptor descriptor = assets.openFd(name);
+        FileInputStream stream = new FileInputStream(descriptor.getFileDescriptor())) {
+      return stream
+          .getChannel()
+          .map(
+              FileChannel.MapMode.READ_ONLY,
+              descriptor.getStartOffset(),
+              descriptor.getDeclaredLength());
+    }
+  }
+
+  /**
+   * Returns the number of samples of wav if it's a 16 or 24 bit PCM mono file at sampleRate, or -1
+   * if it's in any other format or malformed.
+   */
+  public static int sampleCount(ByteBuffer wav, int sampleRate) {
+    Data data = Data.find(wav, sampleRate);
+    return data == null ? -1 : data.count;
+  }
+
+  /**
+   * Converts the samples of wav, whose format {@link #sampleCount} accepted, into buffer from
+   * position 0 and sets the limit after the last one. Returns buffer, or a new direct buffer if it
+   * holds fewer than capacity floats, capacity being at least the number of samples.
+   */
+  public static FloatBuffer read(ByteBuffer wav, int sampleRate, FloatBuffer buffer, int capacity) {
+    Data data = Data.find(wav, sampleRate);
+    if (data == null) {
+      throw new IllegalArgumentException(
+          "Not a 16 or 24 bit PCM mono wav at " + sampleRate + " Hz.");
+    }
+    int count = data.count;
+    if (buffer == null || buffer.capacity() < Math.max(capacity, count)) {
+      buffer =
+          ByteBuffer.allocateDirect(4 * Math.max(capacity, count))
+              .order(ByteOrder.nativeOrder())
+              .asFloatBuffer();
+    }
+    buffer.clear();
+    ByteBuffer bytes = wav.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    if (data.width == 2) {
+      bytes.limit(data.offset + 2 * count).position(data.offset);
+      ShortBuffer samples = bytes.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+      for (int i = 0; i < count; i++) {
+        buffer.put(i, samples.get(i) * SCALE);
+      }
+    } else {
+      for (int i = 0, at = data.offset; i < count; i++, at += 3) {
+        // The high byte carries the sign.
+        int sample =
+            (bytes.get(at) & 0xff) | (bytes.get(at + 1) & 0xff) << 8 | bytes.get(at + 2) << 16;
+        buffer.put(i, sample * SCALE);
+      }
+    }
+    buffer.limit(count);
+    return buffer;
+  }
+
+  /** Where the samples of a supported file are. */
+  private static final class Data {
+    final int offset;
+    final int count;
+    // Bytes per sample.
+    final int width;
+
+    private Data(int offset, int count, int width) {
+      this.offset = offset;
+      this.count = count;
+      this.width = width;
+    }
+
+    /** Walks the RIFF chunks of wav, returns null if it isn't supported. */
+    static Data find(ByteBuffer wav, int sampleRate) {
+      ByteBuffer bytes = wav.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      int end = bytes.limit();
+      if (end < 12 || bytes.getInt(0) != RIFF || bytes.getInt(8) != WAVE) {
+        return null;
+      }
+      int width = 0;
+      int position = 12;
+      while (position + 8 <= end) {
+        int id = bytes.getInt(position);
+        long size = bytes.getInt(position + 4) & 0xffffffffL;
+        int body = position + 8;
+        if (id == FMT) {
+          if (size < 16 || body + 16 > end) {
+            return null;
+          }
+          int bits = bytes.getShort(body + 14);
+          if (bytes.getShort(body) != PCM
+              || bytes.getShort(body + 2) != 1
+              || bytes.getInt(body + 4) != sampleRate
+              || (bits != 16 && bits != 24)) {
+            return null;
+          }
+          width = bits / 8;
+        } else if (id == DATA) {
+          if (width == 0) {
+            return null;
+          }
+          // Streamed files may not have the size of their data filled in.
+          long available = Math.min(size, end - body);
+          return new Data(body, (int) (available / width), width);
+        }
+        // Chunks are padded to an even size.
+        position = (int) Math.min(end, body + size + (size & 1));
+      }
+      return null;
+    }
+  }
+}
@@ -14,44 +14,76 @@ limitations under the License.
 ==============================================================================*/
 package org.tensorflow.lite.examples.emsassist.tokenization;
 
-/** To check whether a char is whitespace/control/punctuation. */
+/**
+ * To check whether a char is whitespace/control/punctuation. The classes of every char of the BMP
+ * are computed once from {@link Character} and packed into a byte table, so each check is a single
+ * array load.
+ */
 final class CharChecker {
+  static final int INVALID = 1;
+  static final int CONTROL = 1 << 1;
+  static final int WHITESPACE = 1 << 2;
+  static final int PUNCTUATION = 1 << 3;
+
+  private static final byte[] FLAGS = new byte[Character.MAX_VALUE + 1];
+
+  static {
+    for (int ch = Character.MIN_VALUE; ch <= Character.MAX_VALUE; ch++) {
+      FLAGS[ch] = (byte) computeFlags((char) ch);
+    }
+  }
+
+  /** Returns all the classes of a char as a combination of the flags above. */
+  static int flags(char ch) {
+    return FLAGS[ch];
+  }
 
   /** To judge whether it's an empty or unknown character. */
   public static boolean isInvalid(char ch) {
-    return (ch == 0 || ch == 0xfffd);
+    return (FLAGS[ch] & INVALID) != 0;
   }
 
   /** To judge whether it's a control character(exclude whitespace). */
   public static boolean isControl(char ch) {
-    if (Character.isWhitespace(ch)) {
-      return false;
-    }
-    int type = Character.getType(ch);
-    return (type == Character.CONTROL || type == Character.FORMAT);
+    return (FLAGS[ch] & CONTROL) != 0;
   }
 
   /** To judge whether it can be regarded as a whitespace. */
   public static boolean isWhitespace(char ch) {
-    if (Character.isWhitespace(ch)) {
-      return true;
-    }
-    int type = Character.getType(ch);
-    return (type == Character.SPACE_SEPARATOR
-        || type == Character.LINE_SEPARATOR
-        || type == Character.PARAGRAPH_SEPARATOR);
+    return (FLAGS[ch] & WHITESPACE) != 0;
   }
 
   /** To judge whether it's a punctuation. */
   public static boolean isPunctuation(char ch) {
+    return (FLAGS[ch] & PUNCTUATION) != 0;
+  }
+
+  private static int computeFlags(char ch) {
+    int flags = 0;
+    if (ch == 0 || ch == 0xfffd) {
+      flags |= INVALID;
+    }
+
     int type = Character.getType(ch);
-    return (type == Character.CONNECTOR_PUNCTUATION
+    if (Character.isWhitespace(ch)
+        || type == Character.SPACE_SEPARATOR
+        || type == Character.LINE_SEPARATOR
+        || type == Character.PARAGRAPH_SEPARATOR) {
+      flags |= WHITESPACE;
+    } else if (type == Character.CONTROL || type == Character.FORMAT) {
+      flags |= CONTROL;
+    }
+
+    if (type == Character.CONNECTOR_PUNCTUATION
         || type == Character.DASH_PUNCTUATION
         || type == Character.START_PUNCTUATION
         || type == Character.END_PUNCTUATION
         || type == Character.INITIAL_QUOTE_PUNCTUATION
         || type == Character.FINAL_QUOTE_PUNCTUATION
-        || type == Character.OTHER_PUNCTUATION);
+        || type == Character.OTHER_PUNCTUATION) {
+      flags |= PUNCTUATION;
+    }
+    return flags;
   }
 
   private CharChecker() {}
@@ -0,0 +1,334 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.tokenization;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only vocab backed by a buffer written at build time (see the compileVocab task in
+ * app/vocab.gradle). Tokens are placed by a minimal perfect hash (hash and displace) and their
+ * UTF-8 bytes are kept in one arena, so the vocab can be memory mapped and queried without parsing
+ * it or creating any object per token.
+ *
+ * <p>Layout, little endian: magic, version, key count, id count, arena length, then the
+ * displacement of every bucket, the id of every slot, the arena offset of every slot (plus the end
+ * offset), the slot of every id and finally the arena.
+ *
+ * <p>This class is also compiled into buildSrc, so it must not depend on Android or Guava.
+ */
+public final class CompiledVocab extends AbstractMap<String, Integer> {
+  private static final int MAGIC = 0x564d5345; // "EMSV"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 5 * 4;
+  private static final int NOT_FOUND = -1;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final ByteBuffer data;
+  private final int keyCount;
+  private final int idCount;
+  private final int displacementStart;
+  private final int slotIdStart;
+  private final int slotOffsetStart;
+  private final int idSlotStart;
+  private final int arenaStart;
+
+  private CompiledVocab(ByteBuffer data) {
+    this.data = data;
+    if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+      throw new IllegalArgumentException("Not a compiled vocab of version " + VERSION + ".");
+    }
+    keyCount = data.getInt(8);
+    idCount = data.getInt(12);
+    int arenaLength = data.getInt(16);
+    displacementStart = HEADER_BYTES;
+    slotIdStart = displacementStart + 4 * keyCount;
+    slotOffsetStart = slotIdStart + 4 * keyCount;
+    idSlotStart = slotOffsetStart + 4 * (keyCount + 1);
+    arenaStart = idSlotStart + 4 * idCount;
+    if (data.limit() < arenaStart + arenaLength) {
+      throw new IllegalArgumentException("The compiled vocab is truncated.");
+    }
+  }
+
+  /** Wraps a buffer produced by {@link #write(List, OutputStream)}, e.g. a mapped asset. */
+  public static CompiledVocab load(ByteBuffer buffer) {
+    return new CompiledVocab(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+  }
+
+  /**
+   * Compiles a vocab given in id order, i.e. the lines of vocab.txt. As with the HashMap built from
+   * vocab.txt, a token listed twice keeps its last id.
+   */
+  public static void write(List<String> tokens, OutputStream out) throws IOException {
+    Map<String, Integer> ids = new HashMap<>();
+    for (int id = 0; id < tokens.size(); id++) {
+      ids.put(tokens.get(id), id);
+    }
+    List<String> keys = new ArrayList<>(ids.keySet());
+    int keyCount = keys.size();
+
+    // Hash every key into a bucket, then place the largest buckets first by searching a
+    // displacement under which all of their keys land in free slots. Buckets of one key take any
+    // free slot directly, stored as a negative displacement.
+    List<List<String>> buckets = new ArrayList<>();
+    for (int i = 0; i < keyCount; i++) {
+      buckets.add(new ArrayList<>());
+    }
+    for (String key : keys) {
+      buckets.get(index(hash(key, 0), keyCount)).add(key);
+    }
+    Integer[] order = new Integer[keyCount];
+    for (int i = 0; i < keyCount; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, Comparator.comparingInt(bucket -> -buckets.get(bucket).size()));
+
+    int[] displacements = new int[keyCount];
+    String[] slotKeys = new String[keyCount];
+    int next = 0;
+    for (; next < keyCount && buckets.get(order[next]).size() > 1; next++) {
+      List<String> bucket = buckets.get(order[next]);
+      int[] slots = new int[bucket.size()];
+      for (int displacement = 1; ; displacement++) {
+        int placed = 0;
+        for (; placed < bucket.size(); placed++) {
+          int slot = index(hash(bucket.get(placed), displacement), keyCount);
+          if (slotKeys[slot] != null || contains(slots, placed, slot)) {
+            break;
+          }
+          slots[placed] = slot;
+        }
+        if (placed == bucket.size()) {
+          for (int i = 0; i < slots.length; i++) {
+            slotKeys[slots[i]] = bucket.get(i);
+          }
+          displacements[order[next]] = displacement;
+          break;
+        }
+      }
+    }
+    int freeSlot = 0;
+    for (; next < keyCount && buckets.get(order[next]).size() == 1; next++) {
+      while (slotKeys[freeSlot] != null) {
+        freeSlot++;
+      }
+      slotKeys[freeSlot] = buckets.get(order[next]).get(0);
+      displacements[order[next]] = -freeSlot - 1;
+    }
+
+    byte[][] slotBytes = new byte[keyCount][];
+    int arenaLength = 0;
+    for (int slot = 0; slot < keyCount; slot++) {
+      slotBytes[slot] = slotKeys[slot].getBytes(UTF_8);
+      arenaLength += slotBytes[slot].length;
+    }
+    int[] idSlots = new int[tokens.size()];
+    Arrays.fill(idSlots, NOT_FOUND);
+    for (int slot = 0; slot < keyCount; slot++) {
+      idSlots[ids.get(slotKeys[slot])] = slot;
+    }
+
+    ByteBuffer buffer =
+        ByteBuffer.allocate(HEADER_BYTES + 4 * (3 * keyCount + 1 + idSlots.length) + arenaLength)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(keyCount).putInt(idSlots.length);
+    buffer.putInt(arenaLength);
+    for (int displacement : displacements) {
+      buffer.putInt(displacement);
+    }
+    for (int slot = 0; slot < keyCount; slot++) {
+      buffer.putInt(ids.get(slotKeys[slot]));
+    }
+    int offset = 0;
+    for (int slot = 0; slot < keyCount; slot++) {
+      buffer.putInt(offset);
+      offset += slotBytes[slot].length;
+    }
+    buffer.putInt(offset);
+    for (int slot : idSlots) {
+      buffer.putInt(slot);
+    }
+    for (byte[] bytes : slotBytes) {
+      buffer.put(bytes);
+    }
+    out.write(buffer.array());
+  }
+
+  /** Returns the id of a token, or -1 if it's not in the vocab. Doesn't allocate. */
+  public int getId(CharSequence token) {
+    if (keyCount == 0) {
+      return NOT_FOUND;
+    }
+    int displacement = data.getInt(displacementStart + 4 * index(hash(token, 0), keyCount));
+    int slot = (displacement < 0) ? -displacement - 1 : index(hash(token, displacement), keyCount);
+    return matches(slot, token) ? data.getInt(slotIdStart + 4 * slot) : NOT_FOUND;
+  }
+
+  /** Returns the token of an id, or null if no token has it. */
+  public String token(int id) {
+    if (id < 0 || id >= idCount) {
+      return null;
+    }
+    int slot = data.getInt(idSlotStart + 4 * id);
+    return (slot == NOT_FOUND) ? null : slotToken(slot);
+  }
+
+  @Override
+  public Integer get(Object key) {
+    int id = (key instanceof CharSequence) ? getId((CharSequence) key) : NOT_FOUND;
+    return (id == NOT_FOUND) ? null : id;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return (key instanceof CharSequence) && getId((CharSequence) key) != NOT_FOUND;
+  }
+
+  @Override
+  public int size() {
+    return keyCount;
+  }
+
+  @Override
+  public Set<Entry<String, Integer>> entrySet() {
+    return new AbstractSet<Entry<String, Integer>>() {
+      @Override
+      public Iterator<Entry<String, Integer>> iterator() {
+        return new Iterator<Entry<String, Integer>>() {
+          private int slot = 0;
+
+          @Override
+          public boolean hasNext() {
+            return slot < keyCount;
+          }
+
+          @Override
+          public Entry<String, Integer> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            Entry<String, Integer> entry =
+                new SimpleImmutableEntry<>(slotToken(slot), data.getInt(slotIdStart + 4 * slot));
+            slot++;
+            return entry;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return keyCount;
+      }
+    };
+  }
+
+  private String slotToken(int slot) {
+    int start = data.getInt(slotOffsetStart + 4 * slot);
+    byte[] bytes = new byte[data.getInt(slotOffsetStart + 4 * (slot + 1)) - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = data.get(arenaStart + start + i);
+    }
+    return new String(bytes, UTF_8);
+  }
+
+  /* Compares the UTF-8 bytes of a slot with the UTF-16 chars of token, decoding as it goes. */
+  private boolean matches(int slot, CharSequence token) {
+    int position = arenaStart + data.getInt(slotOffsetStart + 4 * slot);
+    int end = arenaStart + data.getInt(slotOffsetStart + 4 * (slot + 1));
+    int index = 0;
+    int length = token.length();
+    while (position < end) {
+      int b = data.get(position) & 0xff;
+      int codePoint;
+      if (b < 0x80) {
+        codePoint = b;
+        position += 1;
+      } else if (b < 0xe0) {
+        codePoint = ((b & 0x1f) << 6) | (data.get(position + 1) & 0x3f);
+        position += 2;
+      } else if (b < 0xf0) {
+        codePoint =
+            ((b & 0x0f) << 12)
+                | ((data.get(position + 1) & 0x3f) << 6)
+                | (data.get(position + 2) & 0x3f);
+        position += 3;
+      } else {
+        codePoint =
+            ((b & 0x07) << 18)
+                | ((data.get(position + 1) & 0x3f) << 12)
+                | ((data.get(position + 2) & 0x3f) << 6)
+                | (data.get(position + 3) & 0x3f);
+        position += 4;
+      }
+
+      if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+        if (index >= length || token.charAt(index) != codePoint) {
+          return false;
+        }
+        index++;
+      } else {
+        if (index + 1 >= length
+            || token.charAt(index) != Character.highSurrogate(codePoint)
+            || token.charAt(index + 1) != Character.lowSurrogate(codePoint)) {
+          return false;
+        }
+        index += 2;
+      }
+    }
+    return index == length;
+  }
+
+  /* Hash of the UTF-16 chars of a token, the same whether the token is a String or a buffer. */
+  static int hash(CharSequence token, int seed) {
+    int hash = (seed + 1) * 0x9e3779b9;
+    for (int i = 0; i < token.length(); i++) {
+      hash = (hash ^ token.charAt(i)) * 0x01000193;
+    }
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return hash;
+  }
+
+  private static int index(int hash, int size) {
+    return (hash & Integer.MAX_VALUE) % size;
+  }
+
+  private static boolean contains(int[] values, int count, int value) {
+    for (int i = 0; i < count; i++) {
+      if (values[i] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
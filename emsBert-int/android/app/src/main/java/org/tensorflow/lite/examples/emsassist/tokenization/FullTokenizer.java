@@ -14,6 +14,7 @@ limitations under the License.
 ==============================================================================*/
 package org.tensorflow.lite.examples.emsassist.tokenization;
 
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -24,29 +25,88 @@ import java.util.Map;
  * tokenize a String into split subtokens or ids.
  */
 public final class FullTokenizer {
-  private final BasicTokenizer basicTokenizer;
-  private final WordpieceTokenizer wordpieceTokenizer;
+  private final WordpieceTrie trie;
+  private final FusedTokenizer fusedTokenizer;
+  private final SegmentationCache cache;
   private final Map<String, Integer> dic;
 
   public FullTokenizer(Map<String, Integer> inputDic, boolean doLowerCase) {
+    this(inputDic, doLowerCase, 0);
+  }
+
+  /**
+   * @param cacheCapacity: Number of words whose word pieces are cached, 0 disables the cache.
+   */
+  public FullTokenizer(Map<String, Integer> inputDic, boolean doLowerCase, int cacheCapacity) {
     dic = inputDic;
-    basicTokenizer = new BasicTokenizer(doLowerCase);
-    wordpieceTokenizer = new WordpieceTokenizer(inputDic);
+    trie = WordpieceTrie.build(inputDic);
+    cache = (cacheCapacity > 0) ? new SegmentationCache(cacheCapacity) : null;
+    fusedTokenizer = new FusedTokenizer(trie, doLowerCase, cache);
   }
 
   public List<String> tokenize(String text) {
-    List<String> splitTokens = new ArrayList<>();
-    for (String token : basicTokenizer.tokenize(text)) {
-      splitTokens.addAll(wordpieceTokenizer.tokenize(token));
+    if (text == null) {
+      throw new NullPointerException("The input String is null.");
+    }
+
+    int[] ids = new int[text.length()];
+    int count = fusedTokenizer.tokenize(text, ids, 0, ids.length);
+    List<String> splitTokens = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      splitTokens.add(trie.token(ids[i]));
     }
     return splitTokens;
   }
 
+  /**
+   * Tokenizes text straight into vocab ids, without building the token Strings. Unknown words are
+   * mapped to the id of "[UNK]".
+   *
+   * @param out: Receives the ids in out[offset, offset + capacity).
+   * @param capacity: Maximum number of ids to write, tokenization stops once it's reached.
+   * @return The number of ids written.
+   */
+  public int tokenizeToIds(String text, int[] out, int offset, int capacity) {
+    checkUnknownId();
+    return fusedTokenizer.tokenize(text, out, offset, capacity);
+  }
+
+  /**
+   * Same as {@link #tokenizeToIds(String, int[], int, int)}, but the ids are put at the current
+   * position of out, which is advanced past them. At most min(capacity, out.remaining()) ids are
+   * written.
+   */
+  public int tokenizeToIds(String text, IntBuffer out, int capacity) {
+    checkUnknownId();
+    return fusedTokenizer.tokenize(text, out, capacity);
+  }
+
+  /**
+   * Returns a cursor that tokenizes text into vocab ids as they are read, so a caller that only
+   * needs the first ids doesn't pay for the rest of the text.
+   */
+  public TokenCursor cursor(CharSequence text) {
+    checkUnknownId();
+    return fusedTokenizer.cursor(text);
+  }
+
+  /** Returns the word piece cache, or null if it's disabled. */
+  public SegmentationCache getSegmentationCache() {
+    return cache;
+  }
+
   public List<Integer> convertTokensToIds(List<String> tokens) {
     List<Integer> outputIds = new ArrayList<>();
     for (String token : tokens) {
-      outputIds.add(dic.get(token));
+      Integer id = dic.get(token);
+      outputIds.add(id != null ? id : dic.get(WordpieceTrie.UNKNOWN_TOKEN));
     }
     return outputIds;
   }
+
+  private void checkUnknownId() {
+    if (trie.unknownId() == WordpieceTrie.NO_TOKEN) {
+      throw new IllegalStateException("The vocab has no " + WordpieceTrie.UNKNOWN_TOKEN + ".");
+    }
+  }
 }
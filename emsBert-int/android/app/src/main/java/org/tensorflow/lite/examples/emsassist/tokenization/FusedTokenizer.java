@@ -0,0 +1,91 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.tokenization;
+
+import java.nio.IntBuffer;
+
+/**
+ * Basic and wordpiece tokenization fused into a single scan over the text. Invalid and control
+ * chars are dropped, whitespace and punctuation end the current word, chars are lower cased as
+ * they are read and every word is matched against the vocab trie as soon as it ends. The output is
+ * the same as running {@link BasicTokenizer} and then {@link WordpieceTokenizer}, without building
+ * any intermediate String or List. When a {@link SegmentationCache} is given, words found in it
+ * skip the trie.
+ *
+ * <p>The scan itself is done by {@link TokenCursor}.
+ */
+final class FusedTokenizer {
+  private final WordpieceTrie trie;
+  private final boolean doLowerCase;
+  private final SegmentationCache cache;
+
+  FusedTokenizer(WordpieceTrie trie, boolean doLowerCase, SegmentationCache cache) {
+    this.trie = trie;
+    this.doLowerCase = doLowerCase;
+    this.cache = cache;
+  }
+
+  /** Returns a cursor over the ids of text. */
+  TokenCursor cursor(CharSequence text) {
+    return new TokenCursor(this).reset(text);
+  }
+
+  /**
+   * Tokenizes text into word piece ids written to out[offset, offset + capacity). Words that can't
+   * be tokenized become {@link WordpieceTrie#unknownId()}. Scanning stops as soon as capacity ids
+   * have been written, the last word may then be cut.
+   *
+   * @return The number of ids written.
+   */
+  int tokenize(CharSequence text, int[] out, int offset, int capacity) {
+    return cursor(text).read(out, offset, capacity);
+  }
+
+  /** Same as above, but ids are put at the position of out, which is advanced. */
+  int tokenize(CharSequence text, IntBuffer out, int capacity) {
+    return cursor(text).read(out, capacity);
+  }
+
+  boolean doLowerCase() {
+    return doLowerCase;
+  }
+
+  /* Writes the word pieces of word[0, length) into pieces, returns their number. */
+  int matchWord(char[] word, int length, int[] pieces) {
+    if (length == 0) {
+      return 0;
+    }
+    if (length > word.length) {
+      pieces[0] = trie.unknownId();
+      return 1;
+    }
+    if (cache != null) {
+      int count = cache.get(word, length, pieces);
+      if (count >= 0) {
+        return count;
+      }
+    }
+
+    int count = trie.tokenizeWord(word, 0, length, pieces, 0);
+    if (count < 0) {
+      pieces[0] = trie.unknownId();
+      count = 1;
+    }
+    if (cache != null) {
+      cache.put(word, length, pieces, count);
+    }
+    return count;
+  }
+}
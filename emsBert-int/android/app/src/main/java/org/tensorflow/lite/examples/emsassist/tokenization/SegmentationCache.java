@@ -0,0 +1,261 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.tokenization;
+
+import java.util.Arrays;
+
+/**
+ * Bounded cache of the word piece ids of basic tokens, so recurring words such as "breath" or
+ * "unresponsive" are only matched against the vocab once. Words are looked up by their chars
+ * without building a String, and a full cache evicts with the clock (second chance) policy: a word
+ * that was hit since the hand last passed it is kept for another round.
+ *
+ * <p>The ids depend on the vocab, so a cache belongs to the {@link FullTokenizer} that created it.
+ * It's safe to use from several threads. Words are spread by hash over shards with a lock and a
+ * clock each, so threads tokenizing at once rarely wait for each other.
+ */
+public final class SegmentationCache {
+  private static final int NO_SLOT = -1;
+  // Shards are only split off while each keeps at least this many words, a small cache is one.
+  private static final int MIN_SHARD_CAPACITY = 64;
+  private static final int MAX_SHARDS = 16;
+
+  private final int capacity;
+  private final Shard[] shards;
+  private final int shardBits;
+
+  SegmentationCache(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The cache capacity must be positive.");
+    }
+    this.capacity = capacity;
+    int count =
+        Integer.highestOneBit(Math.max(1, Math.min(MAX_SHARDS, capacity / MIN_SHARD_CAPACITY)));
+    shards = new Shard[count];
+    for (int i = 0; i < count; i++) {
+      // The remainder goes to the first shards, so their capacities add up to capacity.
+      shards[i] = new Shard(capacity / count + (i < capacity % count ? 1 : 0));
+    }
+    shardBits = Integer.numberOfTrailingZeros(count);
+  }
+
+  /**
+   * Copies the cached ids of word[0, length) into pieces.
+   *
+   * @return The number of ids, or -1 if the word isn't cached.
+   */
+  int get(char[] word, int length, int[] pieces) {
+    int hash = hash(word, length);
+    return shardOf(hash).get(word, length, hash, pieces);
+  }
+
+  /** Caches pieces[0, count) as the ids of word[0, length), evicting a word when full. */
+  void put(char[] word, int length, int[] pieces, int count) {
+    int hash = hash(word, length);
+    shardOf(hash).put(word, length, hash, pieces, count);
+  }
+
+  /** Drops every cached word, the counters are kept. */
+  public void clear() {
+    for (Shard shard : shards) {
+      shard.clear();
+    }
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  public int size() {
+    int size = 0;
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        size += shard.size;
+      }
+    }
+    return size;
+  }
+
+  public long hitCount() {
+    long hits = 0;
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        hits += shard.hitCount;
+      }
+    }
+    return hits;
+  }
+
+  public long missCount() {
+    long misses = 0;
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        misses += shard.missCount;
+      }
+    }
+    return misses;
+  }
+
+  @Override
+  public String toString() {
+    long hitCount = hitCount();
+    long missCount = missCount();
+    long lookups = hitCount + missCount;
+    return String.format(
+        "SegmentationCache{size=%d/%d, shards=%d, hits=%d, misses=%d, hitRate=%.3f}",
+        size(),
+        capacity,
+        shards.length,
+        hitCount,
+        missCount,
+        (lookups == 0) ? 0.0 : (double) hitCount / lookups);
+  }
+
+  private Shard shardOf(int hash) {
+    // The buckets of a shard are taken from the low bits, the shard from the high bits of a
+    // multiplicative hash, so short words whose hash has no high bits are spread too.
+    return shardBits == 0 ? shards[0] : shards[(hash * 0x9E3779B9) >>> (32 - shardBits)];
+  }
+
+  private static int hash(char[] word, int length) {
+    int hash = 0;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + word[i];
+    }
+    // Spread the high bits, the bucket is taken from the low ones.
+    return hash ^ (hash >>> 16);
+  }
+
+  /** A part of the cache with its own lock, the words of a hash are always in the same shard. */
+  private static final class Shard {
+    private final int capacity;
+    // Chains of slots by hash, buckets[hash & bucketMask] is the first slot and next[slot] the one
+    // after it.
+    private final int[] buckets;
+    private final int bucketMask;
+    private final int[] next;
+    private final int[] hashes;
+    private final char[][] keys;
+    private final int[] keyLengths;
+    private final int[][] ids;
+    private final int[] idCounts;
+    private final boolean[] referenced;
+    private int size;
+    private int hand;
+    private long hitCount;
+    private long missCount;
+
+    Shard(int capacity) {
+      this.capacity = capacity;
+      buckets = new int[Integer.highestOneBit(capacity) << 1];
+      Arrays.fill(buckets, NO_SLOT);
+      bucketMask = buckets.length - 1;
+      next = new int[capacity];
+      hashes = new int[capacity];
+      keys = new char[capacity][];
+      keyLengths = new int[capacity];
+      ids = new int[capacity][];
+      idCounts = new int[capacity];
+      referenced = new boolean[capacity];
+    }
+
+    synchronized int get(char[] word, int length, int hash, int[] pieces) {
+      int slot = find(word, length, hash);
+      if (slot == NO_SLOT) {
+        missCount++;
+        return -1;
+      }
+      hitCount++;
+      referenced[slot] = true;
+      System.arraycopy(ids[slot], 0, pieces, 0, idCounts[slot]);
+      return idCounts[slot];
+    }
+
+    synchronized void put(char[] word, int length, int hash, int[] pieces, int count) {
+      if (find(word, length, hash) != NO_SLOT) {
+        return;
+      }
+
+      int slot;
+      if (size < capacity) {
+        slot = size++;
+      } else {
+        while (referenced[hand]) {
+          referenced[hand] = false;
+          hand = (hand + 1) % capacity;
+        }
+        slot = hand;
+        hand = (hand + 1) % capacity;
+        unlink(slot);
+      }
+
+      // The arrays of an evicted word are reused when they're large enough.
+      if (keys[slot] == null || keys[slot].length < length) {
+        keys[slot] = new char[length];
+      }
+      System.arraycopy(word, 0, keys[slot], 0, length);
+      keyLengths[slot] = length;
+      if (ids[slot] == null || ids[slot].length < count) {
+        ids[slot] = new int[count];
+      }
+      System.arraycopy(pieces, 0, ids[slot], 0, count);
+      idCounts[slot] = count;
+      hashes[slot] = hash;
+      referenced[slot] = false;
+      next[slot] = buckets[hash & bucketMask];
+      buckets[hash & bucketMask] = slot;
+    }
+
+    synchronized void clear() {
+      Arrays.fill(buckets, NO_SLOT);
+      Arrays.fill(referenced, false);
+      size = 0;
+      hand = 0;
+    }
+
+    private int find(char[] word, int length, int hash) {
+      for (int slot = buckets[hash & bucketMask]; slot != NO_SLOT; slot = next[slot]) {
+        if (hashes[slot] == hash
+            && keyLengths[slot] == length
+            && SegmentationCache.equals(keys[slot], word, length)) {
+          return slot;
+        }
+      }
+      return NO_SLOT;
+    }
+
+    private void unlink(int slot) {
+      int bucket = hashes[slot] & bucketMask;
+      if (buckets[bucket] == slot) {
+        buckets[bucket] = next[slot];
+        return;
+      }
+      int previous = buckets[bucket];
+      while (next[previous] != slot) {
+        previous = next[previous];
+      }
+      next[previous] = next[slot];
+    }
+  }
+
+  private static boolean equals(char[] key, char[] word, int length) {
+    for (int i = 0; i < length; i++) {
+      if (key[i] != word[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,181 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.tokenization;
+
+import com.google.common.base.Ascii;
+import java.nio.IntBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * Pull based tokenization of a text into word piece ids. The text is only scanned as far as the
+ * ids read so far need, so reading the first n ids of a text costs the same however long the rest
+ * of it is.
+ *
+ * <p>Created by {@link FullTokenizer#cursor(CharSequence)}. A cursor can be reset onto another text
+ * to reuse its buffers, and must not be shared between threads.
+ */
+public final class TokenCursor {
+  private final FusedTokenizer tokenizer;
+  private final char[] word = new char[WordpieceTokenizer.MAX_INPUTCHARS_PER_WORD];
+  // A word has at most as many word pieces as chars.
+  private final int[] pieces = new int[WordpieceTokenizer.MAX_INPUTCHARS_PER_WORD];
+  private CharSequence text;
+  private int index;
+  private int end;
+  private int pieceIndex;
+  private int pieceCount;
+  // Offset in the text of the word the pieces come from.
+  private int wordStart;
+
+  TokenCursor(FusedTokenizer tokenizer) {
+    this.tokenizer = tokenizer;
+  }
+
+  /** Restarts the cursor on text. */
+  public TokenCursor reset(CharSequence text) {
+    if (text == null) {
+      throw new NullPointerException("The input String is null.");
+    }
+    return reset(text, 0, text.length());
+  }
+
+  /** Restarts the cursor on text[start, end). */
+  public TokenCursor reset(CharSequence text, int start, int end) {
+    if (text == null) {
+      throw new NullPointerException("The input String is null.");
+    }
+    if (start < 0 || start > end || end > text.length()) {
+      throw new IndexOutOfBoundsException(
+          "Range [" + start + ", " + end + ") out of a text of length " + text.length() + ".");
+    }
+    this.text = text;
+    this.index = start;
+    this.end = end;
+    pieceIndex = 0;
+    pieceCount = 0;
+    return this;
+  }
+
+  public boolean hasNext() {
+    return pieceIndex < pieceCount || nextWord();
+  }
+
+  /** Returns the id of the next word piece. */
+  public int next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return pieces[pieceIndex++];
+  }
+
+  /**
+   * Returns the offset in the text of the first char of the word the next id comes from. A cursor
+   * reset onto the same text there returns the same ids from that word on.
+   */
+  public int wordStart() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return wordStart;
+  }
+
+  /**
+   * Reads up to capacity ids into out starting at offset, stopping at the end of the text. A word
+   * may be cut, its remaining ids are returned by the next read.
+   *
+   * @return The number of ids read.
+   */
+  public int read(int[] out, int offset, int capacity) {
+    int count = 0;
+    while (count < capacity && hasNext()) {
+      int length = Math.min(pieceCount - pieceIndex, capacity - count);
+      System.arraycopy(pieces, pieceIndex, out, offset + count, length);
+      pieceIndex += length;
+      count += length;
+    }
+    return count;
+  }
+
+  /** Same as above, but ids are put at the position of out, which is advanced. */
+  public int read(IntBuffer out, int capacity) {
+    capacity = Math.min(capacity, out.remaining());
+    int count = 0;
+    while (count < capacity && hasNext()) {
+      int length = Math.min(pieceCount - pieceIndex, capacity - count);
+      out.put(pieces, pieceIndex, length);
+      pieceIndex += length;
+      count += length;
+    }
+    return count;
+  }
+
+  /* Scans the next word and matches it into pieces, returns false at the end of the text. */
+  private boolean nextWord() {
+    pieceIndex = 0;
+    pieceCount = 0;
+    if (text == null) {
+      return false;
+    }
+
+    boolean doLowerCase = tokenizer.doLowerCase();
+    int wordLength = 0;
+    int i = index;
+    for (; i < end; i++) {
+      char ch = text.charAt(i);
+      int flags = CharChecker.flags(ch);
+
+      // Skip the characters that cannot be used.
+      if ((flags & (CharChecker.INVALID | CharChecker.CONTROL)) != 0) {
+        continue;
+      }
+      if ((flags & CharChecker.WHITESPACE) != 0) {
+        if (wordLength > 0) {
+          i++;
+          break;
+        }
+        continue;
+      }
+
+      // Lower casing only maps letters to letters, so the flags stay valid.
+      if (doLowerCase) {
+        ch = Ascii.toLowerCase(ch);
+      }
+      if ((flags & CharChecker.PUNCTUATION) != 0) {
+        // Punctuation is a word of its own, it's read again once the current word is matched.
+        if (wordLength == 0) {
+          wordStart = i;
+          word[0] = ch;
+          wordLength = 1;
+          i++;
+        }
+        break;
+      }
+
+      if (wordLength == 0) {
+        wordStart = i;
+      }
+
+      // Chars past the limit are only counted, the word becomes unknown anyway.
+      if (wordLength < word.length) {
+        word[wordLength] = ch;
+      }
+      wordLength++;
+    }
+    index = i;
+
+    pieceCount = tokenizer.matchWord(word, wordLength, pieces);
+    return pieceCount > 0;
+  }
+}
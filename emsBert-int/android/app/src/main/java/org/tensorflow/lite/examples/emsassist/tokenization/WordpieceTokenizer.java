@@ -20,13 +20,17 @@ import java.util.Map;
 
 /** Word piece tokenization to split a piece of text into its word pieces. */
 public final class WordpieceTokenizer {
-  private final Map<String, Integer> dic;
+  private final WordpieceTrie trie;
 
-  private static final String UNKNOWN_TOKEN = "[UNK]"; // For unknown words.
-  private static final int MAX_INPUTCHARS_PER_WORD = 200;
+  private static final String UNKNOWN_TOKEN = WordpieceTrie.UNKNOWN_TOKEN; // For unknown words.
+  static final int MAX_INPUTCHARS_PER_WORD = 200;
 
   public WordpieceTokenizer(Map<String, Integer> vocab) {
-    dic = vocab;
+    this(WordpieceTrie.build(vocab));
+  }
+
+  WordpieceTokenizer(WordpieceTrie trie) {
+    this.trie = trie;
   }
 
   /**
@@ -51,41 +55,19 @@ public final class WordpieceTokenizer {
         continue;
       }
 
-      boolean isBad = false; // Mark if a word cannot be tokenized into known subwords.
-      int start = 0;
-      List<String> subTokens = new ArrayList<>();
-
-      while (start < token.length()) {
-        String curSubStr = "";
-
-        int end = token.length(); // Longer substring matches first.
-        while (start < end) {
-          String subStr =
-              (start == 0) ? token.substring(start, end) : "##" + token.substring(start, end);
-          if (dic.containsKey(subStr)) {
-            curSubStr = subStr;
-            break;
-          }
-          end--;
-        }
-
-        // The word doesn't contain any known subwords.
-        if ("".equals(curSubStr)) {
-          isBad = true;
-          break;
-        }
+      // A word has at most as many word pieces as chars.
+      char[] chars = token.toCharArray();
+      int[] ids = new int[chars.length];
+      int count = trie.tokenizeWord(chars, 0, chars.length, ids, 0);
 
-        // curSubStr is the longeset subword that can be found.
-        subTokens.add(curSubStr);
-
-        // Proceed to tokenize the resident string.
-        start = end;
+      // The word doesn't contain any known subwords.
+      if (count < 0) {
+        outputTokens.add(UNKNOWN_TOKEN);
+        continue;
       }
 
-      if (isBad) {
-        outputTokens.add(UNKNOWN_TOKEN);
-      } else {
-        outputTokens.addAll(subTokens);
+      for (int i = 0; i < count; i++) {
+        outputTokens.add(trie.token(ids[i]));
       }
     }
 
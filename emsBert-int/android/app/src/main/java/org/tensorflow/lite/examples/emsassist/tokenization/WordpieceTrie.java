@@ -0,0 +1,341 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.tokenization;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Vocabulary trie used for wordpiece matching. Each node carries a failure link and the ids popped
+ * when following it (LinMaxMatch, https://arxiv.org/abs/2012.15524), so a word is segmented in a
+ * single left-to-right pass with the same result as greedy longest-match-first and without
+ * building any substring.
+ */
+final class WordpieceTrie {
+  static final String SUFFIX_INDICATOR = "##";
+  static final String UNKNOWN_TOKEN = "[UNK]";
+  static final int NO_TOKEN = -1;
+
+  private static final int NO_NODE = -1;
+  private static final int ROOT = 0;
+
+  private static final long NO_EDGE = -1L;
+
+  private final int suffixRoot;
+  // Open addressing table of all edges, keyed by (node << 16 | char).
+  private final long[] edgeKeys;
+  private final int[] edgeTargets;
+  private final int edgeMask;
+  private final int[] failureLinks;
+  // Ids popped when following the failure link of node n are
+  // failurePops[popStart[n], popStart[n + 1]).
+  private final int[] popStart;
+  private final int[] failurePops;
+  private final String[] idToToken;
+  private final CompiledVocab compiledVocab;
+  private final int unknownId;
+
+  private WordpieceTrie(
+      int suffixRoot,
+      long[] edgeKeys,
+      int[] edgeTargets,
+      int[] failureLinks,
+      int[] popStart,
+      int[] failurePops,
+      String[] idToToken,
+      CompiledVocab compiledVocab,
+      int unknownId) {
+    this.suffixRoot = suffixRoot;
+    this.edgeKeys = edgeKeys;
+    this.edgeTargets = edgeTargets;
+    this.edgeMask = edgeKeys.length - 1;
+    this.failureLinks = failureLinks;
+    this.popStart = popStart;
+    this.failurePops = failurePops;
+    this.idToToken = idToToken;
+    this.compiledVocab = compiledVocab;
+    this.unknownId = unknownId;
+  }
+
+  /** Builds the trie, including failure links, from a vocabulary mapping tokens to ids. */
+  static WordpieceTrie build(Map<String, Integer> vocab) {
+    if (vocab == null) {
+      throw new NullPointerException("The input vocab is null.");
+    }
+
+    Builder builder = new Builder();
+    int suffixRoot = builder.newNode();
+
+    // Every token is reachable from the root as spelled, so a word that itself starts with "##" is
+    // matched like any other word. "##" pieces are also added without the indicator below the
+    // suffix root, which is where matching resumes after a piece has been emitted.
+    int maxId = -1;
+    for (Map.Entry<String, Integer> entry : vocab.entrySet()) {
+      String token = entry.getKey();
+      int id = entry.getValue();
+      builder.setTokenId(builder.insert(ROOT, token, 0), id);
+      if (token.startsWith(SUFFIX_INDICATOR) && token.length() > SUFFIX_INDICATOR.length()) {
+        builder.setTokenId(builder.insert(suffixRoot, token, SUFFIX_INDICATOR.length()), id);
+      }
+      maxId = Math.max(maxId, id);
+    }
+
+    // A compiled vocab already maps ids back to tokens, other vocabs are inverted here.
+    String[] idToToken = null;
+    if (!(vocab instanceof CompiledVocab)) {
+      idToToken = new String[maxId + 1];
+      for (Map.Entry<String, Integer> entry : vocab.entrySet()) {
+        idToToken[entry.getValue()] = entry.getKey();
+      }
+    }
+
+    int nodeCount = builder.nodeCount;
+    int[] failureLinks = new int[nodeCount];
+    int[][] pops = new int[nodeCount][];
+    failureLinks[ROOT] = NO_NODE;
+    failureLinks[suffixRoot] = NO_NODE;
+    pops[ROOT] = new int[0];
+    pops[suffixRoot] = new int[0];
+
+    // Breadth first from both roots, so that the failure link of a node only depends on nodes that
+    // are shallower relative to their own root.
+    int[] queue = new int[nodeCount];
+    int head = 0;
+    int tail = 0;
+    queue[tail++] = ROOT;
+    queue[tail++] = suffixRoot;
+    while (head < tail) {
+      int parent = queue[head++];
+      for (int node = builder.firstChild[parent];
+          node != NO_NODE;
+          node = builder.nextSibling[node]) {
+        char ch = builder.nodeChars[node];
+        if (builder.tokenIds[node] != NO_TOKEN) {
+          failureLinks[node] = suffixRoot;
+          pops[node] = new int[] {builder.tokenIds[node]};
+        } else {
+          int target = failureLinks[parent];
+          int[] popped = pops[parent];
+          while (target != NO_NODE && builder.child(target, ch) == NO_NODE) {
+            popped = concat(popped, pops[target]);
+            target = failureLinks[target];
+          }
+          failureLinks[node] = (target == NO_NODE) ? NO_NODE : builder.child(target, ch);
+          pops[node] = popped;
+        }
+        queue[tail++] = node;
+      }
+    }
+
+    // Flatten the popped ids into one array.
+    int[] popStart = new int[nodeCount + 1];
+    for (int node = 0; node < nodeCount; node++) {
+      popStart[node + 1] = popStart[node] + pops[node].length;
+    }
+    int[] failurePops = new int[popStart[nodeCount]];
+    for (int node = 0; node < nodeCount; node++) {
+      System.arraycopy(pops[node], 0, failurePops, popStart[node], pops[node].length);
+    }
+
+    Integer unknownId = vocab.get(UNKNOWN_TOKEN);
+    return new WordpieceTrie(
+        suffixRoot,
+        builder.edgeKeys,
+        builder.edgeTargets,
+        failureLinks,
+        popStart,
+        failurePops,
+        idToToken,
+        (vocab instanceof CompiledVocab) ? (CompiledVocab) vocab : null,
+        (unknownId == null) ? NO_TOKEN : unknownId);
+  }
+
+  /**
+   * Segments the word chars[start, end) into word pieces and writes their ids into out starting at
+   * offset. The caller must leave room for at least (end - start) ids.
+   *
+   * @return The number of ids written, or -1 if the word can't be split into known word pieces.
+   */
+  int tokenizeWord(char[] chars, int start, int end, int[] out, int offset) {
+    if (start == end) {
+      return 0;
+    }
+    int count = offset;
+    int node = ROOT;
+    for (int i = start; i < end; i++) {
+      char ch = chars[i];
+      int next;
+      while ((next = child(node, ch)) == NO_NODE) {
+        if (failureLinks[node] == NO_NODE) {
+          return -1;
+        }
+        count = pop(node, out, count);
+        node = failureLinks[node];
+      }
+      node = next;
+    }
+    while (node != suffixRoot) {
+      if (failureLinks[node] == NO_NODE) {
+        return -1;
+      }
+      count = pop(node, out, count);
+      node = failureLinks[node];
+    }
+    return count - offset;
+  }
+
+  /** Returns the token of the given id, "[UNK]" for {@link #NO_TOKEN}. */
+  String token(int id) {
+    if (id == NO_TOKEN) {
+      return UNKNOWN_TOKEN;
+    }
+    return (compiledVocab != null) ? compiledVocab.token(id) : idToToken[id];
+  }
+
+  /** Returns the id of "[UNK]", or {@link #NO_TOKEN} if it's not in the vocab. */
+  int unknownId() {
+    return unknownId;
+  }
+
+  private int child(int node, char ch) {
+    return find(edgeKeys, edgeTargets, edgeMask, edgeKey(node, ch));
+  }
+
+  private static int find(long[] edgeKeys, int[] edgeTargets, int mask, long key) {
+    for (int slot = slot(key, mask); ; slot = (slot + 1) & mask) {
+      long found = edgeKeys[slot];
+      if (found == key) {
+        return edgeTargets[slot];
+      }
+      if (found == NO_EDGE) {
+        return NO_NODE;
+      }
+    }
+  }
+
+  private static long edgeKey(int node, char ch) {
+    return ((long) node << 16) | ch;
+  }
+
+  private static int slot(long key, int mask) {
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash >>> 32) & mask;
+  }
+
+  private int pop(int node, int[] out, int count) {
+    for (int i = popStart[node]; i < popStart[node + 1]; i++) {
+      out[count++] = failurePops[i];
+    }
+    return count;
+  }
+
+  private static int[] concat(int[] first, int[] second) {
+    if (second.length == 0) {
+      return first;
+    }
+    int[] result = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+
+  /** Growable trie used while building, nodes are linked to their children and siblings. */
+  private static final class Builder {
+    private int nodeCount;
+    private int[] tokenIds = new int[1024];
+    private int[] firstChild = new int[1024];
+    private int[] nextSibling = new int[1024];
+    private char[] nodeChars = new char[1024];
+    private int edgeCount;
+    private long[] edgeKeys = newEdgeKeys(1024);
+    private int[] edgeTargets = new int[1024];
+
+    Builder() {
+      newNode();
+    }
+
+    int newNode() {
+      if (nodeCount == tokenIds.length) {
+        int capacity = nodeCount * 2;
+        tokenIds = Arrays.copyOf(tokenIds, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        nodeChars = Arrays.copyOf(nodeChars, capacity);
+      }
+      tokenIds[nodeCount] = NO_TOKEN;
+      firstChild[nodeCount] = NO_NODE;
+      nextSibling[nodeCount] = NO_NODE;
+      return nodeCount++;
+    }
+
+    void setTokenId(int node, int id) {
+      tokenIds[node] = id;
+    }
+
+    /* Adds key[start, key.length()) below root, returns the node of its last char. */
+    int insert(int root, String key, int start) {
+      int node = root;
+      for (int i = start; i < key.length(); i++) {
+        char ch = key.charAt(i);
+        int next = child(node, ch);
+        if (next == NO_NODE) {
+          next = newNode();
+          nodeChars[next] = ch;
+          nextSibling[next] = firstChild[node];
+          firstChild[node] = next;
+          putEdge(edgeKey(node, ch), next);
+        }
+        node = next;
+      }
+      return node;
+    }
+
+    int child(int node, char ch) {
+      return find(edgeKeys, edgeTargets, edgeKeys.length - 1, edgeKey(node, ch));
+    }
+
+    /* Adds an edge, keeping the table at most half full. */
+    private void putEdge(long key, int target) {
+      if (2 * (edgeCount + 1) > edgeKeys.length) {
+        long[] oldKeys = edgeKeys;
+        int[] oldTargets = edgeTargets;
+        edgeKeys = newEdgeKeys(oldKeys.length * 2);
+        edgeTargets = new int[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+          if (oldKeys[i] != NO_EDGE) {
+            insertEdge(oldKeys[i], oldTargets[i]);
+          }
+        }
+      }
+      insertEdge(key, target);
+      edgeCount++;
+    }
+
+    private void insertEdge(long key, int target) {
+      int mask = edgeKeys.length - 1;
+      int slot = slot(key, mask);
+      while (edgeKeys[slot] != NO_EDGE) {
+        slot = (slot + 1) & mask;
+      }
+      edgeKeys[slot] = key;
+      edgeTargets[slot] = target;
+    }
+
+    private static long[] newEdgeKeys(int capacity) {
+      long[] keys = new long[capacity];
+      Arrays.fill(keys, NO_EDGE);
+      return keys;
+    }
+  }
+}
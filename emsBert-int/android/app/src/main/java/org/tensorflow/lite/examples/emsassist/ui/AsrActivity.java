@@ -16,9 +16,7 @@ package org.tensorflow.lite.examples.emsassist.ui;
 
 import android.Manifest;
 import android.content.pm.PackageManager;
-import android.media.MediaRecorder;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.speech.tts.TextToSpeech;
@@ -36,8 +34,27 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
 import org.tensorflow.lite.examples.emsassist.R;
+import org.tensorflow.lite.examples.emsassist.ml.AsrEngine;
+import org.tensorflow.lite.examples.emsassist.ml.AsrEngineHolder;
+import org.tensorflow.lite.examples.emsassist.ml.AudioCapture;
+import org.tensorflow.lite.examples.emsassist.ml.EMSBertFeature;
+import org.tensorflow.lite.examples.emsassist.ml.FeatureSession;
+import org.tensorflow.lite.examples.emsassist.ml.InterpreterAutotuner;
+import org.tensorflow.lite.examples.emsassist.ml.ModelHelper;
+import org.tensorflow.lite.examples.emsassist.ml.PcmRingBuffer;
+import org.tensorflow.lite.examples.emsassist.ml.ProtocolPrediction;
 import org.tensorflow.lite.examples.emsassist.ml.QaClient;
+import org.tensorflow.lite.examples.emsassist.ml.QaClientHolder;
+import org.tensorflow.lite.examples.emsassist.ml.StagedPipeline;
+import org.tensorflow.lite.examples.emsassist.ml.StreamingTranscriber;
+import org.tensorflow.lite.examples.emsassist.ml.WavReader;
 
 import androidx.annotation.RequiresApi;
 import androidx.core.app.ActivityCompat;
@@ -63,6 +80,9 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
@@ -73,8 +93,29 @@ import java.util.Vector;
 
 public class AsrActivity extends AppCompatActivity implements AdapterView.OnItemSelectedListener {
 
-    private MappedByteBuffer tfLiteModel;
-    private Interpreter tfLiteASR;
+    // The engine of the process, acquired while the activity is started so it outlives rotations.
+    private AsrEngineHolder asrEngineHolder;
+    // Loaded once with the tuned options by the holder, then used by the asr stage.
+    private volatile CompletableFuture<AsrEngine> asrEngine;
+    // Replaced by the options picked by the autotuner once they're known.
+    private volatile Interpreter.Options asrOptions = new Interpreter.Options();
+    private InterpreterAutotuner autotuner;
+    // The prediction of the last clip, cancelled if the activity stops before it's done.
+    private volatile CompletableFuture<?> pendingPrediction;
+    // The prediction of the last transcript of the microphone, replaced by the next one.
+    private volatile CompletableFuture<?> pendingStreamPrediction;
+    // The microphone while it's streamed to the Conformer, null otherwise.
+    private AudioCapture capture;
+    // Transcribes the microphone until its last transcript, closed if the activity stops first.
+    private StreamingTranscriber transcriber;
+    // Decodes, transcribes and predicts the clips, each stage on a thread of its own.
+    private StagedPipeline<Clip, Clip> pipeline;
+    // Only used by the decode stage, for wav files WavReader doesn't handle.
+    private final JLibrosa decoder = new JLibrosa();
+    // Decoded audio handed back by the asr stage for the next clips, a clip that never gets there
+    // only costs a new buffer.
+    private final BlockingQueue<FloatBuffer> audioBuffers =
+            new ArrayBlockingQueue<>(PIPELINE_QUEUE_CAPACITY + 2);
 
     private Spinner audioClipSpinner;
     private Button transcribeButton;
@@ -90,10 +131,12 @@ public class AsrActivity extends AppCompatActivity implements AdapterView.OnItem
 
     private String content;
     private Handler handler;
+    private QaClientHolder qaClientHolder;
     private QaClient qaClient;
 
     static private final int PERMISSIONS_REQUEST_WRITE_EXTERNAL_STORAGE = 1;
     static private final int PERMISSIONS_REQUEST_READ_EXTERNAL_STORAGE = 1;
+    static private final int PERMISSIONS_REQUEST_RECORD_AUDIO = 2;
     //
 
 //    private static String[] WAV_FILENAMES = {};
@@ -103,7 +146,6 @@ public class AsrActivity extends AppCompatActivity implements AdapterView.OnItem
     private String textToFeed;
     private String wavFilename;
     private MediaPlayer mediaPlayer = new MediaPlayer();
-    public static MediaRecorder mediaRecorder;
 
     private final static String TAG = "TfLiteASR";
     private final static int SAMPLE_RATE = 16000;
@@ -111,7 +153,17 @@ public class AsrActivity extends AppCompatActivity implements AdapterView.OnItem
     private final static String TFLITE_FILE = "emsConformer.tflite";
 //    private final static String TFLITE_FILE = "CONFORMER.tflite";
     private final static String predictionFileName = "fitted_label_names.txt";
-    private static String mFileName;
+    private final static long PREDICT_TIMEOUT_SECONDS = 30;
+    // Clips each stage of the pipeline queues before the one ahead of it waits.
+    private final static int PIPELINE_QUEUE_CAPACITY = 2;
+    private final static int TOP_PROTOCOLS = 5;
+    // Live audio is transcribed again every chunk, in segments the Conformer runs on at once.
+    private final static int STREAM_CHUNK_SECONDS = 2;
+    private final static int STREAM_SEGMENT_SECONDS = 12;
+    // Audio the transcriber may lag behind the microphone before samples are dropped.
+    private final static int STREAM_RING_SECONDS = 8;
+    // Durations the Conformer input is padded to, most clips are 10 to 25 s.
+    private final static int[] ASR_BUCKET_SECONDS = {6, 12, 18, 24, 32, 48, 64};
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -119,8 +171,6 @@ public class AsrActivity extends AppCompatActivity implements AdapterView.OnItem
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        mediaRecorder = new MediaRecorder();
-
         int writeStoragePermissionCheck = ContextCompat.checkSelfPermission(getApplicationContext(), Manifest.permission.WRITE_EXTERNAL_STORAGE);
         if(writeStoragePermissionCheck != PackageManager.PERMISSION_GRANTED){
             ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE}, PERMISSIONS_REQUEST_WRITE_EXTERNAL_STORAGE);
@@ -166,7 +216,6 @@ public class AsrActivity extends AppCompatActivity implements AdapterView.OnItem
         truePrediction.put("sss95.wav","9914117");
 
 
-        JLibrosa jLibrosa = new JLibrosa();
         audioClipSpinner = findViewById(R.id.audio_clip_spinner);
         ArrayAdapter<String>adapter = new ArrayAdapter<String>(AsrActivity.this,
                 android.R.layout.simple_spinner_item, WAV_FILENAMES);
@@ -196,61 +245,31 @@ public class AsrActivity extends AppCompatActivity implements AdapterView.OnItem
             @RequiresApi(api = Build.VERSION_CODES.M)
             @Override
             public void onClick(View view) {
-                try {
-                    Log.i(TAG, "Conformer preprocessing starts after Click");
-                    long conf_prepros_start = System.currentTimeMillis();
-                    float audioFeatureValues[] = jLibrosa.loadAndRead(copyWavFileToCache(wavFilename), SAMPLE_RATE, DEFAULT_AUDIO_DURATION);
-
-                    Object[] inputArray = {audioFeatureValues};
-                    IntBuffer outputBuffer = IntBuffer.allocate(2000);
-
-                    Map<Integer, Object> outputMap = new HashMap<>();
-                    outputMap.put(0, outputBuffer);
-
-                    tfLiteModel = loadModelFile(getAssets(), TFLITE_FILE);
-                    Interpreter.Options tfLiteOptions = new Interpreter.Options();
-                    Log.i(TAG, "Before instance");
-                    tfLiteASR = new Interpreter(tfLiteModel, tfLiteOptions);
-                    Log.i(TAG, "After instance");
-
-                    tfLiteASR.resizeInput(0, new int[] {audioFeatureValues.length});
-                    long conf_prepros_latency = System.currentTimeMillis() - conf_prepros_start;
-                    Log.i(TAG, "******** Conformer preprocessing Latency : " + conf_prepros_latency);
-
-                    long conf_infer_start = System.currentTimeMillis();
-                    Log.i(TAG, "Called the Conformer model for inference...");
-                    tfLiteASR.runForMultipleInputsOutputs(inputArray, outputMap);
-                    long conf_infer_latency = System.currentTimeMillis() - conf_infer_start;
-                    Log.i(TAG, "******** Conformer Latency : " + conf_infer_latency);
-
-                    long conf_postpros_start = System.currentTimeMillis();
-                    int outputSize = tfLiteASR.getOutputTensor(0).shape()[0];
-                    int[] outputArray = new int[outputSize];
-                    outputBuffer.rewind();
-                    outputBuffer.get(outputArray);
-                    StringBuilder finalResult = new StringBuilder();
-                    for (int i=0; i < outputSize; i++) {
-                        char c = (char) outputArray[i];
-                        if (outputArray[i] != 0) {
-                            finalResult.append((char) outputArray[i]);
-                        }
+                // Each clip goes through the stages of the pipeline, so none of them blocks the UI
+                // and the next clip is decoded while this one is transcribed or predicted.
+                Clip clip = new Clip(
+                        wavFilename, trueText.get(wavFilename), truePrediction.get(wavFilename));
+                CompletableFuture<Clip> result = pipeline.offer(clip);
+                if (result == null) {
+                    Toast.makeText(
+                            getApplicationContext(),
+                            "Still transcribing the previous clips.",
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                pendingPrediction = result;
+                result.whenComplete((done, e) -> runOnUiThread(() -> {
+                    if (e instanceof CancellationException) {
+                        return;
+                    }
+                    if (e != null) {
+                        Log.e(TAG, "The protocol prediction failed.", e);
+                        predictionView.setText("The protocol prediction failed.");
+                        return;
                     }
-                    long conf_postpros_latency = System.currentTimeMillis() - conf_postpros_start;
-                    Log.i(TAG, "******** Conformer postprocessing Latency : " + conf_postpros_latency);
-                    textToFeed = "Original:\n" + trueText.get(wavFilename) + "\nTranscribed: \n" + finalResult + "\n";
-//                    tfLiteASR.setCancelled(true);
-//                    tfLiteASR.close();
-                    Log.i(TAG, "asr result: " + textToFeed);
-
-                    final String answers = qaClient.predict(textToFeed, content);
-                    String display = "True Protocol:\n" + truePrediction.get(wavFilename) + "\nPredicted top 5 protocols :\n" + answers;
                     Log.i(TAG, "Got result from predict function on myResult");
-                    resultTextview.setText(textToFeed);
-                    predictionView.setText(display);
-//                    predictionView.setText(top5Prediction);
-                } catch (Exception e) {
-                    Log.e(TAG, e.getMessage());
-                }
+                    predictionView.setText(done.display);
+                }));
             }
         });
 
@@ -262,7 +281,11 @@ public class AsrActivity extends AppCompatActivity implements AdapterView.OnItem
             public void onClick(View view) {
                 try {
 
-                    startRecording();
+                    if (capture == null) {
+                        startRecording();
+                    } else {
+                        stopRecording();
+                    }
 
 //                    Log.i(TAG, "Conformer preprocessing starts after Click");
 //                    long conf_prepros_start = System.currentTimeMillis();
@@ -326,45 +349,302 @@ public class AsrActivity extends AppCompatActivity implements AdapterView.OnItem
         HandlerThread handlerThread = new HandlerThread("QAClient");
         handlerThread.start();
         handler = new Handler(handlerThread.getLooper());
-        qaClient = new QaClient(this);
+        // The protocol model outlives the activity, it's acquired while the activity is started.
+        qaClientHolder = QaClientHolder.get(this);
+        qaClient = qaClientHolder.client();
+        autotuner = new InterpreterAutotuner(this);
+        autotuner.setRuns(1);
+        asrEngineHolder = AsrEngineHolder.get(this);
+        pipeline = StagedPipeline.<Clip>builder(PIPELINE_QUEUE_CAPACITY)
+                .then("decode", this::decode)
+                .then("asr", this::recognize)
+                .then("normalize", this::normalize)
+                .then("tokenize", this::tokenize)
+                .then("bert", this::predictProtocols)
+                .then("postprocess", this::postprocess)
+                .build();
     }
 
-    private void startRecording() {
+    /** An audio clip on its way through the pipeline, each stage fills in its part. */
+    private static final class Clip {
+        final String name;
+        final String trueText;
+        final String truePrediction;
+        FloatBuffer audio;
+        String asrText;
+        String transcript;
+        EMSBertFeature feature;
+        ProtocolPrediction prediction;
+        String display;
+
+        Clip(String name, String trueText, String truePrediction) {
+            this.name = name;
+            this.trueText = trueText;
+            this.truePrediction = truePrediction;
+        }
+    }
 
-        mFileName = Environment.getExternalStorageDirectory().getAbsolutePath();
-        mFileName += "/Audio/Recordings/recording.wav";
+    /** Reads the samples of the clip into a buffer with room for the padding of the Conformer. */
+    private Clip decode(Clip clip) {
+        clip.audio = readWav(clip.name, audioBuffers.poll(),
+                samples -> asrEngine.join().paddedLength(samples));
+        return clip;
+    }
 
-        mediaRecorder = new MediaRecorder();
-        mediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-        mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.DEFAULT);
-        mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.DEFAULT);
-        mediaRecorder.setOutputFile(mFileName);
+    /**
+     * Reads the samples of a wav asset from its mapping into buffer, or into a new direct buffer if
+     * buffer is smaller than capacity applied to the sample count. Decodes them with JLibrosa from
+     * a copy if WavReader can't. The limit is after the last sample.
+     */
+    private FloatBuffer readWav(String name, FloatBuffer buffer, IntUnaryOperator capacity) {
         try {
-            mediaRecorder.prepare();
-            Toast.makeText(
-                    getApplicationContext(),  "recording saved to " + mFileName, Toast.LENGTH_SHORT)
-                    .show();
+            ByteBuffer wav = WavReader.map(getAssets(), name);
+            int samples = WavReader.sampleCount(wav, SAMPLE_RATE);
+            if (samples >= 0) {
+                return WavReader.read(wav, SAMPLE_RATE, buffer, capacity.applyAsInt(samples));
+            }
+            Log.w(TAG, name + " isn't 16 or 24 bit PCM mono, decoding it with JLibrosa.");
         } catch (IOException e) {
-            Log.e("TAG", "prepare() failed");
+            Log.w(TAG, "Can't map " + name + ", decoding it with JLibrosa.", e);
+        }
+        try {
+            // The autotuner can run while the decode stage falls back, and JLibrosa keeps state.
+            synchronized (decoder) {
+                return FloatBuffer.wrap(decoder.loadAndRead(
+                        copyWavFileToCache(name), SAMPLE_RATE, DEFAULT_AUDIO_DURATION));
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Can't decode " + name, e);
         }
-        mediaRecorder.start();
-        resultTextview.setText("Recording Started");
-        mediaRecorder.reset();
     }
 
-    public void stopRecording() {
+    private Clip recognize(Clip clip) {
+        AsrEngine engine = asrEngine.join();
+        try {
+            clip.asrText = engine.transcribe(clip.audio);
+        } catch (IllegalStateException e) {
+            // Clips still queued when the activity is destroyed are dropped without a warning.
+            if (engine.isClosed()) {
+                throw new CancellationException("The ASR engine is closed.");
+            }
+            throw e;
+        } finally {
+            if (clip.audio.isDirect()) {
+                audioBuffers.offer(clip.audio);
+            }
+            clip.audio = null;
+        }
+        return clip;
+    }
 
-        // below method will stop
-        // the audio recording.
-        mRecorder.stop();
+    /** Collapses the blanks between the words of the Conformer. */
+    private Clip normalize(Clip clip) {
+        StringBuilder finalResult = new StringBuilder();
+        for (int i = 0; i < clip.asrText.length(); i++) {
+            char c = clip.asrText.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (finalResult.length() > 0
+                        && finalResult.charAt(finalResult.length() - 1) != ' ') {
+                    finalResult.append(' ');
+                }
+            } else {
+                finalResult.append(c);
+            }
+        }
+        String transcript = "Original:\n" + clip.trueText + "\nTranscribed: \n"
+                + finalResult.toString().trim() + "\n";
+        clip.transcript = transcript;
+        textToFeed = transcript;
+        Log.i(TAG, "asr result: " + transcript);
+        runOnUiThread(() -> resultTextview.setText(transcript));
+        return clip;
+    }
 
-        // below method will release
-        // the media recorder class.
-        mRecorder.release();
-        mRecorder = null;
+    private Clip tokenize(Clip clip) {
+        // Clips transcribed while the protocol model is still loading wait for it here.
+        try {
+            if (!qaClient.awaitReady(PREDICT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IllegalStateException(
+                        "The protocol model isn't ready after " + PREDICT_TIMEOUT_SECONDS + " s.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the model.", e);
+        }
+        clip.feature = qaClient.convert(clip.transcript);
+        return clip;
+    }
+
+    private Clip predictProtocols(Clip clip) {
+        clip.prediction =
+                qaClient.predictProtocols(clip.feature, new ProtocolPrediction(TOP_PROTOCOLS));
+        return clip;
+    }
+
+    private Clip postprocess(Clip clip) {
+        clip.display = "True Protocol:\n" + clip.truePrediction
+                + "\nPredicted top " + TOP_PROTOCOLS + " protocols :\n"
+                + clip.prediction.format();
+        Log.v(TAG, pipeline.toString());
+        return clip;
+    }
+
+    /**
+     * Tunes the options of the Conformer, then loads and warms it up for every later clip. Run by
+     * the engine holder, once per process unless the engine was closed since.
+     */
+    private AsrEngine loadAsrEngine() {
+        tuneAsrOptions();
+        try {
+            AsrEngine engine = new AsrEngine(
+                    loadModelFile(getAssets(), TFLITE_FILE), asrOptions, SAMPLE_RATE,
+                    ASR_BUCKET_SECONDS);
+            engine.warmUp();
+            return engine;
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't load " + TFLITE_FILE, e);
+        }
+    }
+
+    /**
+     * Picks the options the Conformer transcribes the first audio clip fastest with, cut or padded
+     * to the shortest bucket. They're only measured on the first start with this model on this
+     * device, later ones read them back. Only half the cores and more are tried, each once after
+     * the untimed run, so the first start isn't held up for long.
+     */
+    private void tuneAsrOptions() {
+        if (WAV_FILENAMES.isEmpty()) {
+            return;
+        }
+        try {
+            MappedByteBuffer model = loadModelFile(getAssets(), TFLITE_FILE);
+            int bucket = ASR_BUCKET_SECONDS[0] * SAMPLE_RATE;
+            FloatBuffer clip = readWav(WAV_FILENAMES.get(0), null, samples -> samples);
+            // Zeros past the clip, which is the padding.
+            FloatBuffer audio = ByteBuffer.allocateDirect(4 * bucket)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            clip.limit(Math.min(clip.limit(), bucket));
+            audio.put(clip);
+            int cores = Runtime.getRuntime().availableProcessors();
+            InterpreterAutotuner.Config config = autotuner.tune(
+                    TFLITE_FILE,
+                    ModelHelper.assetModelKey(this, model),
+                    InterpreterAutotuner.candidates(cores / 2, cores),
+                    options -> {
+                        Interpreter interpreter = new Interpreter(model, options);
+                        try {
+                            interpreter.resizeInput(0, new int[] {bucket});
+                        } catch (RuntimeException e) {
+                            interpreter.close();
+                            throw e;
+                        }
+                        IntBuffer output = IntBuffer.allocate(2000);
+                        Map<Integer, Object> outputs = new HashMap<>();
+                        outputs.put(0, output);
+                        return new InterpreterAutotuner.Session() {
+                            @Override
+                            public void run() {
+                                output.rewind();
+                                audio.clear();
+                                interpreter.runForMultipleInputsOutputs(
+                                        new Object[] {audio}, outputs);
+                            }
+
+                            @Override
+                            public void close() {
+                                interpreter.close();
+                            }
+                        };
+                    });
+            asrOptions = config.toOptions();
+        } catch (Exception e) {
+            Log.e(TAG, "Can't tune the Conformer options, the defaults are kept.", e);
+        }
+    }
+
+    /**
+     * Streams the microphone to the Conformer. The transcript so far is shown and its protocols
+     * predicted while the medic is still talking, until the next click stops it.
+     */
+    private void startRecording() {
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO)
+                != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this,
+                    new String[] {Manifest.permission.RECORD_AUDIO},
+                    PERMISSIONS_REQUEST_RECORD_AUDIO);
+            return;
+        }
+        AsrEngine engine = asrEngine.getNow(null);
+        if (engine == null) {
+            Toast.makeText(getApplicationContext(), "The speech model is still loading.",
+                    Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (transcriber != null) {
+            // Still transcribing the end of the previous recording, which the new one replaces.
+            transcriber.close();
+        }
+        PcmRingBuffer ring = new PcmRingBuffer(STREAM_RING_SECONDS * SAMPLE_RATE);
+        transcriber = new StreamingTranscriber(
+                ring,
+                engine,
+                STREAM_CHUNK_SECONDS * SAMPLE_RATE,
+                STREAM_SEGMENT_SECONDS * SAMPLE_RATE,
+                new StreamPredictor());
+        capture = AudioCapture.microphone(ring, SAMPLE_RATE, SAMPLE_RATE / 10);
+        transcriber.start();
+        capture.start();
+        resultTextview.setText("Recording Started");
+    }
+
+    /** Stops the microphone, the transcriber then gives the transcript of the whole recording. */
+    public void stopRecording() {
+        capture.close();
+        capture = null;
         resultTextview.setText("Recording Stopped");
     }
 
+    /**
+     * Shows the transcripts of one recording and predicts their protocols, called by the
+     * transcriber thread. A partial transcript only revises the end of the previous one, so the
+     * session keeps the word pieces of the words before it and tokenizes the rest.
+     */
+    private final class StreamPredictor implements StreamingTranscriber.Listener {
+        // Started once the protocol model is ready, the transcripts before that wait for it.
+        private FeatureSession session;
+
+        @Override
+        public void onTranscript(String transcript, boolean last) {
+            Log.i(TAG, (last ? "asr result: " : "asr partial: ") + transcript);
+            runOnUiThread(() -> resultTextview.setText(transcript));
+            // Only the prediction of the latest transcript matters.
+            CompletableFuture<?> previous = pendingStreamPrediction;
+            if (previous != null) {
+                previous.cancel(true);
+            }
+            if (session == null && qaClient.isReady()) {
+                session = qaClient.newSession();
+            }
+            CompletableFuture<String> prediction = session == null
+                    ? qaClient.predictAsync(transcript, PREDICT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    : qaClient.predictAsync(session.update(transcript).copy(),
+                            PREDICT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            pendingStreamPrediction = prediction;
+            prediction.whenComplete((answers, e) -> runOnUiThread(() -> {
+                if (e instanceof CancellationException) {
+                    return;
+                }
+                if (e != null) {
+                    Log.e(TAG, "The protocol prediction failed.", e);
+                    predictionView.setText("The protocol prediction failed.");
+                    return;
+                }
+                predictionView.setText(
+                        "Predicted top " + TOP_PROTOCOLS + " protocols :\n" + answers);
+            }));
+        }
+    }
+
 
     private String buildString(float[] answers) {
         StringBuilder newStr = new StringBuilder();
@@ -477,10 +757,9 @@ public class AsrActivity extends AppCompatActivity implements AdapterView.OnItem
     protected void onStart() {
         Log.v(TAG, "onStart");
         super.onStart();
-        handler.post(
-                () -> {
-                    qaClient.loadModel();
-                });
+        // Only loads the models if they were unloaded since the activity last stopped.
+        qaClientHolder.acquire();
+        asrEngine = asrEngineHolder.acquire(this::loadAsrEngine);
 
         textToSpeech =
                 new TextToSpeech(
@@ -498,11 +777,36 @@ public class AsrActivity extends AppCompatActivity implements AdapterView.OnItem
     protected void onStop() {
         Log.v(TAG, "onStop");
         super.onStop();
-        handler.post(() -> qaClient.unload());
+        if (capture != null) {
+            stopRecording();
+        }
+        // No transcript of the rest of the recording is shown or predicted once stopped.
+        if (transcriber != null) {
+            transcriber.close();
+            transcriber = null;
+        }
+        for (CompletableFuture<?> prediction :
+                Arrays.asList(pendingPrediction, pendingStreamPrediction)) {
+            if (prediction != null) {
+                prediction.cancel(true);
+            }
+        }
+        qaClientHolder.release();
+        asrEngineHolder.release();
 
         if (textToSpeech != null) {
             textToSpeech.stop();
             textToSpeech.shutdown();
         }
     }
+
+    @Override
+    protected void onDestroy() {
+        Log.v(TAG, "onDestroy");
+        super.onDestroy();
+        // The engine is kept by its holder for the next activity.
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,106 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/** Tests of {@link PcmRingBuffer} */
+public final class PcmRingBufferTest {
+
+  @Test
+  public void wrapsAroundTest() {
+    PcmRingBuffer ring = new PcmRingBuffer(6);
+    assertEquals(8, ring.capacity());
+    FloatBuffer out = FloatBuffer.allocate(8);
+    short next = 0;
+    short expected = 0;
+    for (int round = 0; round < 10; round++) {
+      short[] samples = new short[5];
+      for (int i = 0; i < samples.length; i++) {
+        samples[i] = next++;
+      }
+      assertEquals(5, ring.write(samples, 0, 5));
+      assertEquals(5, ring.available());
+      assertEquals(5, ring.read(out, 1, 8));
+      for (int i = 0; i < 5; i++) {
+        assertEquals(expected++ / 32767f, out.get(1 + i), 1e-6f);
+      }
+    }
+  }
+
+  @Test
+  public void dropsWhatDoesNotFitTest() throws Exception {
+    PcmRingBuffer ring = new PcmRingBuffer(4);
+    assertEquals(3, ring.write(new short[] {1, 2, 3}, 0, 3));
+    assertEquals(1, ring.write(new short[] {4, 5, 6}, 0, 3));
+    assertEquals(2, ring.droppedCount());
+    assertFalse(ring.awaitAvailable(5, 10, TimeUnit.MILLISECONDS));
+
+    FloatBuffer out = FloatBuffer.allocate(4);
+    assertEquals(4, ring.read(out, 0, 4));
+    assertEquals(4 / 32767f, out.get(3), 1e-6f);
+    assertFalse(ring.isDrained());
+    ring.finish();
+    assertTrue(ring.isDrained());
+    assertFalse(ring.awaitAvailable(1, 1, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void writerAndReaderThreadsTest() throws Exception {
+    PcmRingBuffer ring = new PcmRingBuffer(1024);
+    int total = 1 << 20;
+    Thread writer =
+        new Thread(
+            () -> {
+              Random random = new Random(1);
+              short[] frame = new short[300];
+              int written = 0;
+              while (written < total) {
+                int length = Math.min(total - written, 1 + random.nextInt(frame.length));
+                for (int i = 0; i < length; i++) {
+                  frame[i] = (short) (written + i);
+                }
+                // Retried, so nothing is dropped and the reader can check every sample.
+                int offset = 0;
+                while (offset < length) {
+                  offset += ring.write(frame, offset, length - offset);
+                }
+                written += length;
+              }
+              ring.finish();
+            });
+    writer.start();
+
+    FloatBuffer out = FloatBuffer.allocate(700);
+    int read = 0;
+    while (!ring.isDrained()) {
+      ring.awaitAvailable(100, 1, TimeUnit.SECONDS);
+      int count = ring.read(out, 0, out.capacity());
+      for (int i = 0; i < count; i++) {
+        assertEquals((short) (read + i) / 32767f, out.get(i), 1e-6f);
+      }
+      read += count;
+    }
+    writer.join();
+    assertEquals(total, read);
+  }
+}
@@ -0,0 +1,173 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package org.tensorflow.lite.examples.emsassist.ml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Tests of {@link StreamingTranscriber} fed by an {@link AudioCapture} of a synthetic source in
+ * place of the microphone.
+ */
+public final class StreamingTranscriberTest {
+  // Each word of the synthetic speech is a run of samples of its index.
+  private static final int WORD_SAMPLES = 400;
+  private static final int WORDS = 60;
+
+  @Test
+  public void partialTranscriptsWhileTalkingTest() throws Exception {
+    PcmRingBuffer ring = new PcmRingBuffer(4096);
+    SyntheticSource source = new SyntheticSource(/* frameMillis= */ 1);
+    List<String> partials = Collections.synchronizedList(new ArrayList<>());
+    List<Boolean> talking = Collections.synchronizedList(new ArrayList<>());
+    StreamingTranscriber transcriber =
+        new StreamingTranscriber(
+            ring,
+            new WordRecognizer(),
+            /* chunkSamples= */ 2 * WORD_SAMPLES,
+            /* segmentSamples= */ 10 * WORD_SAMPLES,
+            (transcript, last) -> {
+              if (!last) {
+                partials.add(transcript);
+                talking.add(!source.done);
+              }
+            });
+    AudioCapture capture = new AudioCapture(source, ring, 160);
+    transcriber.start();
+    capture.start();
+
+    String transcript = transcriber.result().get(30, TimeUnit.SECONDS);
+    assertEquals(expectedTranscript(WORDS), transcript);
+    assertFalse(partials.isEmpty());
+    // Predictions can start before the end of the speech.
+    assertTrue(talking.get(0));
+    for (String partial : partials) {
+      assertTrue(partial, transcript.startsWith(partial));
+    }
+    assertEquals(0, ring.droppedCount());
+  }
+
+  @Test
+  public void slowRecognizerCatchesUpTest() throws Exception {
+    PcmRingBuffer ring = new PcmRingBuffer(1 << 16);
+    WordRecognizer slow = new WordRecognizer();
+    slow.delayMillis = 20;
+    StreamingTranscriber transcriber =
+        new StreamingTranscriber(
+            ring, slow, WORD_SAMPLES / 4, 10 * WORD_SAMPLES, (transcript, last) -> {});
+    AudioCapture capture = new AudioCapture(new SyntheticSource(0), ring, 160);
+    capture.start();
+    transcriber.start();
+
+    assertEquals(expectedTranscript(WORDS), transcriber.result().get(30, TimeUnit.SECONDS));
+    // Chunks that arrived during a transcription are taken together.
+    assertTrue(transcriber.transcriptionCount() < WORDS * 4);
+  }
+
+  @Test
+  public void recognizerErrorFailsResultTest() throws Exception {
+    PcmRingBuffer ring = new PcmRingBuffer(4096);
+    StreamingTranscriber transcriber =
+        new StreamingTranscriber(
+            ring,
+            audio -> {
+              throw new IllegalStateException("The ASR engine is closed.");
+            },
+            WORD_SAMPLES,
+            10 * WORD_SAMPLES,
+            (transcript, last) -> {});
+    transcriber.start();
+    new AudioCapture(new SyntheticSource(0), ring, 160).start();
+    try {
+      transcriber.result().get(30, TimeUnit.SECONDS);
+      fail("The recognizer throws.");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  private static String expectedTranscript(int words) {
+    StringBuilder transcript = new StringBuilder();
+    for (int i = 0; i < words; i++) {
+      transcript.append(i == 0 ? "" : " ").append("w").append(i);
+    }
+    return transcript.toString();
+  }
+
+  /** Stands in for the microphone, the samples of WORDS words in frames of the given period. */
+  private static final class SyntheticSource implements AudioCapture.Source {
+    private final long frameMillis;
+    private int position;
+    volatile boolean done;
+
+    SyntheticSource(long frameMillis) {
+      this.frameMillis = frameMillis;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int length) {
+      if (position == WORDS * WORD_SAMPLES) {
+        done = true;
+        return -1;
+      }
+      if (frameMillis > 0) {
+        try {
+          Thread.sleep(frameMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return -1;
+        }
+      }
+      int count = Math.min(length, WORDS * WORD_SAMPLES - position);
+      for (int i = 0; i < count; i++) {
+        buffer[offset + i] = (short) ((position + i) / WORD_SAMPLES);
+      }
+      position += count;
+      return count;
+    }
+  }
+
+  /** Names the words whose samples are all in the audio. */
+  private static final class WordRecognizer implements StreamingTranscriber.Recognizer {
+    long delayMillis;
+
+    @Override
+    public String transcribe(FloatBuffer audio) {
+      if (delayMillis > 0) {
+        try {
+          Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      assertEquals(0, audio.position());
+      StringBuilder text = new StringBuilder();
+      for (int start = 0; start + WORD_SAMPLES <= audio.limit(); start += WORD_SAMPLES) {
+        text.append(" w").append(Math.round(audio.get(start) * 32767));
+      }
+      return text.toString();
+    }
+  }
+}